@@ -0,0 +1,261 @@
+package com.axway.aws.sns;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local SNS endpoint for load tests, speaking the query protocol of the Publish and PublishBatch
+ * actions on 127.0.0.1.
+ *
+ * Every request waits for the configured latency (plus a random jitter), then may be rejected with
+ * HTTP 400 Throttling or HTTP 500 InternalError at the configured rates. Requests whose topic ARN does
+ * not belong to the region they were signed for are rejected with InvalidParameter and counted, which
+ * catches clients shared between regions.
+ */
+public class LocalSNSServer implements AutoCloseable {
+
+	private static final String NAMESPACE = "http://sns.amazonaws.com/doc/2010-03-31/";
+	private static final Pattern SIGNING_REGION = Pattern.compile("Credential=[^/]+/\\d{8}/([^/]+)/sns/");
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+
+	private volatile long latencyMillis;
+	private volatile long jitterMillis;
+	private volatile double throttleRate;
+	private volatile double errorRate;
+
+	private final LongAdder requests = new LongAdder();
+	private final LongAdder published = new LongAdder();
+	private final LongAdder throttled = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private final LongAdder regionMismatches = new LongAdder();
+	private final ConcurrentMap<String, LongAdder> publishedByRegion = new ConcurrentHashMap<>();
+
+	public LocalSNSServer() throws IOException {
+		// Without TCP_NODELAY small responses wait for delayed ACKs, adding tens of milliseconds per request
+		if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+		final AtomicInteger threads = new AtomicInteger();
+		executor = Executors.newCachedThreadPool(r -> {
+			Thread thread = new Thread(r, "local-sns-" + threads.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		server.setExecutor(executor);
+		server.createContext("/", this::handle);
+		server.start();
+	}
+
+	/**
+	 * Endpoint URL to configure on the SNS client.
+	 */
+	public String getEndpoint() {
+		return "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	public LocalSNSServer withLatency(long latencyMillis, long jitterMillis) {
+		this.latencyMillis = Math.max(0, latencyMillis);
+		this.jitterMillis = Math.max(0, jitterMillis);
+		return this;
+	}
+
+	/**
+	 * Share of requests (0-1) rejected with Throttling.
+	 */
+	public LocalSNSServer withThrottleRate(double throttleRate) {
+		this.throttleRate = throttleRate;
+		return this;
+	}
+
+	/**
+	 * Share of requests (0-1) failing with InternalError.
+	 */
+	public LocalSNSServer withErrorRate(double errorRate) {
+		this.errorRate = errorRate;
+		return this;
+	}
+
+	public long getRequests() {
+		return requests.sum();
+	}
+
+	/** Messages accepted, batch entries included */
+	public long getPublished() {
+		return published.sum();
+	}
+
+	public long getThrottled() {
+		return throttled.sum();
+	}
+
+	public long getErrors() {
+		return errors.sum();
+	}
+
+	public long getRegionMismatches() {
+		return regionMismatches.sum();
+	}
+
+	public Map<String, Long> getPublishedByRegion() {
+		Map<String, Long> counts = new HashMap<>();
+		for (Map.Entry<String, LongAdder> entry : publishedByRegion.entrySet()) {
+			counts.put(entry.getKey(), entry.getValue().sum());
+		}
+		return counts;
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			requests.increment();
+			Map<String, String> params = parseForm(readBody(exchange.getRequestBody()));
+			simulateLatency();
+
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			if (throttleRate > 0 && random.nextDouble() < throttleRate) {
+				throttled.increment();
+				sendError(exchange, 400, "Sender", "Throttling", "Rate exceeded");
+				return;
+			}
+			if (errorRate > 0 && random.nextDouble() < errorRate) {
+				errors.increment();
+				sendError(exchange, 500, "Receiver", "InternalError", "Injected failure");
+				return;
+			}
+
+			String region = signingRegion(exchange.getRequestHeaders().getFirst("Authorization"));
+			String topicArn = params.get("TopicArn");
+			if (topicArn != null && region != null && !topicArn.startsWith("arn:aws:sns:" + region + ":")) {
+				regionMismatches.increment();
+				sendError(exchange, 400, "Sender", "InvalidParameter",
+					"Topic " + topicArn + " does not belong to region " + region);
+				return;
+			}
+
+			String action = params.get("Action");
+			if ("Publish".equals(action)) {
+				countPublished(region, 1);
+				send(exchange, 200, "<PublishResponse xmlns=\"" + NAMESPACE + "\"><PublishResult><MessageId>"
+					+ UUID.randomUUID() + "</MessageId></PublishResult>" + responseMetadata() + "</PublishResponse>");
+			} else if ("PublishBatch".equals(action)) {
+				List<String> ids = new ArrayList<>();
+				for (int i = 1; params.containsKey("PublishBatchRequestEntries.member." + i + ".Id"); i++) {
+					ids.add(params.get("PublishBatchRequestEntries.member." + i + ".Id"));
+				}
+				countPublished(region, ids.size());
+				StringBuilder xml = new StringBuilder("<PublishBatchResponse xmlns=\"").append(NAMESPACE)
+					.append("\"><PublishBatchResult><Successful>");
+				for (String id : ids) {
+					xml.append("<member><Id>").append(id).append("</Id><MessageId>").append(UUID.randomUUID())
+						.append("</MessageId></member>");
+				}
+				xml.append("</Successful><Failed/></PublishBatchResult>").append(responseMetadata())
+					.append("</PublishBatchResponse>");
+				send(exchange, 200, xml.toString());
+			} else {
+				sendError(exchange, 400, "Sender", "InvalidAction", "Unsupported action " + action);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void countPublished(String region, int count) {
+		published.add(count);
+		publishedByRegion.computeIfAbsent(String.valueOf(region), k -> new LongAdder()).add(count);
+	}
+
+	private void simulateLatency() {
+		long delay = latencyMillis + (jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(jitterMillis + 1) : 0);
+		if (delay > 0) {
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static String signingRegion(String authorization) {
+		if (authorization == null) {
+			return null;
+		}
+		Matcher matcher = SIGNING_REGION.matcher(authorization);
+		return matcher.find() ? matcher.group(1) : null;
+	}
+
+	private static String responseMetadata() {
+		return "<ResponseMetadata><RequestId>" + UUID.randomUUID() + "</RequestId></ResponseMetadata>";
+	}
+
+	private static void sendError(HttpExchange exchange, int status, String type, String code, String message)
+			throws IOException {
+		send(exchange, status, "<ErrorResponse xmlns=\"" + NAMESPACE + "\"><Error><Type>" + type + "</Type><Code>"
+			+ code + "</Code><Message>" + message + "</Message></Error><RequestId>" + UUID.randomUUID()
+			+ "</RequestId></ErrorResponse>");
+	}
+
+	private static void send(HttpExchange exchange, int status, String xml) throws IOException {
+		byte[] bytes = xml.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/xml");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	private static String readBody(InputStream in) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream(4096);
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			body.write(buffer, 0, read);
+		}
+		return new String(body.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private static Map<String, String> parseForm(String body) throws UnsupportedEncodingException {
+		Map<String, String> params = new HashMap<>();
+		for (String pair : body.split("&")) {
+			if (pair.isEmpty()) {
+				continue;
+			}
+			int eq = pair.indexOf('=');
+			String key = eq < 0 ? pair : pair.substring(0, eq);
+			String value = eq < 0 ? "" : pair.substring(eq + 1);
+			params.put(URLDecoder.decode(key, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+		}
+		return params;
+	}
+}
@@ -0,0 +1,85 @@
+package com.axway.aws.sns;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.sns.model.MessageAttributeValue;
+
+/**
+ * Streaming attribute parser against the former tree-based one, on attribute JSON of growing size.
+ *
+ * Run with: ./gradlew jmh -Pjmh.include=MessageAttributesParserBenchmark -Pjmh.args="-prof gc"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MessageAttributesParserBenchmark {
+
+	/** Number of attributes in the JSON, up to the SNS limit */
+	@Param({ "0", "1", "5", "10" })
+	public int attributes;
+
+	/** Size in bytes of the binary attribute value, 0 for string attributes only */
+	@Param({ "0", "1024" })
+	public int binarySize;
+
+	private String json;
+
+	@Setup
+	public void setUp() {
+		json = attributesJson(attributes, binarySize);
+	}
+
+	@Benchmark
+	public Map<String, MessageAttributeValue> streaming() {
+		return SNSMessageAttributesHelper.parseMessageAttributes(json);
+	}
+
+	@Benchmark
+	public Map<String, MessageAttributeValue> tree() {
+		return LegacyMessageAttributesParser.parseMessageAttributes(json);
+	}
+
+	/**
+	 * Attribute JSON with a mix of String and Number attributes; the last attribute is binary when
+	 * binarySize is positive.
+	 */
+	static String attributesJson(int count, int binarySize) {
+		StringBuilder json = new StringBuilder("{");
+		for (int i = 0; i < count; i++) {
+			if (i > 0) {
+				json.append(',');
+			}
+			json.append("\"attribute").append(i).append("\":{");
+			if (binarySize > 0 && i == count - 1) {
+				byte[] data = new byte[binarySize];
+				for (int b = 0; b < data.length; b++) {
+					data[b] = (byte) b;
+				}
+				json.append("\"DataType\":\"Binary\",\"BinaryValue\":\"")
+					.append(java.util.Base64.getEncoder().encodeToString(data)).append('"');
+			} else if (i % 2 == 0) {
+				json.append("\"DataType\":\"String\",\"StringValue\":\"value-").append(i).append('"');
+			} else {
+				json.append("\"DataType\":\"Number\",\"StringValue\":\"").append(i * 1000).append('"');
+			}
+			json.append('}');
+		}
+		return json.append('}').toString();
+	}
+}
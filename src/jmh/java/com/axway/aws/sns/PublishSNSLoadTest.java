@@ -0,0 +1,287 @@
+package com.axway.aws.sns;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder.EndpointConfiguration;
+import com.amazonaws.services.sns.AmazonSNS;
+import com.amazonaws.services.sns.AmazonSNSAsync;
+import com.amazonaws.services.sns.AmazonSNSAsyncClientBuilder;
+import com.amazonaws.services.sns.AmazonSNSClientBuilder;
+import com.vordel.circuit.CircuitAbortException;
+import com.vordel.circuit.Message;
+import com.vordel.config.ConfigContext;
+import com.vordel.es.Entity;
+
+/**
+ * Multi-threaded load test of PublishSNSMessageProcessor.invoke against {@link LocalSNSServer}, through
+ * the real AWS SDK client and HTTP stack. Runs offline.
+ *
+ * Messages alternate between the given regions, with the topic ARN and region resolved per message,
+ * so a client shared between regions shows up as region mismatches on the server. The run fails
+ * (exit code 1) on region mismatches or unexpected exceptions.
+ *
+ * Run with: ./gradlew loadTest -PloadTest.args="--threads=32 --duration=60 --latency=20 --throttle=0.01"
+ * Options (defaults): threads (16), duration (30 s), warmup (5 s), latency (10 ms), jitter (0 ms),
+ * throttle (0), errors (0), regions (us-east-1,eu-west-1), bodySize (1024), structure (default),
+ * attributes (false), async (false), batch (false), maxRetries (3), retryDelay (100 ms), and
+ * --entity.&lt;field&gt;=&lt;value&gt; to set any other filter field (--entity.transport=nio for the
+ * non-blocking client).
+ */
+public class PublishSNSLoadTest {
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = parseOptions(args);
+		final int threads = intOption(options, "threads", 16);
+		long durationSeconds = intOption(options, "duration", 30);
+		long warmupSeconds = intOption(options, "warmup", 5);
+		final String[] regions = options.getOrDefault("regions", "us-east-1,eu-west-1").split(",");
+		final String body = SNSMessageJsonHelperBenchmark.body(intOption(options, "bodySize", 1024), true);
+
+		LocalSNSServer server = new LocalSNSServer()
+			.withLatency(intOption(options, "latency", 10), intOption(options, "jitter", 0))
+			.withThrottleRate(Double.parseDouble(options.getOrDefault("throttle", "0")))
+			.withErrorRate(Double.parseDouble(options.getOrDefault("errors", "0")));
+
+		Entity entity = PublishSNSMessageProcessorBenchmark.filterEntity(options.getOrDefault("structure", "default"),
+			Boolean.parseBoolean(options.getOrDefault("attributes", "false")));
+		entity.setStringField("name", "Publish SNS Message Load Test");
+		entity.setStringField("topicArn", "arn:aws:sns:${sns.region}:123456789012:load-test");
+		entity.setStringField("awsRegion", "${sns.region}");
+		entity.setStringField("maxRetries", options.getOrDefault("maxRetries", "3"));
+		entity.setStringField("retryDelay", options.getOrDefault("retryDelay", "100"));
+		entity.setStringField("asyncMode", options.getOrDefault("async", "false"));
+		entity.setStringField("batchEnabled", options.getOrDefault("batch", "false"));
+		// Any other filter field, e.g. --entity.rateLimit=500
+		for (Map.Entry<String, String> option : options.entrySet()) {
+			if (option.getKey().startsWith("entity.")) {
+				entity.setStringField(option.getKey().substring("entity.".length()), option.getValue());
+			}
+		}
+
+		final PublishSNSMessageProcessor processor = new LocalProcessor(server.getEndpoint(), threads);
+		processor.filterAttached(new ConfigContext(), entity);
+
+		System.out.println("Local SNS endpoint " + server.getEndpoint() + ", " + threads + " threads, warm-up "
+			+ warmupSeconds + " s, measurement " + durationSeconds + " s");
+
+		final SNSLatencyHistogram latency = new SNSLatencyHistogram();
+		final LongAdder succeeded = new LongAdder();
+		final LongAdder failed = new LongAdder();
+		final LongAdder aborted = new LongAdder();
+		final LongAdder unexpected = new LongAdder();
+		final AtomicReference<Throwable> firstUnexpected = new AtomicReference<>();
+		final long startNanos = System.nanoTime();
+		final long measureStartNanos = startNanos + TimeUnit.SECONDS.toNanos(warmupSeconds);
+		final long endNanos = measureStartNanos + TimeUnit.SECONDS.toNanos(durationSeconds);
+		final CountDownLatch done = new CountDownLatch(threads);
+		final AtomicBoolean stopped = new AtomicBoolean();
+
+		List<Thread> workers = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			final int worker = t;
+			Thread thread = new Thread(() -> {
+				try {
+					// Workers keep running past the measurement so that they are alive for the last sample
+					for (long i = worker; !stopped.get(); i += threads) {
+						long before = System.nanoTime();
+						Message msg = new Message();
+						msg.put("content.body", body);
+						msg.put("correlation.id", "Id-" + i);
+						msg.put("sns.region", regions[(int) (i % regions.length)]);
+						boolean measured = before >= measureStartNanos && before < endNanos;
+						try {
+							boolean result = processor.invoke(null, msg);
+							if (measured) {
+								(result ? succeeded : failed).increment();
+							}
+						} catch (CircuitAbortException e) {
+							if (measured) {
+								aborted.increment();
+							}
+						} catch (RuntimeException e) {
+							unexpected.increment();
+							firstUnexpected.compareAndSet(null, e);
+						}
+						if (measured) {
+							latency.record((System.nanoTime() - before) / 1000);
+						}
+					}
+				} finally {
+					done.countDown();
+				}
+			}, "load-test-" + t);
+			workers.add(thread);
+		}
+		for (Thread thread : workers) {
+			thread.start();
+		}
+
+		// Take the allocation, GC and server baselines when the warm-up ends
+		long[] threadIds = new long[threads];
+		for (int t = 0; t < threads; t++) {
+			threadIds[t] = workers.get(t).getId();
+		}
+		sleepUntil(measureStartNanos);
+		long allocatedBefore = allocatedBytes(threadIds);
+		long[] gcBefore = gcTotals();
+		long requestsBefore = server.getRequests();
+		long publishedBefore = server.getPublished();
+		long throttledBefore = server.getThrottled();
+		long errorsBefore = server.getErrors();
+		sleepUntil(endNanos);
+		long allocatedAfter = allocatedBytes(threadIds);
+		long[] gcAfter = gcTotals();
+		double seconds = durationSeconds;
+		long requests = server.getRequests() - requestsBefore;
+		long published = server.getPublished() - publishedBefore;
+		long throttled = server.getThrottled() - throttledBefore;
+		long errors = server.getErrors() - errorsBefore;
+
+		stopped.set(true);
+		done.await();
+		processor.filterDetached();
+		// Released clients are kept for reuse until idle: shut them down as the gateway does on exit
+		SNSClientRegistry.getInstance().shutdown();
+		server.close();
+
+		long operations = succeeded.sum() + failed.sum() + aborted.sum();
+		System.out.println();
+		System.out.printf("Throughput: %.1f ops/s (%d ops: %d succeeded, %d failed, %d aborted)%n",
+			operations / seconds, operations, succeeded.sum(), failed.sum(), aborted.sum());
+		System.out.printf("Latency (ms): mean %.3f, p50 %.3f, p90 %.3f, p99 %.3f, p99.9 %.3f, max %.3f%n",
+			latency.getMean() / 1000.0, latency.getPercentile(50) / 1000.0, latency.getPercentile(90) / 1000.0,
+			latency.getPercentile(99) / 1000.0, latency.getPercentile(99.9) / 1000.0, latency.getMax() / 1000.0);
+		if (allocatedBefore >= 0 && allocatedAfter >= 0) {
+			long allocated = allocatedAfter - allocatedBefore;
+			System.out.printf("Allocation (worker threads): %.1f MB/s, %.1f KB/op%n",
+				allocated / seconds / (1024 * 1024), operations == 0 ? 0.0 : allocated / 1024.0 / operations);
+		}
+		System.out.printf("GC: %d collections, %d ms%n", gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1]);
+		System.out.printf("Server: %.1f requests/s, %d messages published, %d throttled, %d errors injected%n",
+			requests / seconds, published, throttled, errors);
+		System.out.println("Published by region (whole run): " + server.getPublishedByRegion());
+		System.out.println("Region mismatches: " + server.getRegionMismatches() + ", unexpected exceptions: "
+			+ unexpected.sum());
+
+		if (firstUnexpected.get() != null) {
+			System.out.println("First unexpected exception:");
+			firstUnexpected.get().printStackTrace(System.out);
+		}
+		if (server.getRegionMismatches() > 0 || unexpected.sum() > 0) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Processor whose clients target the local server, signed for the region of each message.
+	 */
+	private static class LocalProcessor extends PublishSNSMessageProcessor {
+
+		private final String endpoint;
+		private final ClientConfiguration localClientConfiguration;
+
+		LocalProcessor(String endpoint, int threads) {
+			this.endpoint = endpoint;
+			this.localClientConfiguration = new ClientConfiguration().withMaxConnections(Math.max(50, threads * 2));
+		}
+
+		@Override
+		protected AmazonSNS buildSNSClient(String region) {
+			return AmazonSNSClientBuilder.standard()
+				.withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("local", "local")))
+				.withEndpointConfiguration(new EndpointConfiguration(endpoint, region))
+				.withClientConfiguration(localClientConfiguration)
+				.build();
+		}
+
+		@Override
+		protected AmazonSNSAsync buildSNSAsyncClient(String region) {
+			if (nioTransport) {
+				return buildSNSNioClient(region);
+			}
+			return AmazonSNSAsyncClientBuilder.standard()
+				.withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("local", "local")))
+				.withEndpointConfiguration(new EndpointConfiguration(endpoint, region))
+				.withClientConfiguration(localClientConfiguration)
+				.build();
+		}
+
+		@Override
+		protected AmazonSNSAsync buildSNSNioClient(String region) {
+			return new SNSNioClient(region, new AWSStaticCredentialsProvider(new BasicAWSCredentials("local", "local")),
+				localClientConfiguration, URI.create(endpoint));
+		}
+	}
+
+	private static void sleepUntil(long deadlineNanos) throws InterruptedException {
+		long remaining;
+		while ((remaining = deadlineNanos - System.nanoTime()) > 0) {
+			TimeUnit.NANOSECONDS.sleep(remaining);
+		}
+	}
+
+	/**
+	 * Bytes allocated by the given threads, or -1 when the JVM does not report it.
+	 */
+	private static long allocatedBytes(long[] threadIds) {
+		java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		if (!(threadBean instanceof com.sun.management.ThreadMXBean)) {
+			return -1;
+		}
+		com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+		if (!allocationBean.isThreadAllocatedMemorySupported() || !allocationBean.isThreadAllocatedMemoryEnabled()) {
+			return -1;
+		}
+		long total = 0;
+		for (long bytes : allocationBean.getThreadAllocatedBytes(threadIds)) {
+			if (bytes > 0) {
+				total += bytes;
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Collections and collection time in milliseconds over all collectors.
+	 */
+	private static long[] gcTotals() {
+		long count = 0;
+		long time = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, gc.getCollectionCount());
+			time += Math.max(0, gc.getCollectionTime());
+		}
+		return new long[] { count, time };
+	}
+
+	private static Map<String, String> parseOptions(String[] args) {
+		Map<String, String> options = new HashMap<>();
+		for (String arg : args) {
+			if (!arg.startsWith("--")) {
+				throw new IllegalArgumentException("Unexpected argument " + arg + ", expected --name=value");
+			}
+			int eq = arg.indexOf('=');
+			options.put(eq < 0 ? arg.substring(2) : arg.substring(2, eq), eq < 0 ? "true" : arg.substring(eq + 1));
+		}
+		return options;
+	}
+
+	private static int intOption(Map<String, String> options, String name, int defaultValue) {
+		String value = options.get(name);
+		return value != null ? Integer.parseInt(value) : defaultValue;
+	}
+}
@@ -0,0 +1,98 @@
+package com.axway.aws.sns;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.sns.AmazonSNS;
+import com.vordel.circuit.CircuitAbortException;
+import com.vordel.circuit.Message;
+import com.vordel.config.ConfigContext;
+import com.vordel.es.Entity;
+
+/**
+ * Full PublishSNSMessageProcessor.invoke, from selectors to the processed result, against
+ * {@link StubAmazonSNS}. The SDK marshalling and HTTP layers are not part of the measurement.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PublishSNSMessageProcessorBenchmark {
+
+	@Param({ "default", "json" })
+	public String messageStructure;
+
+	/** Whether the filter sends message attributes, with one dynamic value */
+	@Param({ "false", "true" })
+	public boolean attributes;
+
+	@Param({ "1024" })
+	public int bodySize;
+
+	/** Simulated SNS latency per publish */
+	@Param({ "0" })
+	public long snsLatencyMicros;
+
+	private PublishSNSMessageProcessor processor;
+	private String body;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		final StubAmazonSNS sns = new StubAmazonSNS(snsLatencyMicros);
+		processor = new PublishSNSMessageProcessor() {
+			@Override
+			protected AmazonSNS buildSNSClient(String region) {
+				return sns;
+			}
+		};
+		processor.filterAttached(new ConfigContext(), filterEntity(messageStructure, attributes));
+		body = SNSMessageJsonHelperBenchmark.body(bodySize, true);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		processor.filterDetached();
+	}
+
+	@Benchmark
+	public boolean invoke() throws CircuitAbortException {
+		Message msg = new Message();
+		msg.put("content.body", body);
+		msg.put("correlation.id", "Id-0001");
+		return processor.invoke(null, msg);
+	}
+
+	static Entity filterEntity(String messageStructure, boolean attributes) {
+		Entity entity = new Entity();
+		entity.setStringField("name", "Publish SNS Message Benchmark");
+		entity.setStringField("topicArn", "arn:aws:sns:us-east-1:123456789012:benchmark");
+		entity.setStringField("awsRegion", "us-east-1");
+		entity.setStringField("messageSubject", "Benchmark");
+		entity.setStringField("messageStructure", messageStructure);
+		entity.setStringField("credentialType", "file");
+		entity.setStringField("maxRetries", "3");
+		entity.setStringField("retryDelay", "100");
+		if (attributes) {
+			entity.setStringField("messageAttributes", "{"
+				+ "\"CorrelationId\":{\"DataType\":\"String\",\"StringValue\":\"${correlation.id}\"},"
+				+ "\"Source\":{\"DataType\":\"String\",\"StringValue\":\"gateway\"},"
+				+ "\"Priority\":{\"DataType\":\"Number\",\"StringValue\":\"5\"}}");
+		}
+		return entity;
+	}
+}
@@ -0,0 +1,78 @@
+package com.axway.aws.sns;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JSON message structure formatting for bodies up to the 256 KB SNS limit: a JSON document that is
+ * wrapped as the default message, and a body that already is an envelope.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SNSMessageJsonHelperBenchmark {
+
+	@Param({ "1024", "65536", "262144" })
+	public int bodySize;
+
+	/** Whether the body already is a JSON envelope with a top-level default message */
+	@Param({ "false", "true" })
+	public boolean envelope;
+
+	private String body;
+
+	@Setup
+	public void setUp() {
+		String document = body(bodySize, true);
+		body = envelope ? "{\"default\":\"summary\",\"sqs\":" + quote(document) + "}" : document;
+	}
+
+	@Benchmark
+	public String formatJsonMessage() {
+		return SNSMessageJsonHelper.formatJsonMessage(body);
+	}
+
+	/**
+	 * JSON document (or plain text) of roughly the given size, with characters that need escaping.
+	 */
+	static String body(int size, boolean json) {
+		StringBuilder text = new StringBuilder(size + 64);
+		if (!json) {
+			while (text.length() < size) {
+				text.append("Lorem ipsum dolor sit amet, \"consectetur\" adipiscing elit.\n");
+			}
+			return text.substring(0, size);
+		}
+		text.append("{\"items\":[");
+		for (int i = 0; text.length() < size - 80; i++) {
+			if (i > 0) {
+				text.append(',');
+			}
+			text.append("{\"id\":").append(i).append(",\"name\":\"item-").append(i)
+				.append("\",\"default\":false,\"note\":\"line\\nbreak\"}");
+		}
+		return text.append("]}").toString();
+	}
+
+	private static String quote(String value) {
+		StringBuilder out = SNSMessageJsonHelper.startEnvelope();
+		SNSMessageJsonHelper.appendField(out, "x", value, 0, value.length());
+		String field = SNSMessageJsonHelper.finishEnvelope(out);
+		// {"x":"..."} -> "..."
+		return field.substring(5, field.length() - 1);
+	}
+}
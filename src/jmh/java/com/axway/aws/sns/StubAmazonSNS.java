@@ -0,0 +1,62 @@
+package com.axway.aws.sns;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.amazonaws.services.sns.AbstractAmazonSNS;
+import com.amazonaws.services.sns.model.PublishBatchRequest;
+import com.amazonaws.services.sns.model.PublishBatchRequestEntry;
+import com.amazonaws.services.sns.model.PublishBatchResult;
+import com.amazonaws.services.sns.model.PublishBatchResultEntry;
+import com.amazonaws.services.sns.model.PublishRequest;
+import com.amazonaws.services.sns.model.PublishResult;
+
+/**
+ * In-memory AmazonSNS for benchmarks: accepts every publish after an optional simulated latency,
+ * without network or AWS account.
+ */
+public class StubAmazonSNS extends AbstractAmazonSNS {
+
+	private final long latencyNanos;
+	private final AtomicLong published = new AtomicLong();
+
+	public StubAmazonSNS(long latencyMicros) {
+		this.latencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+	}
+
+	public long getPublished() {
+		return published.get();
+	}
+
+	@Override
+	public PublishResult publish(PublishRequest request) {
+		simulateLatency();
+		published.incrementAndGet();
+		return new PublishResult().withMessageId(UUID.randomUUID().toString());
+	}
+
+	@Override
+	public PublishBatchResult publishBatch(PublishBatchRequest request) {
+		simulateLatency();
+		List<PublishBatchResultEntry> successful = new ArrayList<>();
+		for (PublishBatchRequestEntry entry : request.getPublishBatchRequestEntries()) {
+			successful.add(new PublishBatchResultEntry().withId(entry.getId()).withMessageId(UUID.randomUUID().toString()));
+		}
+		published.addAndGet(successful.size());
+		return new PublishBatchResult().withSuccessful(successful);
+	}
+
+	@Override
+	public void shutdown() {
+	}
+
+	private void simulateLatency() {
+		if (latencyNanos > 0) {
+			LockSupport.parkNanos(latencyNanos);
+		}
+	}
+}
@@ -0,0 +1,21 @@
+package com.vordel.circuit;
+
+/**
+ * Benchmark stand-in for a circuit abort.
+ */
+public class CircuitAbortException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	public CircuitAbortException(String message) {
+		super(message);
+	}
+
+	public CircuitAbortException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+	public CircuitAbortException(Throwable cause) {
+		super(cause);
+	}
+}
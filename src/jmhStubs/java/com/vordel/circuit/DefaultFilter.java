@@ -0,0 +1,26 @@
+package com.vordel.circuit;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import com.vordel.common.util.PropDef;
+import com.vordel.config.ConfigContext;
+import com.vordel.es.Entity;
+import com.vordel.es.EntityStoreException;
+
+/**
+ * Benchmark stand-in for the gateway filter base class.
+ */
+public abstract class DefaultFilter {
+
+	protected final Set<PropDef> reqProps = new HashSet<>();
+	protected final Set<PropDef> genProps = new HashSet<>();
+
+	protected abstract void setDefaultPropertyDefs();
+
+	public void configure(ConfigContext ctx, Entity entity) throws EntityStoreException {
+		setDefaultPropertyDefs();
+	}
+
+	public abstract Class<?> getMessageProcessorClass();
+}
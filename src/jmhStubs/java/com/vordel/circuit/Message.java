@@ -0,0 +1,11 @@
+package com.vordel.circuit;
+
+import java.util.HashMap;
+
+/**
+ * Benchmark stand-in for a gateway message: a map of message properties.
+ */
+public class Message extends HashMap<String, Object> {
+
+	private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,20 @@
+package com.vordel.circuit;
+
+import com.vordel.config.Circuit;
+import com.vordel.config.ConfigContext;
+import com.vordel.es.Entity;
+import com.vordel.es.EntityStoreException;
+
+/**
+ * Benchmark stand-in for the gateway message processor base class.
+ */
+public abstract class MessageProcessor {
+
+	public void filterAttached(ConfigContext ctx, Entity entity) throws EntityStoreException {
+	}
+
+	public void filterDetached() {
+	}
+
+	public abstract boolean invoke(Circuit circuit, Message message) throws CircuitAbortException;
+}
@@ -0,0 +1,20 @@
+package com.vordel.circuit.aws;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.vordel.config.ConfigContext;
+import com.vordel.es.Entity;
+import com.vordel.es.EntityStoreException;
+
+/**
+ * Benchmark stand-in for the gateway AWS factory: there are no stored credentials, so the filter
+ * falls back to the default provider chain (never called by the stub clients).
+ */
+public final class AWSFactory {
+
+	private AWSFactory() {
+	}
+
+	public static AWSCredentials getCredentials(ConfigContext ctx, Entity entity) {
+		throw new EntityStoreException("No AWS credentials in benchmarks");
+	}
+}
@@ -0,0 +1,23 @@
+package com.vordel.common.util;
+
+/**
+ * Benchmark stand-in for a message property definition.
+ */
+public class PropDef {
+
+	private final String name;
+	private final Class<?> type;
+
+	public PropDef(String name, Class<?> type) {
+		this.name = name;
+		this.type = type;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Class<?> getType() {
+		return type;
+	}
+}
@@ -0,0 +1,7 @@
+package com.vordel.config;
+
+/**
+ * Benchmark stand-in for a gateway policy circuit.
+ */
+public class Circuit {
+}
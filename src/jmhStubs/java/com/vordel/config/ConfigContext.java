@@ -0,0 +1,25 @@
+package com.vordel.config;
+
+import com.vordel.es.ESPK;
+import com.vordel.es.Entity;
+
+/**
+ * Benchmark stand-in for the gateway configuration context: there is no entity store, so
+ * references resolve to null and secrets are returned as stored.
+ */
+public class ConfigContext {
+
+	public Entity getEntity(ESPK pk) {
+		return null;
+	}
+
+	public Cipher getCipher() {
+		return new Cipher();
+	}
+
+	public static class Cipher {
+		public byte[] decrypt(byte[] data) {
+			return data;
+		}
+	}
+}
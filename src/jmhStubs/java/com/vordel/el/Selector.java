@@ -0,0 +1,78 @@
+package com.vordel.el;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Benchmark stand-in for the gateway selector: ${name} is looked up as a message property key and
+ * literal text is kept, which covers the expressions used in benchmark configurations.
+ */
+public class Selector<T> {
+
+	private final String literal;
+	private final Class<T> type;
+	/** Literal text and property keys, alternating, starting with literal text */
+	private final List<String> parts = new ArrayList<>();
+
+	public Selector(String expression, Class<T> type) {
+		this.literal = expression;
+		this.type = type;
+		String text = expression != null ? expression : "";
+		int position = 0;
+		int start;
+		while ((start = text.indexOf("${", position)) >= 0) {
+			int end = text.indexOf('}', start);
+			if (end < 0) {
+				break;
+			}
+			parts.add(text.substring(position, start));
+			parts.add(text.substring(start + 2, end).trim());
+			position = end + 1;
+		}
+		parts.add(text.substring(position));
+	}
+
+	public String getLiteral() {
+		return literal;
+	}
+
+	public T substitute(Map<?, ?> properties) {
+		if (literal == null) {
+			return null;
+		}
+		Object value;
+		if (parts.size() == 3 && parts.get(0).isEmpty() && parts.get(2).isEmpty()) {
+			// A single expression keeps the property value, including null when missing
+			value = properties != null ? properties.get(parts.get(1)) : null;
+		} else {
+			StringBuilder text = new StringBuilder();
+			for (int i = 0; i < parts.size(); i++) {
+				if (i % 2 == 0) {
+					text.append(parts.get(i));
+				} else {
+					Object property = properties != null ? properties.get(parts.get(i)) : null;
+					if (property != null) {
+						text.append(property);
+					}
+				}
+			}
+			value = text.toString();
+		}
+		return convert(value);
+	}
+
+	private T convert(Object value) {
+		if (value == null || type.isInstance(value)) {
+			return type.cast(value);
+		}
+		String text = value.toString().trim();
+		if (type == Integer.class) {
+			return text.isEmpty() ? null : type.cast(Integer.valueOf(text));
+		}
+		if (type == Boolean.class) {
+			return type.cast(Boolean.valueOf(text));
+		}
+		return type.cast(value.toString());
+	}
+}
@@ -0,0 +1,7 @@
+package com.vordel.es;
+
+/**
+ * Benchmark stand-in for an entity store primary key.
+ */
+public interface ESPK {
+}
@@ -0,0 +1,46 @@
+package com.vordel.es;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Benchmark stand-in for a filter configuration entity, holding field values as strings.
+ */
+public class Entity {
+
+	private final Map<String, String> fields = new HashMap<>();
+
+	public void setStringField(String field, String value) {
+		fields.put(field, value);
+	}
+
+	public boolean containsKey(String field) {
+		return fields.containsKey(field);
+	}
+
+	public String getStringValue(String field) {
+		return fields.get(field);
+	}
+
+	public Integer getIntegerValue(String field) {
+		String value = fields.get(field);
+		return value != null ? Integer.valueOf(value.trim()) : null;
+	}
+
+	public boolean getBooleanValue(String field) {
+		String value = fields.get(field);
+		return "1".equals(value) || Boolean.parseBoolean(value);
+	}
+
+	public ESPK getReferenceValue(String field) {
+		return null;
+	}
+
+	public byte[] getEncryptedValue(String field) {
+		return null;
+	}
+
+	public ESPK getPK() {
+		return null;
+	}
+}
@@ -0,0 +1,13 @@
+package com.vordel.es;
+
+/**
+ * Benchmark stand-in for entity store failures.
+ */
+public class EntityStoreException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public EntityStoreException(String message) {
+		super(message);
+	}
+}
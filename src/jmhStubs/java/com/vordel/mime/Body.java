@@ -0,0 +1,25 @@
+package com.vordel.mime;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Benchmark stand-in for a message body.
+ */
+public abstract class Body {
+
+	/** Stream or write the content without its Content-Transfer-Encoding */
+	public static final int WRITE_NO_CTE = 0x1;
+
+	private ContentType contentType;
+
+	public ContentType getContentType() {
+		return contentType;
+	}
+
+	public void setContentType(ContentType contentType) {
+		this.contentType = contentType;
+	}
+
+	public abstract InputStream getInputStream(int flags) throws IOException;
+}
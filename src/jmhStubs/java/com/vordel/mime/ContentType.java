@@ -0,0 +1,20 @@
+package com.vordel.mime;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Benchmark stand-in for a parsed Content-Type header.
+ */
+public class ContentType {
+
+	private final Map<String, String> parameters = new HashMap<>();
+
+	public String getParameter(String name) {
+		return parameters.get(name.toLowerCase());
+	}
+
+	public void setParameter(String name, String value) {
+		parameters.put(name.toLowerCase(), value);
+	}
+}
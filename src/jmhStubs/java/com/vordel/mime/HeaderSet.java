@@ -0,0 +1,7 @@
+package com.vordel.mime;
+
+/**
+ * Benchmark stand-in for HTTP headers.
+ */
+public class HeaderSet {
+}
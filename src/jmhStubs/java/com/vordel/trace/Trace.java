@@ -0,0 +1,36 @@
+package com.vordel.trace;
+
+/**
+ * Benchmark stand-in for the gateway trace: all levels are discarded, so benchmarks measure the
+ * filter and not the trace output. Set -Djmh.trace=true to print errors to stderr.
+ */
+public final class Trace {
+
+	private static final boolean errors = Boolean.getBoolean("jmh.trace");
+
+	private Trace() {
+	}
+
+	public static void fatal(String message) {
+		error(message);
+	}
+
+	public static void error(String message) {
+		if (errors) {
+			System.err.println(message);
+		}
+	}
+
+	public static void error(String message, Throwable t) {
+		error(message + ": " + t);
+	}
+
+	public static void info(String message) {
+	}
+
+	public static void debug(String message) {
+	}
+
+	public static void debug(String message, Throwable t) {
+	}
+}
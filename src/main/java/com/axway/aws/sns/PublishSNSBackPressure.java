@@ -0,0 +1,21 @@
+package com.axway.aws.sns;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Back-pressure policies of the asynchronous publish mode
+ */
+public class PublishSNSBackPressure {
+
+    public static Map<String, String> backPressure;
+
+    static {
+        Map<String, String> init = new LinkedHashMap<>();
+        init.put("block", "Block");
+        init.put("reject", "Reject");
+        init.put("fail", "Fail");
+        backPressure = Collections.unmodifiableMap(init);
+    }
+}
@@ -0,0 +1,21 @@
+package com.axway.aws.sns;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * How much the filter traces per publish
+ */
+public class PublishSNSDiagnosticsLevel {
+
+    public static Map<String, String> diagnosticsLevel;
+
+    static {
+        Map<String, String> init = new LinkedHashMap<>();
+        init.put("off", "Errors only");
+        init.put("summary", "One summary line per publish");
+        init.put("detail", "Summary and sampled request details");
+        diagnosticsLevel = Collections.unmodifiableMap(init);
+    }
+}
@@ -0,0 +1,20 @@
+package com.axway.aws.sns;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Outcome of a message published to several topics
+ */
+public class PublishSNSFanOutPolicy {
+
+    public static Map<String, String> fanOutPolicy;
+
+    static {
+        Map<String, String> init = new LinkedHashMap<>();
+        init.put("all", "All topics must succeed");
+        init.put("any", "Any topic succeeds");
+        fanOutPolicy = Collections.unmodifiableMap(init);
+    }
+}
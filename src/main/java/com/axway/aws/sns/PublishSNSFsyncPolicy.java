@@ -0,0 +1,21 @@
+package com.axway.aws.sns;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Fsync policies of the local outbox
+ */
+public class PublishSNSFsyncPolicy {
+
+    public static Map<String, String> fsyncPolicy;
+
+    static {
+        Map<String, String> init = new LinkedHashMap<>();
+        init.put("always", "After every message");
+        init.put("interval", "Every second");
+        init.put("never", "Operating system");
+        fsyncPolicy = Collections.unmodifiableMap(init);
+    }
+}
@@ -17,6 +17,13 @@ public class PublishSNSMessageFilter extends DefaultFilter {
 		genProps.add(new PropDef("aws.sns.http.status.code",Integer.class));
 		genProps.add(new PropDef("aws.sns.error.code", String.class));
 		genProps.add(new PropDef("aws.sns.request.id", String.class));
+		genProps.add(new PropDef("aws.sns.sequence.number", String.class));
+		genProps.add(new PropDef("aws.sns.deferred", Boolean.class));
+		genProps.add(new PropDef("aws.sns.duplicate", Boolean.class));
+		genProps.add(new PropDef("aws.sns.fanout.count", Integer.class));
+		genProps.add(new PropDef("aws.sns.fanout.failed", Integer.class));
+		genProps.add(new PropDef("aws.sns.publish.latency", Long.class));
+		genProps.add(new PropDef("aws.sns.publish.attempts", Integer.class));
 	}
 
 	@Override
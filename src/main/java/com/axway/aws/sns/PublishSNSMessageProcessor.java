@@ -1,5 +1,6 @@
 package com.axway.aws.sns;
 
+import java.io.IOException;
 import java.security.GeneralSecurityException;
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.ClientConfiguration;
@@ -11,11 +12,26 @@ import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
 import com.amazonaws.auth.profile.ProfileCredentialsProvider;
 import com.amazonaws.auth.WebIdentityTokenCredentialsProvider;
 import com.amazonaws.services.sns.AmazonSNS;
+import com.amazonaws.services.sns.AmazonSNSAsync;
+import com.amazonaws.services.sns.AmazonSNSAsyncClientBuilder;
 import com.amazonaws.services.sns.AmazonSNSClientBuilder;
 import com.amazonaws.services.sns.model.MessageAttributeValue;
 import com.amazonaws.services.sns.model.PublishRequest;
 import com.amazonaws.services.sns.model.PublishResult;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import com.vordel.circuit.CircuitAbortException;
 import com.vordel.circuit.Message;
 import com.vordel.circuit.MessageProcessor;
@@ -23,11 +39,11 @@ import com.vordel.circuit.aws.AWSFactory;
 import com.vordel.config.Circuit;
 import com.vordel.config.ConfigContext;
 import com.vordel.el.Selector;
+import com.vordel.es.ESPK;
 import com.vordel.es.Entity;
 import com.vordel.es.EntityStoreException;
 import com.vordel.trace.Trace;
 import com.axway.aws.sns.SNSMessageJsonHelper;
-import com.axway.aws.sns.SNSMessageAttributesHelper;
 
 /**
  * AWS SNS Message Publisher with optimized IAM Role support
@@ -49,19 +65,86 @@ public class PublishSNSMessageProcessor extends MessageProcessor {
 	protected Selector<String> messageSubject;
 	protected Selector<String> messageStructure;
 	protected Selector<String> messageAttributes;
+	// FIFO topics: message group and deduplication IDs
+	protected Selector<String> messageGroupId;
+	protected Selector<String> messageDeduplicationId;
+	// Compiled form of the configured message attributes, null when it only parses after substitution
+	protected SNSMessageAttributesTemplate messageAttributesTemplate;
+	// Per-protocol envelope for JSON message structure, null when no protocol message is configured
+	protected SNSMessageEnvelope messageEnvelope;
+	protected Selector<Integer> maxRetries;
 	protected Selector<Integer> retryDelay;
 	protected Selector<String> credentialType;
 	protected Selector<Boolean> useIAMRole;
 	protected Selector<String> awsCredential;
 	protected Selector<String> clientConfiguration;
 	protected Selector<String> credentialsFilePath;
+	// Per-message settings compiled once: literal fields resolved, prebuilt request template
+	protected SNSPublishTemplate publishTemplate;
 	
-	// SNS client builder (following Lambda pattern)
-	protected AmazonSNSClientBuilder snsClientBuilder;
+	// Credentials and client configuration used to obtain shared SNS clients
+	protected AWSCredentialsProvider credentialsProvider;
+	protected ClientConfiguration snsClientConfiguration;
+	protected String credentialsIdentity;
+	
+	protected String clientConfigurationId;
+	
+	// Shared SNS clients leased from SNSClientRegistry by this filter
+	private final Map<SNSClientRegistry.ClientKey, AmazonSNS> leasedClients = new ConcurrentHashMap<>();
+	
+	// Asynchronous (fire-and-forget) publish mode
+	protected boolean asyncMode;
+	protected SNSAsyncDispatcher asyncDispatcher;
+	protected long asyncDrainTimeout = 30000;
+	
+	// Cross-request micro-batching through PublishBatch
+	protected SNSPublishBatcher batcher;
+	
+	// Per message group ordering of FIFO publishes (null when no message group ID is configured)
+	protected SNSOrderedDispatcher orderedDispatcher;
+	
+	// Durable local outbox for publishes that cannot be delivered, and the handler replaying its entries
+	protected SNSOutbox outbox;
+	private SNSOutbox.ReplayHandler outboxReplayHandler;
+	
+	// Publish metrics by topic, exposed over JMX; null when disabled
+	protected SNSMetrics metrics;
+	protected boolean metricsMessageAttributes;
+	
+	// Circuit breaker (null when disabled)
+	protected SNSCircuitBreaker circuitBreaker;
+	
+	// Client-side rate limiting (null when disabled)
+	protected SNSRateLimiter rateLimiter;
+	protected SNSAsyncDispatcher.BackPressure rateLimitBackPressure;
+	protected long rateLimitTimeout = SNSRateLimiter.DEFAULT_TIMEOUT_MILLIS;
+	
+	// Payload compression, offload and size check
+	protected SNSPayloadCodec payloadCodec;
+	
+	// Whether a message published to several topics succeeds once any topic has accepted it
+	protected boolean fanOutAnySucceeds;
+	
+	// Suppression of publishes already sent (null when disabled); a null key selector hashes the payload
+	protected SNSIdempotencyWindow idempotencyWindow;
+	protected Selector<String> idempotencyKey;
+	
+	// Publish through the non-blocking SDK v2 NIO client instead of the SDK v1 one
+	protected boolean nioTransport;
+	
+	// Background warm-up started when attached (null when disabled)
+	protected SNSWarmup warmup;
+	
+	// Summary line per publish and sampled request details
+	protected SNSDiagnostics diagnostics;
+	
+	// Identity of the filter across deployments, and the components it holds in SNSFilterComponents
+	protected String filterKey;
+	private final Map<String, SNSFilterComponents.Lease<?>> componentLeases = new LinkedHashMap<>();
+	
+	// Publishes of this instance not completed yet, waited for on detach before the clients are released
+	private final AtomicInteger inFlight = new AtomicInteger();
 	
-	// Content body selector
-	private Selector<String> contentBody = new Selector<>("${content.body}", String.class);
-
 	public PublishSNSMessageProcessor() {
 	}
 
@@ -75,18 +158,167 @@ public class PublishSNSMessageProcessor extends MessageProcessor {
 		this.messageSubject = new Selector(entity.getStringValue("messageSubject"), String.class);
 		this.messageStructure = new Selector(entity.getStringValue("messageStructure"), String.class);
 		this.messageAttributes = new Selector(entity.getStringValue("messageAttributes"), String.class);
+		String messageGroupIdValue = getStringField(entity, "messageGroupId");
+		String messageDeduplicationIdValue = getStringField(entity, "messageDeduplicationId");
+		this.messageGroupId = new Selector(messageGroupIdValue != null ? messageGroupIdValue : "", String.class);
+		this.messageDeduplicationId = new Selector(messageDeduplicationIdValue != null ? messageDeduplicationIdValue : "", String.class);
+		Map<String, String> protocolMessages = new HashMap<>();
+		for (Map.Entry<String, String> protocol : SNSMessageEnvelope.PROTOCOL_FIELDS.entrySet()) {
+			protocolMessages.put(protocol.getKey(), getStringField(entity, protocol.getValue()));
+		}
+		this.messageEnvelope = SNSMessageEnvelope.compile(protocolMessages);
+		try {
+			this.messageAttributesTemplate = SNSMessageAttributesTemplate.forTemplate(entity.getStringValue("messageAttributes"));
+		} catch (IllegalArgumentException e) {
+			// Reported again on every message by the parsing fallback
+			Trace.error("Invalid message attributes: " + e.getMessage());
+			this.messageAttributesTemplate = null;
+		}
+		this.maxRetries = new Selector(entity.getStringValue("maxRetries") != null ? entity.getStringValue("maxRetries") : "3", Integer.class);
 		this.retryDelay = new Selector(entity.getStringValue("retryDelay"), Integer.class);
 		this.credentialType = new Selector(entity.getStringValue("credentialType"), String.class);
 		this.useIAMRole = new Selector(entity.getStringValue("useIAMRole"), Boolean.class);
 		this.awsCredential = new Selector(entity.getStringValue("awsCredential"), String.class);
 		this.clientConfiguration = new Selector(entity.getStringValue("clientConfiguration"), String.class);
 		this.credentialsFilePath = new Selector(entity.getStringValue("credentialsFilePath") != null ? entity.getStringValue("credentialsFilePath") : "", String.class);
+		this.publishTemplate = SNSPublishTemplate.compile(topicArn.getLiteral(), awsRegion.getLiteral(),
+			messageSubject.getLiteral(), messageStructure.getLiteral(), messageGroupId.getLiteral(),
+			messageDeduplicationId.getLiteral(), maxRetries.getLiteral(), retryDelay.getLiteral());
 		
 		// Get client configuration (following Lambda pattern exactly)
 		Entity clientConfig = ctx.getEntity(entity.getReferenceValue("clientConfiguration"));
 		
-		// Configure SNS client builder (following Lambda pattern)
-		this.snsClientBuilder = getSNSClientBuilder(ctx, entity, clientConfig);
+		// Resolve credentials and client configuration once; credentials are shared via SNSCredentialsCache
+		// and clients via SNSClientRegistry
+		final AWSCredentialsProvider provider = getCredentialsProvider(ctx, entity);
+		this.credentialsProvider = SNSCredentialsCache.getInstance().acquire(credentialsIdentity, () -> provider);
+		this.snsClientConfiguration = clientConfig != null ? createClientConfiguration(ctx, clientConfig) : null;
+		this.nioTransport = "nio".equalsIgnoreCase(getStringField(entity, "transport"));
+		if (nioTransport && !isNioTransportAvailable()) {
+			Trace.error("SNS NIO transport requires the AWS SDK v2 SNS and Netty NIO client libraries, using the AWS SDK client");
+			this.nioTransport = false;
+		}
+		this.clientConfigurationId = SNSClientRegistry.describe(snsClientConfiguration) + (nioTransport ? ",transport=nio" : "");
+		
+		// Components with unchanged settings are taken over from the instance this deployment replaces
+		this.filterKey = getFilterKey(entity);
+		
+		// Asynchronous mode settings
+		this.asyncMode = getBooleanField(entity, "asyncMode", false);
+		if (asyncMode) {
+			int asyncQueueSize = getIntegerField(entity, "asyncQueueSize", SNSAsyncDispatcher.DEFAULT_CAPACITY);
+			SNSAsyncDispatcher.BackPressure asyncBackPressure =
+				SNSAsyncDispatcher.BackPressure.fromValue(getStringField(entity, "asyncBackPressure"));
+			int asyncBlockTimeout = getIntegerField(entity, "asyncBlockTimeout", (int) SNSAsyncDispatcher.DEFAULT_BLOCK_TIMEOUT_MILLIS);
+			final long drainTimeout = asyncDrainTimeout;
+			this.asyncDispatcher = acquireComponent("asyncDispatcher",
+				asyncQueueSize + "," + asyncBackPressure + "," + asyncBlockTimeout,
+				() -> new SNSAsyncDispatcher(asyncQueueSize, asyncBackPressure, asyncBlockTimeout),
+				dispatcher -> dispatcher.drain(drainTimeout));
+		}
+		
+		// Micro-batching settings
+		if (getBooleanField(entity, "batchEnabled", false)) {
+			int batchMaxEntries = getIntegerField(entity, "batchMaxEntries", SNSPublishBatcher.MAX_BATCH_ENTRIES);
+			int batchLinger = getIntegerField(entity, "batchLinger", (int) SNSPublishBatcher.DEFAULT_LINGER_MILLIS);
+			this.batcher = acquireComponent("batcher", batchMaxEntries + "," + batchLinger,
+				() -> new SNSPublishBatcher(batchMaxEntries, batchLinger), SNSPublishBatcher::flushAll);
+		}
+		
+		// FIFO ordering settings, batching same-group publishes when batching is enabled
+		if (publishTemplate.hasMessageGroupId()) {
+			int orderedWorkers = getIntegerField(entity, "orderedWorkers", SNSOrderedDispatcher.DEFAULT_WORKERS);
+			int orderedBatchEntries = batcher != null ? batcher.getMaxEntries() : 1;
+			this.orderedDispatcher = acquireComponent("orderedDispatcher", orderedWorkers + "," + orderedBatchEntries,
+				() -> new SNSOrderedDispatcher(orderedWorkers, orderedBatchEntries), SNSOrderedDispatcher::shutdown);
+		}
+		
+		// Metrics settings
+		if (getBooleanField(entity, "metricsEnabled", false)) {
+			String metricsName = getStringField(entity, "name");
+			this.metrics = acquireComponent("metrics", String.valueOf(metricsName),
+				() -> new SNSMetrics(metricsName, true), SNSMetrics::close);
+		}
+		this.metricsMessageAttributes = getBooleanField(entity, "metricsMessageAttributes", false);
+		
+		// Circuit breaker settings
+		if (getBooleanField(entity, "circuitBreakerEnabled", false)) {
+			int failureRate = getIntegerField(entity, "circuitBreakerFailureRate", SNSCircuitBreaker.DEFAULT_FAILURE_RATE);
+			int slowCallRate = getIntegerField(entity, "circuitBreakerSlowCallRate", SNSCircuitBreaker.DEFAULT_SLOW_CALL_RATE);
+			int slowCallDuration = getIntegerField(entity, "circuitBreakerSlowCallDuration",
+				SNSCircuitBreaker.DEFAULT_SLOW_CALL_DURATION_MILLIS);
+			int windowSize = getIntegerField(entity, "circuitBreakerWindowSize", SNSCircuitBreaker.DEFAULT_WINDOW_SIZE);
+			int minimumCalls = getIntegerField(entity, "circuitBreakerMinimumCalls", SNSCircuitBreaker.DEFAULT_MINIMUM_CALLS);
+			int openDuration = getIntegerField(entity, "circuitBreakerOpenDuration", SNSCircuitBreaker.DEFAULT_OPEN_DURATION_MILLIS);
+			int halfOpenCalls = getIntegerField(entity, "circuitBreakerHalfOpenCalls", SNSCircuitBreaker.DEFAULT_HALF_OPEN_CALLS);
+			this.circuitBreaker = acquireComponent("circuitBreaker", failureRate + "," + slowCallRate + "," + slowCallDuration
+					+ "," + windowSize + "," + minimumCalls + "," + openDuration + "," + halfOpenCalls,
+				() -> new SNSCircuitBreaker(failureRate, slowCallRate, slowCallDuration, windowSize, minimumCalls,
+					openDuration, halfOpenCalls), null);
+		}
+		
+		// Rate limiting settings
+		int rateLimit = getIntegerField(entity, "rateLimit", 0);
+		int rateLimitBurst = getIntegerField(entity, "rateLimitBurst", Math.max(1, rateLimit));
+		int adaptiveConcurrencyMax = getBooleanField(entity, "adaptiveConcurrency", false)
+			? getIntegerField(entity, "adaptiveConcurrencyMax", SNSRateLimiter.DEFAULT_MAX_CONCURRENCY) : 0;
+		int adaptiveLatencyThreshold = getIntegerField(entity, "adaptiveLatencyThreshold",
+			SNSRateLimiter.DEFAULT_LATENCY_THRESHOLD_MILLIS);
+		SNSRateLimiter limiter = new SNSRateLimiter(rateLimit, rateLimitBurst, adaptiveConcurrencyMax, adaptiveLatencyThreshold);
+		if (limiter.isEnabled()) {
+			this.rateLimiter = acquireComponent("rateLimiter",
+				rateLimit + "," + rateLimitBurst + "," + adaptiveConcurrencyMax + "," + adaptiveLatencyThreshold,
+				() -> limiter, null);
+			this.rateLimitBackPressure = SNSAsyncDispatcher.BackPressure.fromValue(getStringField(entity, "rateLimitBackPressure"));
+			this.rateLimitTimeout = getIntegerField(entity, "rateLimitTimeout", SNSRateLimiter.DEFAULT_TIMEOUT_MILLIS);
+		}
+		
+		// Payload settings
+		SNSFileBlobStore blobStore = null;
+		if (getBooleanField(entity, "payloadOffloadEnabled", false)) {
+			String blobDirectory = getStringField(entity, "payloadOffloadDirectory");
+			try {
+				blobStore = new SNSFileBlobStore(blobDirectory != null ? blobDirectory : "sns-blobs");
+			} catch (IOException e) {
+				Trace.error("Unable to open SNS blob store, continuing without offload: " + e.getMessage());
+			}
+		}
+		this.payloadCodec = new SNSPayloadCodec("gzip".equalsIgnoreCase(getStringField(entity, "payloadCompression")),
+			getIntegerField(entity, "payloadCompressionThreshold", SNSPayloadCodec.DEFAULT_COMPRESSION_THRESHOLD),
+			blobStore, getIntegerField(entity, "payloadOffloadThreshold", SNSPayloadCodec.MAX_PAYLOAD_BYTES));
+		
+		this.fanOutAnySucceeds = "any".equalsIgnoreCase(getStringField(entity, "fanOutPolicy"));
+		
+		// Idempotency settings
+		if (getBooleanField(entity, "idempotencyEnabled", false)) {
+			String idempotencyKeyValue = getStringField(entity, "idempotencyKey");
+			this.idempotencyKey = idempotencyKeyValue != null ? new Selector<>(idempotencyKeyValue, String.class) : null;
+			int idempotencyWindowSeconds = getIntegerField(entity, "idempotencyWindow", SNSIdempotencyWindow.DEFAULT_WINDOW_SECONDS);
+			int idempotencyMaxEntries = getIntegerField(entity, "idempotencyMaxEntries", SNSIdempotencyWindow.DEFAULT_MAX_ENTRIES);
+			this.idempotencyWindow = acquireComponent("idempotencyWindow", idempotencyWindowSeconds + "," + idempotencyMaxEntries,
+				() -> new SNSIdempotencyWindow(idempotencyWindowSeconds, idempotencyMaxEntries), null);
+		}
+		
+		// Outbox settings
+		if (getBooleanField(entity, "outboxEnabled", false)) {
+			String outboxDirectory = getStringField(entity, "outboxDirectory");
+			try {
+				this.outbox = SNSOutbox.acquire(outboxDirectory != null ? outboxDirectory : "sns-outbox", credentialsIdentity,
+					getIntegerField(entity, "outboxSegmentSize", 64) * 1024L * 1024L,
+					SNSOutbox.FsyncPolicy.fromValue(getStringField(entity, "outboxFsyncPolicy")),
+					getIntegerField(entity, "outboxRetentionHours", SNSOutbox.DEFAULT_RETENTION_HOURS));
+				this.outboxReplayHandler = entry -> getSNSClient(entry.getRegion()).publish(entry.toPublishRequest());
+				this.outbox.addReplayHandler(outboxReplayHandler);
+			} catch (IOException e) {
+				Trace.error("Unable to open SNS outbox, continuing without it: " + e.getMessage());
+				this.outbox = null;
+			}
+		}
+		
+		// Diagnostics settings
+		this.diagnostics = new SNSDiagnostics(SNSDiagnostics.Level.fromValue(getStringField(entity, "diagnosticsLevel")),
+			getIntegerField(entity, "diagnosticsSampleRate", SNSDiagnostics.DEFAULT_SAMPLE_RATE),
+			getIntegerField(entity, "diagnosticsPayloadLength", SNSDiagnostics.DEFAULT_PAYLOAD_LENGTH));
 		
 		Trace.info("=== SNS Configuration (Following Lambda Pattern) ===");
 		Trace.info("Topic ARN: " + (topicArn != null ? topicArn.getLiteral() : "dynamic"));
@@ -94,38 +326,302 @@ public class PublishSNSMessageProcessor extends MessageProcessor {
 		Trace.info("Message Subject: " + (messageSubject != null ? messageSubject.getLiteral() : "dynamic"));
 		Trace.info("Message Structure: " + (messageStructure != null ? messageStructure.getLiteral() : "dynamic"));
 		Trace.info("Message Attributes: " + (messageAttributes != null ? messageAttributes.getLiteral() : "dynamic"));
+		Trace.info("Max Retries: " + (maxRetries != null ? maxRetries.getLiteral() : "dynamic"));
 		Trace.info("Retry Delay: " + (retryDelay != null ? retryDelay.getLiteral() : "dynamic"));
 		Trace.info("Credential Type: " + (credentialType != null ? credentialType.getLiteral() : "dynamic"));
 		Trace.info("Use IAM Role: " + (useIAMRole != null ? useIAMRole.getLiteral() : "false"));
 		Trace.info("AWS Credential: " + (awsCredential != null ? awsCredential.getLiteral() : "dynamic"));
 		Trace.info("Client Configuration: " + (clientConfiguration != null ? clientConfiguration.getLiteral() : "dynamic"));
 		Trace.info("Credentials File Path: " + (credentialsFilePath != null ? credentialsFilePath.getLiteral() : "dynamic"));
+		Trace.info("Publish Template: " + publishTemplate.describe());
+		Trace.info("Fan-out Policy: " + (fanOutAnySucceeds ? "any topic" : "all topics"));
 		Trace.info("Client Config Entity: " + (clientConfig != null ? "configured" : "default"));
+		Trace.info("Transport: " + (nioTransport ? "non-blocking NIO client" : "AWS SDK client"));
+		Trace.info("Async Mode: " + asyncMode + (asyncDispatcher != null
+			? " (queue size " + asyncDispatcher.getCapacity() + ", back-pressure " + asyncDispatcher.getBackPressure() + ")"
+			: ""));
+		Trace.info("Batching: " + (batcher != null
+			? "up to " + batcher.getMaxEntries() + " entries, linger " + batcher.getLingerMillis() + "ms"
+			: "disabled"));
+		Trace.info("Payload: " + payloadCodec.describe() + (blobStore != null
+			? " to " + blobStore.getDirectory() : ""));
+		Trace.info("Message Group ID: " + (messageGroupId.getLiteral().isEmpty() ? "none" : messageGroupId.getLiteral())
+			+ (orderedDispatcher != null ? " (ordered per group, " + orderedDispatcher.getWorkers() + " workers"
+				+ (orderedDispatcher.getMaxBatchEntries() > 1 ? ", batches of " + orderedDispatcher.getMaxBatchEntries() : "")
+				+ ")" : ""));
+		Trace.info("Message Deduplication ID: " + (messageDeduplicationId.getLiteral().isEmpty()
+			? "none" : messageDeduplicationId.getLiteral()));
+		Trace.info("Outbox: " + (outbox != null ? outbox.getDirectory() : "disabled"));
+		Trace.info("Idempotency: " + (idempotencyWindow != null ? idempotencyWindow.describe() + ", keyed by "
+			+ (idempotencyKey != null ? idempotencyKey.getLiteral() : "payload hash") : "disabled"));
+		Trace.info("Rate Limit: " + (rateLimiter != null
+			? rateLimiter.describe() + ", " + rateLimitBackPressure + " up to " + rateLimitTimeout + "ms"
+			: "disabled"));
+		Trace.info("Circuit Breaker: " + (circuitBreaker != null ? circuitBreaker.describe() : "disabled"));
+		Trace.info("Metrics: " + (metrics != null ? "JMX" : "disabled")
+			+ (metricsMessageAttributes ? ", message attributes" : ""));
+		Trace.info("Diagnostics: " + diagnostics.describe());
+		
+		// The clients of a running instance with the same settings are pooled already: nothing to warm up
+		acquireComponent("clients", publishTemplate.getLiteralRegion() + "," + credentialsIdentity + ","
+			+ SNSClientRegistry.digest(clientConfigurationId), () -> Boolean.TRUE, null);
+		boolean clientsReused = componentLeases.get("clients").isReused();
+		Trace.info("Components: " + describeComponents());
+		
+		// Warm-up settings: started last, once every setting the clients depend on is known
+		if (getBooleanField(entity, "warmupEnabled", false) && !clientsReused) {
+			List<String> warmupTopics = publishTemplate.getLiteralTopicArns();
+			// The client the filter publishes with: asynchronous for async mode, fan-out and the NIO transport
+			boolean asyncClient = asyncDispatcher != null || nioTransport
+				|| (warmupTopics != null && warmupTopics.size() > 1);
+			this.warmup = new SNSWarmup(getStringField(entity, "name"), publishTemplate.getLiteralRegion(),
+				warmupTopics != null && !warmupTopics.isEmpty() ? warmupTopics.get(0) : null, credentialsProvider,
+				region -> asyncClient ? getSNSAsyncClient(region) : getSNSClient(region),
+				getIntegerField(entity, "warmupConnections", SNSWarmup.DEFAULT_CONNECTIONS),
+				getBooleanField(entity, "warmupCall", false));
+			this.warmup.start();
+		}
+		Trace.info("Warm-up: " + (warmup != null ? "started in the background"
+			: clientsReused ? "skipped, clients taken over from the running configuration" : "disabled"));
 	}
 
 	/**
-	 * Creates SNS client builder following Lambda pattern exactly
+	 * Identity of the filter across deployments: its entity primary key, which is the path of the
+	 * filter in the configuration, or its name when the entity has none.
 	 */
-	private AmazonSNSClientBuilder getSNSClientBuilder(ConfigContext ctx, Entity entity, Entity clientConfig) 
-			throws EntityStoreException {
+	private static String getFilterKey(Entity entity) {
+		ESPK pk = entity.getPK();
+		return pk != null ? pk.toString() : "name:" + getStringField(entity, "name");
+	}
+
+	/**
+	 * Takes over the component of the running instance of this filter when its settings are unchanged,
+	 * or builds a new one. The component is released on detach.
+	 */
+	private <T> T acquireComponent(String component, String settings, Supplier<? extends T> factory,
+			Consumer<? super T> closer) {
+		SNSFilterComponents.Lease<T> lease = SNSFilterComponents.getInstance().acquire(filterKey, component, settings,
+			factory, closer);
+		componentLeases.put(component, lease);
+		return lease.get();
+	}
+
+	private void releaseComponent(String component) {
+		SNSFilterComponents.Lease<?> lease = componentLeases.remove(component);
+		if (lease != null) {
+			lease.release();
+		}
+	}
+
+	private String describeComponents() {
+		List<String> kept = new ArrayList<>();
+		List<String> built = new ArrayList<>();
+		for (Map.Entry<String, SNSFilterComponents.Lease<?>> lease : componentLeases.entrySet()) {
+			(lease.getValue().isReused() ? kept : built).add(lease.getKey());
+		}
+		if (kept.isEmpty() && built.isEmpty()) {
+			return "none";
+		}
+		return (kept.isEmpty() ? "" : "kept " + kept + (built.isEmpty() ? "" : ", "))
+			+ (built.isEmpty() ? "" : "built " + built);
+	}
+
+	/**
+	 * Waits up to the timeout for the publishes started by this instance to complete.
+	 */
+	private void awaitInFlight(long timeoutMillis) {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		synchronized (inFlight) {
+			while (inFlight.get() > 0) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					Trace.error("Timed out waiting for SNS publishes, " + inFlight.get() + " still in flight");
+					return;
+				}
+				try {
+					inFlight.wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads an optional string field, returning null when the field is not defined (older entity versions).
+	 */
+	private static String getStringField(Entity entity, String field) {
+		try {
+			String value = entity.getStringValue(field);
+			return value != null && !value.trim().isEmpty() ? value.trim() : null;
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Reads an optional integer field stored as string, falling back to the default when missing or invalid.
+	 */
+	private static int getIntegerField(Entity entity, String field, int defaultValue) {
+		String value = getStringField(entity, field);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			Trace.error("Invalid value for " + field + ": '" + value + "', using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Reads an optional boolean field, falling back to the default when the field is not defined.
+	 */
+	private static boolean getBooleanField(Entity entity, String field, boolean defaultValue) {
+		try {
+			String value = entity.getStringValue(field);
+			if (value == null || value.trim().isEmpty()) {
+				return defaultValue;
+			}
+			// Entity store booleans may be stored as "1"/"0" or "true"/"false"
+			return "1".equals(value.trim()) || Boolean.parseBoolean(value.trim());
+		} catch (Exception e) {
+			return defaultValue;
+		}
+	}
+
+	@Override
+	public void filterDetached() {
+		super.filterDetached();
+		
+		// A warm-up still running must not lease clients once they are released
+		if (warmup != null) {
+			warmup.cancel();
+		}
+		
+		// Components taken over by the instance replacing this one stay open; the last release closes
+		// them: the batcher sends whatever is still waiting for a batch
+		releaseComponent("batcher");
+		
+		// Let the publishes of this instance complete before giving the clients back; the asynchronous
+		// dispatcher, when released last, also drains the publishes it accepted
+		awaitInFlight(asyncDrainTimeout);
+		releaseComponent("asyncDispatcher");
+		releaseComponent("orderedDispatcher");
+		for (String component : new ArrayList<>(componentLeases.keySet())) {
+			releaseComponent(component);
+		}
+		
+		// The handler leases clients of this instance: remove it before they are released
+		if (outbox != null) {
+			outbox.removeReplayHandler(outboxReplayHandler);
+			outbox.release();
+		}
+		
+		if (diagnostics != null) {
+			diagnostics.close();
+		}
 		
-		// Get credentials provider based on configuration
-		AWSCredentialsProvider credentialsProvider = getCredentialsProvider(ctx, entity);
+		// Release shared clients; the registry shuts them down once no filter uses them
+		SNSClientRegistry registry = SNSClientRegistry.getInstance();
+		for (SNSClientRegistry.ClientKey key : leasedClients.keySet()) {
+			registry.release(key);
+		}
+		leasedClients.clear();
 		
-		// Create client builder with credentials and client configuration (following Lambda pattern)
+		if (credentialsProvider != null) {
+			SNSCredentialsCache.getInstance().release(credentialsIdentity);
+		}
+	}
+
+	/**
+	 * Returns the shared SNS client for the region, leasing it from SNSClientRegistry on first use.
+	 */
+	protected AmazonSNS getSNSClient(String region) {
+		if (nioTransport) {
+			// Blocking calls of the NIO client wait on its future; the client is shared with asynchronous calls
+			return getSNSAsyncClient(region);
+		}
+		return leaseClient(new SNSClientRegistry.ClientKey(region, credentialsIdentity, clientConfigurationId),
+			() -> buildSNSClient(region));
+	}
+
+	/**
+	 * Returns the shared asynchronous SNS client for the region, leasing it from SNSClientRegistry on first use.
+	 */
+	protected AmazonSNSAsync getSNSAsyncClient(String region) {
+		return (AmazonSNSAsync) leaseClient(new SNSClientRegistry.ClientKey(region, credentialsIdentity,
+			clientConfigurationId, SNSClientRegistry.ClientKey.ASYNC), () -> buildSNSAsyncClient(region));
+	}
+
+	private AmazonSNS leaseClient(SNSClientRegistry.ClientKey key, java.util.function.Supplier<AmazonSNS> factory) {
+		AmazonSNS client = leasedClients.get(key);
+		if (client == null) {
+			client = leasedClients.computeIfAbsent(key, k -> SNSClientRegistry.getInstance().acquire(k, factory));
+		}
+		return client;
+	}
+
+	/**
+	 * Builds a new SNS client for the region (following Lambda pattern). A fresh builder is used
+	 * for every client so that no builder state is shared between threads.
+	 */
+	protected AmazonSNS buildSNSClient(String region) {
 		AmazonSNSClientBuilder builder = AmazonSNSClientBuilder.standard()
-			.withCredentials(credentialsProvider);
+			.withCredentials(credentialsProvider)
+			.withRegion(region);
 		
 		// Apply client configuration if available (following Lambda pattern exactly)
-		if (clientConfig != null) {
-			ClientConfiguration clientConfiguration = createClientConfiguration(ctx, clientConfig);
-			builder.withClientConfiguration(clientConfiguration);
+		if (snsClientConfiguration != null) {
+			builder.withClientConfiguration(snsClientConfiguration);
 			Trace.info("Applied custom client configuration");
 		} else {
 			Trace.debug("Using default client configuration");
 		}
 		
-		return builder;
+		return builder.build();
+	}
+
+	/**
+	 * Builds a new asynchronous SNS client for the region, sharing credentials and client configuration
+	 * with the synchronous one.
+	 */
+	protected AmazonSNSAsync buildSNSAsyncClient(String region) {
+		if (nioTransport) {
+			return buildSNSNioClient(region);
+		}
+		AmazonSNSAsyncClientBuilder builder = AmazonSNSAsyncClientBuilder.standard()
+			.withCredentials(credentialsProvider)
+			.withRegion(region);
+		
+		if (snsClientConfiguration != null) {
+			builder.withClientConfiguration(snsClientConfiguration);
+		}
+		
+		return builder.build();
+	}
+
+	/**
+	 * Builds a new non-blocking SNS client for the region, with the same credentials and client configuration.
+	 */
+	protected AmazonSNSAsync buildSNSNioClient(String region) {
+		return new SNSNioClient(region, credentialsProvider, snsClientConfiguration);
+	}
+
+	/**
+	 * Whether the optional SDK v2 libraries of the NIO transport are on the class path. Checked here so
+	 * that SNSNioClient is never loaded without them.
+	 */
+	private static boolean isNioTransportAvailable() {
+		try {
+			Class.forName("software.amazon.awssdk.services.sns.SnsAsyncClient", false, PublishSNSMessageProcessor.class.getClassLoader());
+			Class.forName("software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient", false, PublishSNSMessageProcessor.class.getClassLoader());
+			return true;
+		} catch (ClassNotFoundException | LinkageError e) {
+			return false;
+		}
 	}
 	
 	/**
@@ -133,58 +629,54 @@ public class PublishSNSMessageProcessor extends MessageProcessor {
 	 */
 	private AWSCredentialsProvider getCredentialsProvider(ConfigContext ctx, Entity entity) throws EntityStoreException {
 		String credentialTypeValue = credentialType.getLiteral();
-		Trace.info("=== Credentials Provider Debug ===");
-		Trace.info("Credential Type Value: " + credentialTypeValue);
 		
 		if ("iam".equals(credentialTypeValue)) {
-			// Use IAM Role - WebIdentityTokenCredentialsProvider only
-			Trace.info("Using IAM Role credentials - WebIdentityTokenCredentialsProvider");
-			Trace.info("Credential Type Value: " + credentialTypeValue);
-			
-			// Debug IRSA configuration
-			Trace.info("=== IRSA Debug ===");
-			Trace.info("AWS_WEB_IDENTITY_TOKEN_FILE: " + System.getenv("AWS_WEB_IDENTITY_TOKEN_FILE"));
-			Trace.info("AWS_ROLE_ARN: " + System.getenv("AWS_ROLE_ARN"));
-			Trace.info("AWS_REGION: " + System.getenv("AWS_REGION"));
-			
-			// Use WebIdentityTokenCredentialsProvider for IAM role
-			Trace.info("✅ Using WebIdentityTokenCredentialsProvider for IAM role");
+			// Use IAM Role (IRSA) - WebIdentityTokenCredentialsProvider only
+			String roleArn = System.getenv("AWS_ROLE_ARN");
+			credentialsIdentity = "iam:" + roleArn;
+			SNSDiagnostics.credentials(credentialTypeValue, "WebIdentityTokenCredentialsProvider",
+				"roleArn=" + SNSDiagnostics.redactAccount(roleArn)
+				+ " tokenFile=" + (System.getenv("AWS_WEB_IDENTITY_TOKEN_FILE") != null ? "set" : "unset"));
 			return new WebIdentityTokenCredentialsProvider();
 		} else if ("file".equals(credentialTypeValue)) {
 			// Use credentials file
-			Trace.info("Credentials Type is 'file', checking credentialsFilePath...");
 			String filePath = credentialsFilePath.getLiteral();
-			Trace.info("File Path: " + filePath);
-			Trace.info("File Path is null: " + (filePath == null));
-			Trace.info("File Path is empty: " + (filePath != null && filePath.trim().isEmpty()));
 			if (filePath != null && !filePath.trim().isEmpty()) {
 				try {
-					Trace.info("Using AWS credentials file: " + filePath);
 					// Create ProfileCredentialsProvider with file path and default profile
+					credentialsIdentity = "file:" + filePath + ":default";
+					SNSDiagnostics.credentials(credentialTypeValue, "ProfileCredentialsProvider",
+						"file=" + filePath + " profile=default");
 					return new ProfileCredentialsProvider(filePath, "default");
 				} catch (Exception e) {
 					Trace.error("Error loading credentials file: " + e.getMessage());
-					Trace.info("Falling back to DefaultAWSCredentialsProviderChain");
-					return new DefaultAWSCredentialsProviderChain();
+					return defaultCredentialsProvider(credentialTypeValue, "file-not-loaded");
 				}
 			} else {
-				Trace.info("Credentials file path not specified, using DefaultAWSCredentialsProviderChain");
-				return new DefaultAWSCredentialsProviderChain();
+				return defaultCredentialsProvider(credentialTypeValue, "no-file-path");
 			}
 		} else {
 			// Use explicit credentials via AWSFactory (following Lambda pattern)
-			Trace.info("Using explicit AWS credentials via AWSFactory");
 			try {
 				AWSCredentials awsCredentials = AWSFactory.getCredentials(ctx, entity);
-				Trace.info("AWSFactory.getCredentials() successful");
+				// Identify explicit credentials by access key and a digest of the secret
+				credentialsIdentity = "local:" + awsCredentials.getAWSAccessKeyId() + ":"
+					+ SNSClientRegistry.digest(awsCredentials.getAWSSecretKey());
+				SNSDiagnostics.credentials(credentialTypeValue, "AWSFactory",
+					"accessKey=" + SNSDiagnostics.redactKey(awsCredentials.getAWSAccessKeyId()));
 				return getAWSCredentialsProvider(awsCredentials);
 			} catch (Exception e) {
 				Trace.error("Error getting explicit credentials: " + e.getMessage());
-				Trace.info("Falling back to DefaultAWSCredentialsProviderChain");
-				return new DefaultAWSCredentialsProviderChain();
+				return defaultCredentialsProvider(credentialTypeValue, "no-explicit-credentials");
 			}
 		}
 	}
+
+	private AWSCredentialsProvider defaultCredentialsProvider(String credentialTypeValue, String reason) {
+		credentialsIdentity = "default";
+		SNSDiagnostics.credentials(credentialTypeValue, "DefaultAWSCredentialsProviderChain", "fallback=" + reason);
+		return new DefaultAWSCredentialsProviderChain();
+	}
 	
 	/**
 	 * Creates ClientConfiguration from entity (following Lambda pattern exactly)
@@ -323,171 +815,909 @@ public class PublishSNSMessageProcessor extends MessageProcessor {
 	 * Creates AWSCredentialsProvider (following Lambda pattern)
 	 */
 	private AWSCredentialsProvider getAWSCredentialsProvider(final AWSCredentials awsCredentials) {
-		return new AWSCredentialsProvider() {
-			public AWSCredentials getCredentials() {
-				return awsCredentials;
-			}
-			public void refresh() {}
-		};
+		// Static provider: SNSCredentialsCache does not poll it
+		return new AWSStaticCredentialsProvider(awsCredentials);
 	}
 
 	@Override
 	public boolean invoke(Circuit arg0, Message msg) throws CircuitAbortException {
-		
-		if (snsClientBuilder == null) {
-			Trace.error("SNS client builder was not configured");
-			populateSnsError(msg, "SNS client builder was not configured", null);
+		// Sampled publishes are traced in detail, by this processor and by the helpers it calls
+		if (diagnostics == null || !diagnostics.begin()) {
+			return publishMessage(msg, false);
+		}
+		try {
+			return publishMessage(msg, true);
+		} finally {
+			SNSDiagnostics.end();
+		}
+	}
+
+	private boolean publishMessage(Message msg, boolean detailed) throws CircuitAbortException {
+		if (credentialsProvider == null) {
+			Trace.error("SNS client was not configured");
+			populateSnsError(msg, "SNS client was not configured", null);
 			return false;
 		}
 		
-		// Get dynamic values using selectors (following Lambda pattern)
-		String topicArnValue = topicArn.substitute(msg);
-		String regionValue = awsRegion.substitute(msg);
-		String messageSubjectValue = messageSubject.substitute(msg);
-		String messageStructureValue = messageStructure.substitute(msg);
-		String messageAttributesValue = messageAttributes.substitute(msg);
-		Integer retryDelayValue = retryDelay.substitute(msg);
-		String credentialTypeValue = credentialType.substitute(msg);
-		Boolean useIAMRoleValue = useIAMRole.substitute(msg);
-		String credentialsFilePathValue = credentialsFilePath.substitute(msg);
-
-		Trace.info("=== SNS Invocation Debug ===");
-		Trace.info("Topic ARN: " + topicArnValue);
-		Trace.info("Region: " + regionValue);
-		Trace.info("Message Subject: " + messageSubjectValue);
-		Trace.info("Message Structure: " + messageStructureValue);
-		messageAttributesValue = resolveMessageAttributesJson(msg, messageAttributesValue);
-		Trace.info("Message Attributes: " + messageAttributesValue);
-		Trace.info("Retry Delay: " + retryDelayValue);
-		Trace.info("Credential Type: " + credentialTypeValue);
-		Trace.info("Use IAM Role: " + useIAMRoleValue);
-		Trace.info("Credentials File Path: " + credentialsFilePathValue);
-		
-		// Set default values
-		if (retryDelayValue == null) {
-			retryDelayValue = 1000;
-		}
-		if (credentialTypeValue == null || credentialTypeValue.trim().isEmpty()) {
-			credentialTypeValue = "local";
-		}
-		// Determine IAM Role usage based on credential type
-		useIAMRoleValue = "iam".equals(credentialTypeValue);
-		
-		String body = contentBody.substitute(msg);
-		if (body == null || body.trim().isEmpty()) {
-			body = "{}";
+		// Only fields containing expressions are evaluated; literal ones were resolved when attached
+		SNSPublishTemplate template = publishTemplate;
+		List<String> topicArns = template.getTopicArns(msg);
+		PublishRequest publishRequest = template.newRequest(msg, topicArns.isEmpty() ? null : topicArns.get(0));
+		String topicArnValue = publishRequest.getTopicArn();
+		String regionValue = template.getRegion(msg);
+		boolean jsonStructure = "json".equals(publishRequest.getMessageStructure());
+		SNSRetryPolicy retryPolicy = template.getRetryPolicy(msg);
+		
+		// The body is read from the content body stream, rejecting a body SNS would refuse before it is fully read
+		SNSMessageBody messageBody;
+		try {
+			messageBody = SNSMessageBody.read(msg.get(SNSMessageBody.CONTENT_BODY), payloadCodec.getBodyLimit());
+		} catch (SNSPayloadCodec.PayloadTooLargeException e) {
+			Trace.error(e.getMessage());
+			populateSnsError(msg, e.getMessage(), e);
+			return false;
+		} catch (IOException e) {
+			Trace.error("Unable to read message body: " + e.getMessage());
+			populateSnsError(msg, "Unable to read message body: " + e.getMessage(), null);
+			return false;
 		}
+		String body = messageBody.getText();
 		
 		// Handle JSON message structure format
-		if ("json".equalsIgnoreCase(messageStructureValue)) {
-			Trace.debug("=== JSON Message Structure Debug ===");
-			Trace.debug("messageStructureValue: '" + messageStructureValue + "'");
-			Trace.debug("Original body: '" + body + "'");
-			body = SNSMessageJsonHelper.formatJsonMessage(body);
-			Trace.debug("Formatted message for JSON structure: " + body);
-		} else {
-			Trace.debug("messageStructureValue is not 'json': '" + messageStructureValue + "'");
+		if (jsonStructure) {
+			body = messageEnvelope != null ? messageEnvelope.build(msg, body) : SNSMessageJsonHelper.formatJsonMessage(body);
 		}
-
-		Trace.debug("=== Final Message Debug ===");
-		Trace.debug("Final body to be sent: '" + body + "'");
-		Trace.debug("Message structure value: '" + messageStructureValue + "'");
-		Trace.debug("Subject: '" + messageSubjectValue + "'");
-		Trace.debug("Topic ARN: '" + topicArnValue + "'");
-		
-		Trace.info("Publishing message to SNS with retry...");
-		Trace.info("Using IAM Role: " + useIAMRoleValue);
-		
-		// Debug IRSA during actual invocation
-		Trace.info("=== IRSA Debug During Invoke ===");
-		Trace.info("AWS_WEB_IDENTITY_TOKEN_FILE: " + System.getenv("AWS_WEB_IDENTITY_TOKEN_FILE"));
-		Trace.info("AWS_ROLE_ARN: " + System.getenv("AWS_ROLE_ARN"));
-		Trace.info("AWS_REGION: " + System.getenv("AWS_REGION"));
 		
 		Map<String, MessageAttributeValue> messageAttributesMap;
 		try {
-			messageAttributesMap = SNSMessageAttributesHelper.parseMessageAttributes(messageAttributesValue);
+			messageAttributesMap = resolveMessageAttributes(msg);
 		} catch (IllegalArgumentException e) {
 			Trace.error("Invalid message attributes: " + e.getMessage());
 			populateSnsError(msg, e.getMessage(), null);
 			return false;
 		}
 		
-		Exception lastException = null;
+		publishRequest.setMessage(body);
+
+		if (messageAttributesMap != null && !messageAttributesMap.isEmpty()) {
+			publishRequest.withMessageAttributes(messageAttributesMap);
+		}
+
+		// The body is compressed or offloaded only once a publish owns its idempotency key
+		EncodedPayload payload = new EncodedPayload(publishRequest, jsonStructure ? null : messageBody);
+		if (topicArns.size() > 1) {
+			return publishFanOut(msg, regionValue, payload, topicArns, retryPolicy, detailed);
+		}
+
+		// A publish already sent within the idempotency window is not sent again; the key is that of the
+		// body as received, since an offloaded body gets a new blob reference on every publish
+		SNSIdempotencyWindow.Claim claim = null;
+		if (idempotencyWindow != null) {
+			claim = claimIdempotencyKey(msg, publishRequest);
+			if (claim != null && !claim.isOwner()) {
+				reportDuplicate(msg, claim.getMessageId());
+				return true;
+			}
+		}
+
+		try {
+			// Compress or offload the body, and reject a payload SNS would refuse before any network call
+			try {
+				payload.get();
+			} catch (SNSPayloadCodec.PayloadTooLargeException | IOException e) {
+				payloadFailed(msg, e);
+				return false;
+			}
+
+			if (detailed) {
+				diagnostics.detail(regionValue, topicArns, retryPolicy.getMaxAttempts(), publishRequest);
+			}
+
+			SNSMetrics.TopicMetrics topicMetrics = metrics != null ? metrics.topic(regionValue, topicArnValue) : null;
+			SNSCircuitBreaker.TopicBreaker topicBreaker = circuitBreaker != null
+				? circuitBreaker.topic(regionValue, topicArnValue) : null;
+			if (topicMetrics != null) {
+				publishRequest.setRequestMetricCollector(topicMetrics.getRequestMetricCollector());
+			}
+
+			// While the outbox cannot deliver to the topic, SNS is unavailable for it: store right away instead of waiting for failures
+			if (outbox != null && !outbox.isHealthy(regionValue, topicArnValue)
+					&& deferToOutbox(msg, regionValue, publishRequest, "SNS unavailable")) {
+				return true;
+			}
+
+			// While the breaker is open, fail fast (or defer) without queuing behind the failing topic
+			if (topicBreaker != null && topicBreaker.isOpen()) {
+				if (outbox != null && deferToOutbox(msg, regionValue, publishRequest, "circuit open")) {
+					return true;
+				}
+				SNSCircuitBreaker.CircuitOpenException rejection = topicBreaker.rejection();
+				Trace.error(rejection.getMessage());
+				populateSnsError(msg, rejection.getMessage(), rejection);
+				return false;
+			}
 		
-		// Get maxRetries from clientConfiguration (default 3)
-		int maxRetriesValue = 3; // Default value
+			// Take the rate limit permit of the first attempt here, so that a rejection is reported right away
+			SNSRateLimiter.TopicLimiter topicLimiter = rateLimiter != null ? rateLimiter.topic(topicArnValue) : null;
+			SNSRateLimiter.Permit firstPermit = null;
+			if (topicLimiter != null) {
+				try {
+					firstPermit = topicLimiter.acquire(
+						rateLimitBackPressure == SNSAsyncDispatcher.BackPressure.BLOCK ? rateLimitTimeout : 0);
+				} catch (SNSRateLimiter.RateLimitExceededException e) {
+					Trace.error(e.getMessage());
+					if (rateLimitBackPressure == SNSAsyncDispatcher.BackPressure.FAIL) {
+						throw new CircuitAbortException(e.getMessage());
+					}
+					populateSnsError(msg, e.getMessage(), e);
+					return false;
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					populateSnsError(msg, "Interrupted while waiting for the SNS rate limit", null);
+					return false;
+				}
+			}
+			SNSPublishGuard guard = topicBreaker != null || topicLimiter != null
+				? new SNSPublishGuard(topicBreaker, topicLimiter, rateLimitTimeout, firstPermit) : null;
 		
-		for (int attempt = 1; attempt <= maxRetriesValue; attempt++) {
+			if (asyncDispatcher != null) {
+				// Released or recorded once the asynchronous publish completes
+				SNSIdempotencyWindow.Claim asyncClaim = claim;
+				claim = null;
+				return publishAsync(msg, regionValue, publishRequest, retryPolicy, topicMetrics, guard, asyncClaim);
+			}
+
+			AtomicInteger attempts = new AtomicInteger();
+			long startNanos = System.nanoTime();
+			if (topicMetrics != null) {
+				topicMetrics.begin();
+			}
 			try {
-				Trace.info("Attempt " + attempt + " of " + maxRetriesValue);
-				
-				// Create SNS client with region (following Lambda pattern)
-				AmazonSNS snsClient = snsClientBuilder.withRegion(regionValue).build();
-				
-				// Create the publish request
-				PublishRequest publishRequest = new PublishRequest()
-					.withTopicArn(topicArnValue)
-					.withMessage(body)
-					.withSubject(messageSubjectValue)
-					.withMessageStructure(messageStructureValue.toLowerCase());
-
-				if (messageAttributesMap != null && !messageAttributesMap.isEmpty()) {
-					publishRequest.withMessageAttributes(messageAttributesMap);
-				}
+				// Retries are scheduled by the retry engine and run on this thread, which waits for the outcome anyway
+				SNSRetryEngine.CallerExecutor caller = new SNSRetryEngine.CallerExecutor();
+				PublishResult publishResult = caller.await(startPublish(regionValue, publishRequest, retryPolicy,
+					topicMetrics, guard, attempts, false, caller));
 
-				Trace.debug("=== PublishRequest Debug ===");
-				Trace.debug("PublishRequest.topicArn: '" + publishRequest.getTopicArn() + "'");
-				Trace.debug("PublishRequest.message: '" + publishRequest.getMessage() + "'");
-				Trace.debug("PublishRequest.subject: '" + publishRequest.getSubject() + "'");
-				Trace.debug("PublishRequest.messageStructure: '" + publishRequest.getMessageStructure() + "'");
-				Trace.debug("PublishRequest.messageAttributes: " + publishRequest.getMessageAttributes());
-				
-				// Publish message to SNS
-				PublishResult publishResult = snsClient.publish(publishRequest);
-				
+				recordOutcome(msg, regionValue, topicMetrics, publishRequest, startNanos, attempts.get(), publishResult, null);
+				if (claim != null) {
+					claim.succeeded(publishResult.getMessageId());
+				}
 				// Process response
 				return processPublishResult(publishResult, msg);
-				
-			} catch (Exception e) {
-				lastException = e;
-				Trace.error("Attempt " + attempt + " failed: " + e.getMessage());
-				
-				// Debug the specific error for IRSA issues
-				if (e.getMessage().contains("AccessDeniedException")) {
-					Trace.error("=== Access Denied Debug ===");
-					Trace.error("Error message: " + e.getMessage());
-					
-					// Check if it's still using node group role
-					if (e.getMessage().contains("axway-first-ng-role")) {
-						Trace.error("❌ Still using node group role instead of ServiceAccount");
-						Trace.error("This indicates IRSA is not properly configured");
-					} else if (e.getMessage().contains("axway-sns-role")) {
-						Trace.error("✅ Using ServiceAccount role but permission denied");
-						Trace.error("This indicates IRSA is working but role lacks permissions");
-					}
+
+			} catch (ExecutionException e) {
+				Throwable cause = SNSRetryEngine.unwrap(e);
+				Exception lastException = cause instanceof Exception ? (Exception) cause : e;
+				recordOutcome(msg, regionValue, topicMetrics, publishRequest, startNanos, attempts.get(), null, lastException);
+				Trace.error("Publish failed after " + attempts.get() + " attempt(s)");
+				if (outbox != null && isDeferrable(lastException)
+						&& deferToOutbox(msg, regionValue, publishRequest, "publish failed")) {
+					return true;
+				}
+				String errorMessage = "Failure after " + attempts.get() + " attempts: " + lastException.getMessage();
+				populateSnsError(msg, errorMessage, lastException);
+				return false;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				recordOutcome(msg, regionValue, topicMetrics, publishRequest, startNanos, attempts.get(), null, e);
+				Trace.error("Thread interrupted while waiting for SNS publish");
+				populateSnsError(msg, "Interrupted while waiting for SNS publish", null);
+				return false;
+			}
+		} finally {
+			// Any outcome but a successful publish releases the key, deferred ones included
+			releaseClaim(claim);
+		}
+	}
+
+	/**
+	 * Claims the idempotency key of the publish. Returns the claim to report the outcome to, null when
+	 * the message has no key, or the claim of the original publish for a duplicate. A duplicate of a publish still in progress waits for its outcome, except in
+	 * asynchronous mode where it is suppressed right away; when the original publish fails, the
+	 * duplicate is published.
+	 */
+	private SNSIdempotencyWindow.Claim claimIdempotencyKey(Message msg, PublishRequest publishRequest) {
+		String scopedKey = scopedIdempotencyKey(msg, publishRequest);
+		if (scopedKey == null) {
+			return null;
+		}
+		for (int i = 0; i < 2; i++) {
+			SNSIdempotencyWindow.Claim claim = idempotencyWindow.claim(scopedKey);
+			if (claim.isOwner()) {
+				return claim;
+			}
+			if (asyncDispatcher != null && claim.isPending()) {
+				return claim;
+			}
+			try {
+				if (claim.awaitMessageId(SNSIdempotencyWindow.MAX_WAIT_MILLIS) != null) {
+					return claim;
 				}
-				
-				// If not the last attempt, wait before retrying
-				if (attempt < maxRetriesValue) {
-					Trace.info("Waiting " + retryDelayValue + "ms before next attempt...");
-					try {
-						Thread.sleep(retryDelayValue);
-					} catch (InterruptedException ie) {
-						Thread.currentThread().interrupt();
-						Trace.error("Thread interrupted during retry");
-						return false;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+			// The original publish failed: claim the key again
+		}
+		// Claimed by another publish meanwhile: published without the window rather than waiting again
+		return null;
+	}
+
+	/**
+	 * Idempotency key of the publish within its topic, null when the message has no key.
+	 */
+	private String scopedIdempotencyKey(Message msg, PublishRequest publishRequest) {
+		return scopedIdempotencyKey(msg, publishRequest, publishRequest.getTopicArn());
+	}
+
+	/**
+	 * Idempotency key of the publish of the request to the topic, taken from the body before it is
+	 * encoded, null when the message has no key.
+	 */
+	private String scopedIdempotencyKey(Message msg, PublishRequest publishRequest, String topicArn) {
+		String key = idempotencyKey != null ? idempotencyKey.substitute(msg)
+			: SNSIdempotencyWindow.payloadKey(publishRequest, topicArn);
+		if (key == null || key.trim().isEmpty()) {
+			return null;
+		}
+		// The same key published to different topics is not a duplicate
+		return topicArn + "|" + key.trim();
+	}
+
+	/**
+	 * Reports a body that could not be compressed or offloaded, or is over the SNS limit.
+	 */
+	private void payloadFailed(Message msg, Exception e) {
+		if (e instanceof SNSPayloadCodec.PayloadTooLargeException) {
+			Trace.error(e.getMessage());
+			populateSnsError(msg, e.getMessage(), e);
+		} else {
+			Trace.error("Unable to offload SNS message body: " + e.getMessage());
+			populateSnsError(msg, "Unable to offload message body: " + e.getMessage(), null);
+		}
+	}
+
+	/**
+	 * Body of a publish, compressed or offloaded by the payload codec the first time a publish needs
+	 * it: a duplicate suppressed by the idempotency window never writes a blob, and the topics of a
+	 * fan-out share one encoding.
+	 */
+	private final class EncodedPayload {
+		private final PublishRequest request;
+		private final SNSMessageBody body;
+		private boolean encoded;
+		private Exception failure;
+
+		/**
+		 * @param body UTF-8 bytes of the message when already read, null to encode the message itself
+		 */
+		EncodedPayload(PublishRequest request, SNSMessageBody body) {
+			this.request = request;
+			this.body = body;
+		}
+
+		/**
+		 * Returns the request with its body encoded, encoding it on the first call.
+		 */
+		synchronized PublishRequest get() throws IOException {
+			if (!encoded) {
+				encoded = true;
+				try {
+					if (body == null) {
+						payloadCodec.encode(request);
+					} else {
+						payloadCodec.encode(request, body.getData(), body.getLength());
 					}
+				} catch (IOException | RuntimeException e) {
+					failure = e;
 				}
 			}
+			if (failure instanceof IOException) {
+				throw (IOException) failure;
+			}
+			if (failure != null) {
+				throw (RuntimeException) failure;
+			}
+			return request;
+		}
+
+		/**
+		 * Returns the encoded request for the topic of a fan-out.
+		 */
+		PublishRequest forTopic(String topicArn) throws IOException {
+			PublishRequest encodedRequest = get();
+			return topicArn.equals(encodedRequest.getTopicArn()) ? encodedRequest
+				: SNSPublishTemplate.forTopic(encodedRequest, topicArn);
+		}
+
+		/**
+		 * Returns the encoded request for the topic, null when the body was not or could not be encoded.
+		 */
+		synchronized PublishRequest encodedForTopic(String topicArn) {
+			if (!encoded || failure != null) {
+				return null;
+			}
+			return topicArn.equals(request.getTopicArn()) ? request : SNSPublishTemplate.forTopic(request, topicArn);
+		}
+	}
+
+	private static void reportDuplicate(Message msg, String messageId) {
+		Trace.info("Duplicate SNS publish suppressed, key already published within the idempotency window");
+		if (messageId != null) {
+			msg.put("aws.sns.message.id", messageId);
+		}
+		msg.put("aws.sns.response", messageId != null
+			? "Duplicate of a message already published" : "Duplicate of a message queued for asynchronous publish");
+		msg.put("aws.sns.duplicate", Boolean.TRUE);
+		msg.put("aws.sns.http.status.code", 200);
+	}
+
+	/**
+	 * Publishes the message to several topics concurrently, so that the filter takes as long as the
+	 * slowest topic rather than the sum of all. The outcome of each topic is reported by topic index:
+	 * aws.sns.topic.arn.&lt;i&gt;, then aws.sns.message.id.&lt;i&gt;, aws.sns.deferred.&lt;i&gt; or
+	 * aws.sns.error.&lt;i&gt; and aws.sns.error.code.&lt;i&gt;. Deferred publishes and suppressed duplicates
+	 * count as successful; the fan-out policy decides whether every topic or any topic must succeed.
+	 * In asynchronous mode, topics are successful once queued.
+	 */
+	private boolean publishFanOut(final Message msg, final String regionValue, final EncodedPayload payload,
+			final List<String> topicArns, final SNSRetryPolicy retryPolicy, boolean detailed) throws CircuitAbortException {
+		final int count = topicArns.size();
+		// Keys are claimed on the body as received, before any topic encodes it
+		final List<String> scopedKeys = new ArrayList<>(count);
+		final List<SNSIdempotencyWindow.Claim> claims = new ArrayList<>(count);
+		boolean publishing = false;
+		for (String topicArn : topicArns) {
+			String scopedKey = idempotencyWindow != null ? scopedIdempotencyKey(msg, payload.request, topicArn) : null;
+			SNSIdempotencyWindow.Claim claim = scopedKey != null ? idempotencyWindow.claim(scopedKey) : null;
+			scopedKeys.add(scopedKey);
+			claims.add(claim);
+			publishing |= claim == null || claim.isOwner();
+		}
+		// Encoded once for all the topics, unless every topic is a duplicate
+		if (publishing) {
+			try {
+				PublishRequest encodedRequest = payload.get();
+				if (detailed) {
+					diagnostics.detail(regionValue, topicArns, retryPolicy.getMaxAttempts(), encodedRequest);
+				}
+			} catch (SNSPayloadCodec.PayloadTooLargeException | IOException e) {
+				releaseOwnedClaims(claims, 0);
+				payloadFailed(msg, e);
+				return false;
+			}
+		}
+
+		// Topics found to be duplicates once the original publish completed, reported by this thread
+		final Set<Integer> duplicates = ConcurrentHashMap.newKeySet();
+		final List<CompletableFuture<PublishResult>> results = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			final int index = i;
+			final String topicArn = topicArns.get(i);
+			final String scopedKey = scopedKeys.get(i);
+			final SNSIdempotencyWindow.Claim claim = claims.get(i);
+			msg.put("aws.sns.topic.arn." + i, topicArn);
+			if (asyncDispatcher == null) {
+				results.add(startFanOutPublish(index, regionValue, topicArn, payload, retryPolicy, scopedKey, claim, duplicates));
+				continue;
+			}
+			if (claim != null && !claim.isOwner()) {
+				// Suppressed right away in asynchronous mode, even while the original publish is in progress
+				msg.put("aws.sns.duplicate." + i, Boolean.TRUE);
+				results.add(CompletableFuture.completedFuture(new PublishResult().withMessageId(claim.getMessageId())));
+				continue;
+			}
+			// Each topic takes its own slot: a full queue rejects the remaining topics only
+			boolean accepted;
+			try {
+				accepted = asyncDispatcher.dispatch(() -> startTopicPublish(regionValue, topicArn, payload, retryPolicy, claim),
+					(result, error) -> {
+						if (error != null) {
+							Trace.error("Asynchronous SNS publish to " + topicArn + " failed: " + error.getMessage());
+							PublishRequest topicRequest = payload.encodedForTopic(topicArn);
+							if (outbox != null && topicRequest != null && isDeferrable(error)) {
+								appendToOutbox(regionValue, topicRequest);
+							}
+						}
+					});
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				releaseOwnedClaims(claims, i);
+				populateSnsError(msg, "Interrupted while waiting for asynchronous publish capacity", null);
+				return false;
+			}
+			if (!accepted) {
+				releaseClaim(claim);
+			}
+			results.add(accepted ? CompletableFuture.<PublishResult>completedFuture(null)
+				: failedFuture(new SNSPublishRejectedException("QueueFull",
+					"Asynchronous publish queue is full (" + asyncDispatcher.getCapacity() + " in flight)")));
+		}
+
+		// Topics complete concurrently: waiting for each in turn takes as long as the slowest one
+		int failed = 0;
+		int deferred = 0;
+		String firstMessageId = null;
+		Exception firstError = null;
+		for (int i = 0; i < count; i++) {
+			try {
+				PublishResult result = results.get(i).get();
+				if (duplicates.contains(Integer.valueOf(i))) {
+					msg.put("aws.sns.duplicate." + i, Boolean.TRUE);
+				}
+				if (result != null && result.getMessageId() != null) {
+					msg.put("aws.sns.message.id." + i, result.getMessageId());
+					firstMessageId = firstMessageId != null ? firstMessageId : result.getMessageId();
+				}
+			} catch (ExecutionException e) {
+				Throwable cause = SNSRetryEngine.unwrap(e);
+				Exception error = cause instanceof Exception ? (Exception) cause : e;
+				PublishRequest topicRequest = outbox != null ? payload.encodedForTopic(topicArns.get(i)) : null;
+				if (topicRequest != null && isDeferrable(error) && appendToOutbox(regionValue, topicRequest)) {
+					msg.put("aws.sns.deferred." + i, Boolean.TRUE);
+					deferred++;
+					continue;
+				}
+				Trace.error("Publish to " + topicArns.get(i) + " failed: " + error.getMessage());
+				msg.put("aws.sns.error." + i, String.valueOf(error.getMessage()));
+				AmazonServiceException awsException = resolveAmazonServiceException(error);
+				String errorCode = error instanceof SNSPublishRejectedException
+					? ((SNSPublishRejectedException) error).getErrorCode()
+					: awsException != null ? awsException.getErrorCode() : null;
+				if (errorCode != null) {
+					msg.put("aws.sns.error.code." + i, errorCode);
+				}
+				firstError = firstError != null ? firstError : error;
+				failed++;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				Trace.error("Thread interrupted while waiting for SNS fan-out publish");
+				populateSnsError(msg, "Interrupted while waiting for SNS publish", null);
+				return false;
+			}
+		}
+
+		msg.put("aws.sns.fanout.count", Integer.valueOf(count));
+		msg.put("aws.sns.fanout.failed", Integer.valueOf(failed));
+		if (failed == count || (failed > 0 && !fanOutAnySucceeds)) {
+			if (asyncDispatcher != null && asyncDispatcher.getBackPressure() == SNSAsyncDispatcher.BackPressure.FAIL
+					&& firstError instanceof SNSPublishRejectedException) {
+				throw new CircuitAbortException(firstError.getMessage());
+			}
+			populateSnsError(msg, "Publish failed for " + failed + " of " + count + " topics: " + firstError.getMessage(),
+				firstError);
+			return false;
+		}
+		if (firstMessageId != null) {
+			msg.put("aws.sns.message.id", firstMessageId);
+		}
+		if (deferred > 0) {
+			msg.put("aws.sns.deferred", Boolean.TRUE);
+		}
+		String outcome = (count - failed) + " of " + count + " topics" + (deferred > 0 ? ", " + deferred + " deferred" : "");
+		msg.put("aws.sns.response", (asyncDispatcher != null
+			? "Message queued for asynchronous publish to " : "Message published to ") + outcome);
+		msg.put("aws.sns.http.status.code", 200);
+		if (SNSDiagnostics.isDetailed()) {
+			Trace.debug("SNS message published to " + outcome);
+		}
+		return true;
+	}
+
+	/**
+	 * Starts the publish to one topic of a fan-out, guarded by the breaker and the rate limiter of that
+	 * topic. Attempts go through the asynchronous client, so that topics are published concurrently.
+	 * Nothing blocks the calling thread: a duplicate of a publish still in progress waits for its outcome
+	 * asynchronously, and the rate limit permits are taken by the attempts themselves.
+	 *
+	 * @param claim claim taken on the idempotency key of the topic, null when there is none
+	 * @param duplicates indexes of the topics found to be duplicates after this call returned
+	 */
+	private CompletableFuture<PublishResult> startFanOutPublish(int index, String regionValue, String topicArn,
+			EncodedPayload payload, SNSRetryPolicy retryPolicy, String scopedKey, SNSIdempotencyWindow.Claim claim,
+			Set<Integer> duplicates) {
+		if (claim == null || claim.isOwner()) {
+			return startTopicPublish(regionValue, topicArn, payload, retryPolicy, claim);
+		}
+		return awaitOriginal(index, scopedKey, claim, regionValue, topicArn, payload, retryPolicy, duplicates, true);
+	}
+
+	/**
+	 * Completes the publish of a duplicate once the original publish completes: with its message ID when
+	 * it succeeded, otherwise by claiming the key again and publishing.
+	 */
+	private CompletableFuture<PublishResult> awaitOriginal(final int index, final String scopedKey,
+			SNSIdempotencyWindow.Claim claim, final String regionValue, final String topicArn,
+			final EncodedPayload payload, final SNSRetryPolicy retryPolicy, final Set<Integer> duplicates,
+			final boolean claimAgain) {
+		return claim.messageId().thenCompose(messageId -> {
+			if (messageId != null) {
+				duplicates.add(Integer.valueOf(index));
+				return CompletableFuture.completedFuture(new PublishResult().withMessageId(messageId));
+			}
+			SNSIdempotencyWindow.Claim next = claimAgain ? idempotencyWindow.claim(scopedKey) : null;
+			if (next == null) {
+				// Claimed by another publish meanwhile: published without the window rather than waiting again
+				return startTopicPublish(regionValue, topicArn, payload, retryPolicy, null);
+			}
+			if (next.isOwner()) {
+				return startTopicPublish(regionValue, topicArn, payload, retryPolicy, next);
+			}
+			return awaitOriginal(index, scopedKey, next, regionValue, topicArn, payload, retryPolicy, duplicates, false);
+		});
+	}
+
+	/**
+	 * Releases the claims of the topics from the given index that own their key.
+	 */
+	private static void releaseOwnedClaims(List<SNSIdempotencyWindow.Claim> claims, int fromIndex) {
+		for (SNSIdempotencyWindow.Claim claim : claims.subList(fromIndex, claims.size())) {
+			if (claim != null && claim.isOwner()) {
+				claim.failed();
+			}
+		}
+	}
+
+	/**
+	 * Starts the guarded publish of one topic of a fan-out, reporting its outcome to the claim of its
+	 * idempotency key, if any. The body is encoded by the first topic that publishes it.
+	 */
+	private CompletableFuture<PublishResult> startTopicPublish(final String regionValue, String topicArnValue,
+			EncodedPayload payload, SNSRetryPolicy retryPolicy, final SNSIdempotencyWindow.Claim claim) {
+		final PublishRequest publishRequest;
+		try {
+			publishRequest = payload.forTopic(topicArnValue);
+		} catch (IOException | RuntimeException e) {
+			releaseClaim(claim);
+			return failedFuture(e);
+		}
+		final SNSMetrics.TopicMetrics topicMetrics = metrics != null ? metrics.topic(regionValue, topicArnValue) : null;
+		SNSCircuitBreaker.TopicBreaker topicBreaker = circuitBreaker != null
+			? circuitBreaker.topic(regionValue, topicArnValue) : null;
+		SNSRateLimiter.TopicLimiter topicLimiter = rateLimiter != null ? rateLimiter.topic(topicArnValue) : null;
+		if (topicMetrics != null) {
+			publishRequest.setRequestMetricCollector(topicMetrics.getRequestMetricCollector());
+		}
+
+		CompletableFuture<PublishResult> result;
+		if (topicBreaker != null && topicBreaker.isOpen()) {
+			result = failedFuture(topicBreaker.rejection());
+		} else {
+			// No permit taken up front: every attempt, the first included, gets its own without blocking
+			SNSPublishGuard guard = topicBreaker != null || topicLimiter != null
+				? new SNSPublishGuard(topicBreaker, topicLimiter, rateLimitTimeout, null) : null;
+			final AtomicInteger attempts = new AtomicInteger();
+			final long startNanos = System.nanoTime();
+			if (topicMetrics != null) {
+				topicMetrics.begin();
+			}
+			try {
+				result = startPublish(regionValue, publishRequest, retryPolicy, topicMetrics, guard, attempts, true, null);
+			} catch (RuntimeException e) {
+				result = failedFuture(e);
+			}
+			result = result.whenComplete((r, error) ->
+				recordOutcome(null, regionValue, topicMetrics, publishRequest, startNanos, attempts.get(), r, error));
+		}
+		if (claim != null) {
+			result.whenComplete((r, error) -> {
+				if (error != null) {
+					claim.failed();
+				} else {
+					claim.succeeded(r.getMessageId());
+				}
+			});
+		}
+		return result;
+	}
+
+	private static CompletableFuture<PublishResult> failedFuture(Throwable error) {
+		CompletableFuture<PublishResult> future = new CompletableFuture<>();
+		future.completeExceptionally(error);
+		return future;
+	}
+
+	/**
+	 * Starts the publish with its retries. Publishes with a message group ID wait for the earlier
+	 * publishes of their group. Concurrent publishes never block the calling thread on SNS.
+	 *
+	 * @param executor runs the retries and the attempts waiting for a rate limit permit, null for the
+	 *        retry engine workers
+	 */
+	private CompletableFuture<PublishResult> startPublish(final String regionValue, final PublishRequest publishRequest,
+			final SNSRetryPolicy retryPolicy, final SNSMetrics.TopicMetrics topicMetrics, final SNSPublishGuard guard,
+			final AtomicInteger attempts, final boolean concurrent, final Executor executor) {
+		final Supplier<CompletableFuture<PublishResult>> publish = () -> SNSRetryEngine.execute(retryPolicy, () -> {
+			attempts.incrementAndGet();
+			return publishAttempt(regionValue, publishRequest, guard, concurrent, executor);
+		}, retryListener(publishRequest.getTopicArn(), retryPolicy, topicMetrics), executor);
+		inFlight.incrementAndGet();
+		CompletableFuture<PublishResult> future;
+		try {
+			future = orderedDispatcher == null || publishRequest.getMessageGroupId() == null
+				? publish.get() : submitOrdered(regionValue, publishRequest, publish, guard, attempts);
+		} catch (RuntimeException e) {
+			publishCompleted();
+			throw e;
+		}
+		future.whenComplete((result, error) -> publishCompleted());
+		return future;
+	}
+
+	private void publishCompleted() {
+		if (inFlight.decrementAndGet() == 0) {
+			synchronized (inFlight) {
+				inFlight.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Queues the publish behind the earlier publishes of its message group.
+	 */
+	private CompletableFuture<PublishResult> submitOrdered(final String regionValue, final PublishRequest publishRequest,
+			final Supplier<CompletableFuture<PublishResult>> publish, final SNSPublishGuard guard,
+			final AtomicInteger attempts) {
+		return orderedDispatcher.submit(regionValue, new SNSOrderedDispatcher.OrderedPublish() {
+			@Override
+			public PublishRequest getRequest() {
+				return publishRequest;
+			}
+
+			@Override
+			public CompletableFuture<PublishResult> publish() {
+				return publish.get();
+			}
+
+			@Override
+			public List<CompletableFuture<PublishResult>> publishBatch(List<PublishRequest> requests) {
+				attempts.incrementAndGet();
+				return publishBatchAttempt(regionValue, requests, guard);
+			}
+
+			@Override
+			public void batched() {
+				// Sent with the batch of an earlier publish: the permit taken for this one is not needed
+				attempts.incrementAndGet();
+				cancelGuard(guard);
+			}
+		});
+	}
+
+	/**
+	 * Makes one PublishBatch attempt for publishes of the same message group, guarded like the attempt
+	 * of the first one. A rejection by the guard fails every entry.
+	 */
+	private List<CompletableFuture<PublishResult>> publishBatchAttempt(final String regionValue,
+			final List<PublishRequest> requests, SNSPublishGuard guard) {
+		final String topicArnValue = requests.get(0).getTopicArn();
+		if (guard == null) {
+			return batcher.sendNow(getSNSClient(regionValue), topicArnValue, requests);
+		}
+		final List<CompletableFuture<PublishResult>> results = new ArrayList<>(requests.size());
+		for (int i = 0; i < requests.size(); i++) {
+			results.add(new CompletableFuture<PublishResult>());
+		}
+		// The attempt may start later, once the guard grants a permit
+		final AtomicReference<List<CompletableFuture<PublishResult>>> sent = new AtomicReference<>();
+		CompletableFuture<PublishResult> attempt = guard.attempt(() -> {
+			List<CompletableFuture<PublishResult>> entries = batcher.sendNow(getSNSClient(regionValue), topicArnValue, requests);
+			sent.set(entries);
+			return CompletableFuture.allOf(entries.toArray(new CompletableFuture<?>[0])).thenApply(v -> entries.get(0).join());
+		}, null);
+		attempt.whenComplete((r, error) -> {
+			List<CompletableFuture<PublishResult>> entries = sent.get();
+			for (int i = 0; i < results.size(); i++) {
+				CompletableFuture<PublishResult> result = results.get(i);
+				if (entries == null) {
+					result.completeExceptionally(error);
+				} else {
+					entries.get(i).whenComplete((value, entryError) -> {
+						if (entryError != null) {
+							result.completeExceptionally(entryError);
+						} else {
+							result.complete(value);
+						}
+					});
+				}
+			}
+		});
+		return results;
+	}
+
+	/**
+	 * Starts one publish attempt, through the batcher when batching is enabled and through the
+	 * asynchronous client in asynchronous mode.
+	 */
+	private CompletableFuture<PublishResult> publishAttempt(final String regionValue, final PublishRequest publishRequest,
+			SNSPublishGuard guard, final boolean concurrent, Executor executor) {
+		if (guard == null) {
+			return publishAttempt(regionValue, publishRequest, concurrent);
+		}
+		return guard.attempt(() -> publishAttempt(regionValue, publishRequest, concurrent), executor);
+	}
+
+	private static void cancelGuard(SNSPublishGuard guard) {
+		if (guard != null) {
+			guard.cancel();
+		}
+	}
+
+	private static void releaseClaim(SNSIdempotencyWindow.Claim claim) {
+		if (claim != null) {
+			claim.failed();
+		}
+	}
+
+	/**
+	 * Whether a failed publish may be stored in the outbox: retryable failures and open circuits.
+	 */
+	private static boolean isDeferrable(Throwable error) {
+		return SNSRetryPolicy.classify(error) != SNSRetryPolicy.ErrorClass.PERMANENT
+			|| SNSRetryEngine.unwrap(error) instanceof SNSCircuitBreaker.CircuitOpenException;
+	}
+
+	private CompletableFuture<PublishResult> publishAttempt(String regionValue, PublishRequest publishRequest,
+			boolean concurrent) {
+		// FIFO publishes are batched by the ordered dispatcher, within their group only
+		if (batcher != null && publishRequest.getMessageGroupId() == null) {
+			return batcher.submit(getSNSClient(regionValue), regionValue, publishRequest);
+		}
+		if (asyncDispatcher != null || concurrent || nioTransport) {
+			return SNSAsyncDispatcher.publishAsync(getSNSAsyncClient(regionValue), publishRequest);
+		}
+		CompletableFuture<PublishResult> future = new CompletableFuture<>();
+		try {
+			// Get shared SNS client for the region (following Lambda pattern)
+			future.complete(getSNSClient(regionValue).publish(publishRequest));
+		} catch (Exception e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	/**
+	 * Records the outcome of a publish in the topic metrics, in the summary trace line and, when
+	 * enabled, on the message.
+	 */
+	private void recordOutcome(Message msg, String regionValue, SNSMetrics.TopicMetrics topicMetrics,
+			PublishRequest publishRequest, long startNanos, int attempts, PublishResult result, Throwable error) {
+		long elapsedNanos = System.nanoTime() - startNanos;
+		if (diagnostics.isSummaryEnabled()) {
+			diagnostics.summary(regionValue, publishRequest, elapsedNanos, attempts,
+				result != null ? result.getMessageId() : null, error);
+		}
+		if (topicMetrics != null) {
+			if (error == null) {
+				topicMetrics.succeeded(elapsedNanos, attempts, SNSPublishBatcher.payloadSize(publishRequest));
+			} else {
+				topicMetrics.failed(elapsedNanos, attempts);
+			}
+		}
+		if (msg != null && metricsMessageAttributes) {
+			msg.put("aws.sns.publish.latency", Long.valueOf(elapsedNanos / 1000000));
+			msg.put("aws.sns.publish.attempts", Integer.valueOf(attempts));
+		}
+	}
+
+	/**
+	 * Traces failed attempts and counts them in the topic metrics. A publish denied by SNS also traces
+	 * the principal that was denied.
+	 */
+	private SNSRetryEngine.Listener retryListener(final String topicArnValue, final SNSRetryPolicy retryPolicy,
+			final SNSMetrics.TopicMetrics topicMetrics) {
+		return (attempt, error, errorClass, nextDelayMillis) -> {
+			if (topicMetrics != null) {
+				topicMetrics.attemptFailed(error, nextDelayMillis >= 0);
+			}
+			String errorMessage = String.valueOf(error.getMessage());
+			Trace.error("Attempt " + attempt + " of " + retryPolicy.getMaxAttempts() + " failed (" + errorClass + "): "
+				+ errorMessage + (nextDelayMillis >= 0 ? ", retrying in " + nextDelayMillis + "ms"
+					: errorClass == SNSRetryPolicy.ErrorClass.PERMANENT ? ", not retryable" : ""));
+			AmazonServiceException serviceException = SNSRetryPolicy.findServiceException(error);
+			if (nextDelayMillis < 0 && serviceException != null && SNSDiagnostics.isAccessDenied(serviceException)) {
+				SNSDiagnostics.accessDenied(topicArnValue, serviceException);
+			}
+		};
+	}
+
+	/**
+	 * Hands the publish to the asynchronous dispatcher and returns without waiting for SNS.
+	 * Retries run on the retry engine timer; delivery failures are only traced, since the
+	 * circuit has already moved on.
+	 */
+	private boolean publishAsync(Message msg, final String regionValue, final PublishRequest publishRequest,
+			final SNSRetryPolicy retryPolicy, final SNSMetrics.TopicMetrics topicMetrics,
+			final SNSPublishGuard guard, final SNSIdempotencyWindow.Claim claim) throws CircuitAbortException {
+
+		final String topicArnValue = publishRequest.getTopicArn();
+		final AtomicInteger attempts = new AtomicInteger();
+		final long startNanos = System.nanoTime();
+
+		boolean accepted;
+		try {
+			accepted = asyncDispatcher.dispatch(
+				() -> {
+					if (topicMetrics != null) {
+						topicMetrics.begin();
+					}
+					return startPublish(regionValue, publishRequest, retryPolicy, topicMetrics, guard, attempts, false, null);
+				},
+				(result, error) -> {
+					// The circuit has moved on: metrics only, nothing is put on the message
+					recordOutcome(null, regionValue, topicMetrics, publishRequest, startNanos, attempts.get(), result, error);
+					if (claim != null) {
+						if (error != null) {
+							claim.failed();
+						} else {
+							claim.succeeded(result.getMessageId());
+						}
+					}
+					if (error != null) {
+						Trace.error("Asynchronous SNS publish to " + topicArnValue + " failed: " + error.getMessage());
+						if (outbox != null && isDeferrable(error)) {
+							appendToOutbox(regionValue, publishRequest);
+						}
+					}
+				});
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			cancelGuard(guard);
+			releaseClaim(claim);
+			populateSnsError(msg, "Interrupted while waiting for asynchronous publish capacity", null);
+			return false;
+		} catch (Exception e) {
+			cancelGuard(guard);
+			releaseClaim(claim);
+			Trace.error("Error dispatching asynchronous SNS publish: " + e.getMessage());
+			populateSnsError(msg, "Error dispatching asynchronous publish: " + e.getMessage(), e);
+			return false;
+		}
+		
+		if (!accepted) {
+			cancelGuard(guard);
+			releaseClaim(claim);
+			String errorMessage = "Asynchronous publish queue is full (" + asyncDispatcher.getCapacity() + " in flight)";
+			Trace.error(errorMessage);
+			// With an outbox, overflow is deferred instead of applying the back-pressure policy
+			if (outbox != null && deferToOutbox(msg, regionValue, publishRequest, "queue full")) {
+				return true;
+			}
+			if (asyncDispatcher.getBackPressure() == SNSAsyncDispatcher.BackPressure.FAIL) {
+				throw new CircuitAbortException(errorMessage);
+			}
+			populateSnsError(msg, errorMessage, null);
+			return false;
 		}
 		
-		// If reached here, all attempts failed
-		Trace.error("All " + maxRetriesValue + " attempts failed");
-		String errorMessage = "Failure after " + maxRetriesValue + " attempts: " +
-			(lastException != null ? lastException.getMessage() : "Unknown error");
-		populateSnsError(msg, errorMessage, lastException);
-		return false;
+		msg.put("aws.sns.response", "Message queued for asynchronous publish");
+		if (SNSDiagnostics.isDetailed()) {
+			Trace.debug("SNS message queued for asynchronous publish to " + topicArnValue);
+		}
+		return true;
+	}
+
+	/**
+	 * Stores the publish in the outbox for deferred delivery and reports it on the message.
+	 * Returns false when the outbox could not take it, so the caller reports the failure instead.
+	 */
+	private boolean deferToOutbox(Message msg, String regionValue, PublishRequest publishRequest, String reason) {
+		if (!appendToOutbox(regionValue, publishRequest)) {
+			return false;
+		}
+		Trace.info("SNS message stored in outbox for deferred delivery (" + reason + ")");
+		msg.put("aws.sns.response", "Message stored in outbox for deferred delivery");
+		msg.put("aws.sns.deferred", Boolean.TRUE);
+		return true;
+	}
+
+	private boolean appendToOutbox(String regionValue, PublishRequest publishRequest) {
+		try {
+			return outbox.append(SNSOutbox.Entry.fromRequest(regionValue, publishRequest));
+		} catch (IOException e) {
+			Trace.error("Unable to store SNS message in outbox: " + e.getMessage());
+			return false;
+		}
 	}
 
 	/**
@@ -495,6 +1725,10 @@ public class PublishSNSMessageProcessor extends MessageProcessor {
 	 */
 	private void populateSnsError(Message msg, String errorMessage, Exception e) {
 		msg.put("aws.sns.error", errorMessage);
+		if (e instanceof SNSPublishRejectedException) {
+			msg.put("aws.sns.error.code", ((SNSPublishRejectedException) e).getErrorCode());
+			return;
+		}
 
 		AmazonServiceException awsException = resolveAmazonServiceException(e);
 		if (awsException == null) {
@@ -509,10 +1743,20 @@ public class PublishSNSMessageProcessor extends MessageProcessor {
 			msg.put("aws.sns.request.id", awsException.getRequestId());
 		}
 
-		Trace.error("=== SNS AWS Error Details ===");
-		Trace.error("HTTP Status: " + awsException.getStatusCode());
-		Trace.error("Error Code: " + awsException.getErrorCode());
-		Trace.error("Request ID: " + awsException.getRequestId());
+		SNSDiagnostics.serviceError(awsException);
+	}
+
+	/**
+	 * Builds the message attributes, binding the compiled template when the configured JSON could be
+	 * compiled and parsing the substituted JSON otherwise. Substituted JSON is parsed in one streaming
+	 * pass and never cached: it may differ for every message.
+	 */
+	private Map<String, MessageAttributeValue> resolveMessageAttributes(Message msg) {
+		if (messageAttributesTemplate != null && !messageAttributesTemplate.isEmpty()) {
+			return messageAttributesTemplate.bind(msg);
+		}
+		String messageAttributesValue = resolveMessageAttributesJson(msg, messageAttributes.substitute(msg));
+		return SNSMessageAttributesHelper.parseMessageAttributes(messageAttributesValue);
 	}
 
 	/**
@@ -526,7 +1770,9 @@ public class PublishSNSMessageProcessor extends MessageProcessor {
 		if (fromMsg != null) {
 			String value = String.valueOf(fromMsg);
 			if (!value.trim().isEmpty()) {
-				Trace.debug("Message attributes resolved from msg.messageAttributes");
+				if (SNSDiagnostics.isDetailed()) {
+					Trace.debug("Message attributes resolved from msg.messageAttributes");
+				}
 				return value;
 			}
 		}
@@ -537,7 +1783,7 @@ public class PublishSNSMessageProcessor extends MessageProcessor {
 		if (e instanceof AmazonServiceException) {
 			return (AmazonServiceException) e;
 		}
-		Throwable cause = e.getCause();
+		Throwable cause = e != null ? e.getCause() : null;
 		if (cause instanceof AmazonServiceException) {
 			return (AmazonServiceException) cause;
 		}
@@ -551,16 +1797,13 @@ public class PublishSNSMessageProcessor extends MessageProcessor {
 		try {
 			String messageId = publishResult.getMessageId();
 			
-			// === SNS Response ===
-			Trace.info("=== SNS Response ===");
-			Trace.info("Message ID: " + messageId);
-			
 			// Store results
 			msg.put("aws.sns.message.id", messageId);
+			if (publishResult.getSequenceNumber() != null) {
+				msg.put("aws.sns.sequence.number", publishResult.getSequenceNumber());
+			}
 			msg.put("aws.sns.response", "Message published successfully");
 			msg.put("aws.sns.http.status.code", 200);
-			
-			Trace.info("SNS message published successfully");
 			return true;
 			
 		} catch (Exception e) {
@@ -0,0 +1,20 @@
+package com.axway.aws.sns;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compression of published message bodies
+ */
+public class PublishSNSPayloadCompression {
+
+    public static Map<String, String> payloadCompression;
+
+    static {
+        Map<String, String> init = new LinkedHashMap<>();
+        init.put("none", "None");
+        init.put("gzip", "gzip (Base64 encoded)");
+        payloadCompression = Collections.unmodifiableMap(init);
+    }
+}
@@ -0,0 +1,20 @@
+package com.axway.aws.sns;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * HTTP transport used to publish to SNS
+ */
+public class PublishSNSTransport {
+
+    public static Map<String, String> transport;
+
+    static {
+        Map<String, String> init = new LinkedHashMap<>();
+        init.put("sdk", "AWS SDK client (blocking)");
+        init.put("nio", "Non-blocking NIO client");
+        transport = Collections.unmodifiableMap(init);
+    }
+}
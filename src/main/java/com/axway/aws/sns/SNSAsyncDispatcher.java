@@ -0,0 +1,156 @@
+package com.axway.aws.sns;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sns.AmazonSNSAsync;
+import com.amazonaws.services.sns.model.PublishRequest;
+import com.amazonaws.services.sns.model.PublishResult;
+import com.vordel.trace.Trace;
+
+/**
+ * Fire-and-forget publisher for the asynchronous mode of the Publish SNS Message filter.
+ *
+ * Publishes are handed to an AmazonSNSAsync client (or to the PublishBatch batcher) and the
+ * calling gateway thread returns immediately. The number of publishes in flight (queued or on
+ * the wire) is bounded by the configured capacity; what happens when it is reached is decided
+ * by the {@link BackPressure} policy.
+ */
+public class SNSAsyncDispatcher {
+
+	public static final int DEFAULT_CAPACITY = 1000;
+	public static final long DEFAULT_BLOCK_TIMEOUT_MILLIS = 1000;
+
+	/**
+	 * Behavior when the in-flight limit is reached.
+	 */
+	public enum BackPressure {
+		/** Wait for a free slot up to the block timeout, then reject. */
+		BLOCK,
+		/** Reject immediately; the filter takes its failure path. */
+		REJECT,
+		/** Abort the circuit with a CircuitAbortException. */
+		FAIL;
+
+		public static BackPressure fromValue(String value) {
+			if (value != null) {
+				for (BackPressure policy : values()) {
+					if (policy.name().equalsIgnoreCase(value.trim())) {
+						return policy;
+					}
+				}
+			}
+			return BLOCK;
+		}
+	}
+
+	private final int capacity;
+	private final BackPressure backPressure;
+	private final long blockTimeoutMillis;
+	private final Semaphore permits;
+	private volatile boolean closed;
+
+	public SNSAsyncDispatcher(int capacity, BackPressure backPressure, long blockTimeoutMillis) {
+		this.capacity = capacity > 0 ? capacity : DEFAULT_CAPACITY;
+		this.backPressure = backPressure != null ? backPressure : BackPressure.BLOCK;
+		this.blockTimeoutMillis = blockTimeoutMillis >= 0 ? blockTimeoutMillis : DEFAULT_BLOCK_TIMEOUT_MILLIS;
+		this.permits = new Semaphore(this.capacity);
+	}
+
+	public BackPressure getBackPressure() {
+		return backPressure;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Number of publishes accepted but not yet completed.
+	 */
+	public int getInFlight() {
+		return capacity - permits.availablePermits();
+	}
+
+	/**
+	 * Starts the publish and registers the callback for its completion. Returns false when the
+	 * dispatcher is full (after waiting, for the BLOCK policy) or is draining; the caller applies
+	 * the back-pressure policy.
+	 */
+	public boolean dispatch(Supplier<CompletableFuture<PublishResult>> publish,
+			final BiConsumer<PublishResult, Throwable> callback) throws InterruptedException {
+		if (closed || !acquirePermit()) {
+			return false;
+		}
+		CompletableFuture<PublishResult> future;
+		try {
+			future = publish.get();
+		} catch (RuntimeException e) {
+			// Publish could not be started (e.g. executor rejected it); give the slot back
+			permits.release();
+			throw e;
+		}
+		future.whenComplete((result, error) -> {
+			try {
+				if (callback != null) {
+					callback.accept(result, error);
+				}
+			} finally {
+				permits.release();
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Adapts AmazonSNSAsync.publishAsync to a CompletableFuture.
+	 */
+	public static CompletableFuture<PublishResult> publishAsync(AmazonSNSAsync client, PublishRequest request) {
+		final CompletableFuture<PublishResult> future = new CompletableFuture<>();
+		client.publishAsync(request, new AsyncHandler<PublishRequest, PublishResult>() {
+			@Override
+			public void onSuccess(PublishRequest req, PublishResult result) {
+				future.complete(result);
+			}
+
+			@Override
+			public void onError(Exception exception) {
+				future.completeExceptionally(exception);
+			}
+		});
+		return future;
+	}
+
+	private boolean acquirePermit() throws InterruptedException {
+		if (backPressure == BackPressure.BLOCK) {
+			return permits.tryAcquire(blockTimeoutMillis, TimeUnit.MILLISECONDS);
+		}
+		return permits.tryAcquire();
+	}
+
+	/**
+	 * Stops accepting publishes and waits up to the timeout for the in-flight ones to complete.
+	 * Returns true when everything was drained.
+	 */
+	public boolean drain(long timeoutMillis) {
+		closed = true;
+		int inFlight = getInFlight();
+		if (inFlight > 0) {
+			Trace.info("Draining " + inFlight + " in-flight asynchronous SNS publish(es)");
+		}
+		try {
+			if (permits.tryAcquire(capacity, timeoutMillis, TimeUnit.MILLISECONDS)) {
+				permits.release(capacity);
+				return true;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		Trace.error("Timed out draining asynchronous SNS publishes, " + getInFlight() + " still in flight");
+		return false;
+	}
+}
@@ -0,0 +1,30 @@
+package com.axway.aws.sns;
+
+import java.io.IOException;
+
+/**
+ * Object storage for message bodies too large to be published inline.
+ *
+ * Stores follow the object store model of S3: {@link #put(byte[])} writes an object under a new key
+ * and returns a reference to it, which is published in place of the body; subscribers read the object
+ * back with {@link #get(String)} and may delete it once processed. References are URIs naming both the
+ * store and the object, e.g. file:///var/sns-blobs/&lt;key&gt; or s3://bucket/&lt;key&gt;, so that
+ * a store can refuse references it does not own.
+ */
+public interface SNSBlobStore {
+
+	/**
+	 * Stores the data under a new key and returns its reference.
+	 */
+	String put(byte[] data) throws IOException;
+
+	/**
+	 * Reads the object of a reference returned by {@link #put(byte[])}.
+	 */
+	byte[] get(String reference) throws IOException;
+
+	/**
+	 * Deletes the object of a reference; deleting a missing object is not an error.
+	 */
+	void delete(String reference) throws IOException;
+}
@@ -0,0 +1,252 @@
+package com.axway.aws.sns;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.vordel.trace.Trace;
+
+/**
+ * Circuit breakers of one Publish SNS Message filter instance, one per topic ARN and region.
+ *
+ * A breaker records the outcome of the last publish attempts in a count-based window. Once the window
+ * holds the minimum number of calls and either the failure rate or the slow call rate reaches its
+ * threshold, the breaker opens and attempts fail immediately with {@link CircuitOpenException}. After
+ * the open duration it lets a few probe attempts through (half-open): the breaker closes when they all
+ * succeed in time and opens again on the first failed or slow probe.
+ *
+ * Only throttling and transient failures count as failures; permanent errors such as InvalidParameter
+ * depend on the message rather than on the health of the topic and are ignored.
+ */
+public class SNSCircuitBreaker {
+
+	/** Value of aws.sns.error.code when a publish is rejected by an open breaker */
+	public static final String ERROR_CODE = "CircuitOpen";
+
+	/** Topics with their own breaker; further topics are not guarded */
+	public static final int MAX_TOPICS = 500;
+
+	public static final int DEFAULT_FAILURE_RATE = 50;
+	public static final int DEFAULT_SLOW_CALL_RATE = 100;
+	public static final int DEFAULT_SLOW_CALL_DURATION_MILLIS = 5000;
+	public static final int DEFAULT_WINDOW_SIZE = 20;
+	public static final int DEFAULT_MINIMUM_CALLS = 10;
+	public static final int DEFAULT_OPEN_DURATION_MILLIS = 30000;
+	public static final int DEFAULT_HALF_OPEN_CALLS = 3;
+
+	private final int failureRateThreshold;
+	private final int slowCallRateThreshold;
+	private final long slowCallNanos;
+	private final int windowSize;
+	private final int minimumCalls;
+	private final long openNanos;
+	private final int halfOpenCalls;
+	private final ConcurrentMap<String, TopicBreaker> topics = new ConcurrentHashMap<>();
+
+	/**
+	 * @param failureRateThreshold failure rate (percent) opening the breaker
+	 * @param slowCallRateThreshold slow call rate (percent) opening the breaker, 100 or more to disable
+	 * @param slowCallDurationMillis attempts lasting at least this long are slow
+	 * @param windowSize number of recent attempts the rates are computed on
+	 * @param minimumCalls attempts needed in the window before the rates are evaluated
+	 * @param openDurationMillis time the breaker stays open before probing
+	 * @param halfOpenCalls probe attempts allowed while half-open
+	 */
+	public SNSCircuitBreaker(int failureRateThreshold, int slowCallRateThreshold, int slowCallDurationMillis,
+			int windowSize, int minimumCalls, int openDurationMillis, int halfOpenCalls) {
+		this.failureRateThreshold = failureRateThreshold > 0 ? Math.min(failureRateThreshold, 100) : DEFAULT_FAILURE_RATE;
+		this.slowCallRateThreshold = slowCallRateThreshold > 0 ? slowCallRateThreshold : DEFAULT_SLOW_CALL_RATE;
+		this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(
+			slowCallDurationMillis > 0 ? slowCallDurationMillis : DEFAULT_SLOW_CALL_DURATION_MILLIS);
+		this.windowSize = windowSize > 0 ? windowSize : DEFAULT_WINDOW_SIZE;
+		this.minimumCalls = Math.min(minimumCalls > 0 ? minimumCalls : DEFAULT_MINIMUM_CALLS, this.windowSize);
+		this.openNanos = TimeUnit.MILLISECONDS.toNanos(
+			openDurationMillis > 0 ? openDurationMillis : DEFAULT_OPEN_DURATION_MILLIS);
+		this.halfOpenCalls = halfOpenCalls > 0 ? halfOpenCalls : DEFAULT_HALF_OPEN_CALLS;
+	}
+
+	/**
+	 * Breaker of the topic, created on first use; null once {@link #MAX_TOPICS} topics are tracked.
+	 */
+	public TopicBreaker topic(String region, String topicArn) {
+		String key = region + "|" + topicArn;
+		TopicBreaker breaker = topics.get(key);
+		if (breaker != null || topics.size() >= MAX_TOPICS) {
+			return breaker;
+		}
+		return topics.computeIfAbsent(key, k -> new TopicBreaker(region, topicArn));
+	}
+
+	public String describe() {
+		return "failure rate " + failureRateThreshold + "%"
+			+ (slowCallRateThreshold < 100 ? ", slow call rate " + slowCallRateThreshold + "% over "
+				+ TimeUnit.NANOSECONDS.toMillis(slowCallNanos) + "ms" : "")
+			+ " of the last " + windowSize + " attempts (at least " + minimumCalls + "), open "
+			+ TimeUnit.NANOSECONDS.toMillis(openNanos) + "ms, " + halfOpenCalls + " probe(s)";
+	}
+
+	/**
+	 * Failure of an attempt rejected by an open breaker. Classified as permanent, so no retry follows.
+	 */
+	public static class CircuitOpenException extends SNSPublishRejectedException {
+
+		private static final long serialVersionUID = 1L;
+
+		public CircuitOpenException(String message) {
+			super(ERROR_CODE, message);
+		}
+	}
+
+	/**
+	 * Breaker of one topic and region.
+	 */
+	public class TopicBreaker {
+
+		private static final byte SUCCESS = 0;
+		private static final byte FAILURE = 1;
+		private static final byte SLOW = 2;
+
+		private final String region;
+		private final String topicArn;
+
+		/** Outcome flags of the last attempts, used as a ring */
+		private final byte[] window = new byte[windowSize];
+		private int next;
+		private int calls;
+		private int failures;
+		private int slowCalls;
+
+		private State state = State.CLOSED;
+		/** Read without locking by {@link #isOpen()} */
+		private volatile long openUntilNanos;
+		private volatile boolean open;
+		private int probesStarted;
+		private int probesSucceeded;
+
+		TopicBreaker(String region, String topicArn) {
+			this.region = region;
+			this.topicArn = topicArn;
+		}
+
+		/**
+		 * Whether the breaker is open and still within its open duration. Does not take a permission.
+		 */
+		public boolean isOpen() {
+			return open && System.nanoTime() - openUntilNanos < 0;
+		}
+
+		public synchronized String getState() {
+			return state.name();
+		}
+
+		/**
+		 * Takes the permission to start an attempt; every granted permission must be followed by
+		 * {@link #onResult(long, Throwable)}.
+		 */
+		public synchronized boolean tryAcquire() {
+			switch (state) {
+			case CLOSED:
+				return true;
+			case OPEN:
+				if (System.nanoTime() - openUntilNanos < 0) {
+					return false;
+				}
+				transition(State.HALF_OPEN, null);
+				probesStarted = 0;
+				probesSucceeded = 0;
+				// Fall through: this attempt is the first probe
+			case HALF_OPEN:
+			default:
+				if (probesStarted >= halfOpenCalls) {
+					return false;
+				}
+				probesStarted++;
+				return true;
+			}
+		}
+
+		/**
+		 * Records the outcome of an attempt started with a permission; error is null on success.
+		 */
+		public synchronized void onResult(long elapsedNanos, Throwable error) {
+			boolean failed = error != null;
+			if (failed && SNSRetryPolicy.classify(error) == SNSRetryPolicy.ErrorClass.PERMANENT) {
+				// Not a sign of an unhealthy topic: give the permission back
+				if (state == State.HALF_OPEN && probesStarted > probesSucceeded) {
+					probesStarted--;
+				}
+				return;
+			}
+			boolean slow = elapsedNanos >= slowCallNanos;
+			if (state == State.HALF_OPEN) {
+				if (failed || slow) {
+					transition(State.OPEN, failed ? "probe failed" : "probe too slow");
+				} else if (++probesSucceeded >= halfOpenCalls) {
+					transition(State.CLOSED, null);
+				}
+			} else if (state == State.CLOSED) {
+				record((byte) ((failed ? FAILURE : SUCCESS) | (slow ? SLOW : SUCCESS)));
+				if (calls >= minimumCalls) {
+					int failureRate = failures * 100 / calls;
+					int slowCallRate = slowCalls * 100 / calls;
+					if (failureRate >= failureRateThreshold) {
+						transition(State.OPEN, "failure rate " + failureRate + "% over " + calls + " attempts");
+					} else if (slowCallRateThreshold < 100 && slowCallRate >= slowCallRateThreshold) {
+						transition(State.OPEN, "slow call rate " + slowCallRate + "% over " + calls + " attempts");
+					}
+				}
+			}
+			// Attempts started before the breaker opened do not change an open breaker
+		}
+
+		/**
+		 * Exception rejecting an attempt while the breaker is open.
+		 */
+		public CircuitOpenException rejection() {
+			return new CircuitOpenException("Circuit breaker open for " + topicArn + " in " + region);
+		}
+
+		private void record(byte outcome) {
+			if (calls == window.length) {
+				byte evicted = window[next];
+				failures -= evicted & FAILURE;
+				slowCalls -= (evicted & SLOW) >> 1;
+			} else {
+				calls++;
+			}
+			window[next] = outcome;
+			failures += outcome & FAILURE;
+			slowCalls += (outcome & SLOW) >> 1;
+			next = (next + 1) % window.length;
+		}
+
+		private void transition(State target, String reason) {
+			state = target;
+			switch (target) {
+			case OPEN:
+				openUntilNanos = System.nanoTime() + openNanos;
+				open = true;
+				Trace.error("SNS circuit breaker opened for " + topicArn + " in " + region + " (" + reason + "), "
+					+ "failing fast for " + TimeUnit.NANOSECONDS.toMillis(openNanos) + "ms");
+				break;
+			case HALF_OPEN:
+				open = false;
+				Trace.info("SNS circuit breaker half-open for " + topicArn + " in " + region + ", probing");
+				break;
+			case CLOSED:
+			default:
+				open = false;
+				calls = 0;
+				failures = 0;
+				slowCalls = 0;
+				next = 0;
+				Trace.info("SNS circuit breaker closed for " + topicArn + " in " + region);
+				break;
+			}
+		}
+	}
+
+	private enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+}
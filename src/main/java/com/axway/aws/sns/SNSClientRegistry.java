@@ -0,0 +1,250 @@
+package com.axway.aws.sns;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.services.sns.AmazonSNS;
+import com.vordel.trace.Trace;
+
+/**
+ * Gateway-wide registry of SNS clients shared by all Publish SNS Message filter instances.
+ *
+ * Clients are keyed by region, credentials identity and client configuration settings,
+ * so filters with the same AWS settings reuse the same client (and its HTTP connection pool)
+ * across invocations and policy deployments. Each filter acquires a reference when it first
+ * needs a client and releases it on detach; clients without references are shut down once they
+ * have been idle longer than the idle timeout.
+ */
+public final class SNSClientRegistry {
+
+	public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+	private static final long EVICTION_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+	private static final SNSClientRegistry INSTANCE = new SNSClientRegistry(DEFAULT_IDLE_TIMEOUT_MILLIS);
+
+	private final Map<ClientKey, ClientEntry> clients = new ConcurrentHashMap<>();
+	private final long idleTimeoutMillis;
+	private final ScheduledExecutorService evictor;
+
+	SNSClientRegistry(long idleTimeoutMillis) {
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		this.evictor = Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("SNSClientRegistry-evictor"));
+		this.evictor.scheduleWithFixedDelay(this::evictIdle, EVICTION_INTERVAL_MILLIS, EVICTION_INTERVAL_MILLIS,
+			TimeUnit.MILLISECONDS);
+	}
+
+	public static SNSClientRegistry getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Returns the shared client for the key, building it with the factory on first use,
+	 * and takes a reference on it. Every call must be paired with {@link #release(ClientKey)}.
+	 */
+	public AmazonSNS acquire(ClientKey key, Supplier<? extends AmazonSNS> factory) {
+		ClientEntry entry = clients.compute(key, (k, existing) -> {
+			ClientEntry e = existing;
+			if (e == null) {
+				Trace.info("Creating shared SNS client: " + k);
+				e = new ClientEntry(factory.get());
+			}
+			e.refCount++;
+			return e;
+		});
+		return entry.client;
+	}
+
+	/**
+	 * Drops a reference taken by {@link #acquire(ClientKey, Supplier)}. The client stays
+	 * available for reuse until it has been idle for the idle timeout.
+	 */
+	public void release(ClientKey key) {
+		clients.computeIfPresent(key, (k, e) -> {
+			if (e.refCount > 0) {
+				e.refCount--;
+			}
+			if (e.refCount == 0) {
+				e.idleSince = System.currentTimeMillis();
+			}
+			return e;
+		});
+	}
+
+	/**
+	 * Number of clients currently held by the registry.
+	 */
+	public int size() {
+		return clients.size();
+	}
+
+	void evictIdle() {
+		long now = System.currentTimeMillis();
+		List<AmazonSNS> evicted = new ArrayList<>();
+		for (ClientKey key : clients.keySet()) {
+			clients.computeIfPresent(key, (k, e) -> {
+				if (e.refCount == 0 && now - e.idleSince >= idleTimeoutMillis) {
+					Trace.info("Evicting idle SNS client: " + k);
+					evicted.add(e.client);
+					return null;
+				}
+				return e;
+			});
+		}
+		for (AmazonSNS client : evicted) {
+			shutdownQuietly(client);
+		}
+	}
+
+	/**
+	 * Shuts down every client regardless of references. Intended for gateway shutdown.
+	 */
+	public void shutdown() {
+		evictor.shutdownNow();
+		for (ClientKey key : clients.keySet()) {
+			ClientEntry e = clients.remove(key);
+			if (e != null) {
+				shutdownQuietly(e.client);
+			}
+		}
+	}
+
+	private static void shutdownQuietly(AmazonSNS client) {
+		try {
+			client.shutdown();
+		} catch (Exception e) {
+			Trace.error("Error shutting down SNS client: " + e.getMessage());
+		}
+	}
+
+	static ThreadFactory daemonThreadFactory(String name) {
+		return r -> {
+			Thread t = new Thread(r, name);
+			t.setDaemon(true);
+			return t;
+		};
+	}
+
+	/**
+	 * Builds a stable description of the settings of a ClientConfiguration, used as part of the
+	 * client key so that filters referencing equivalent client configurations share a client.
+	 */
+	public static String describe(ClientConfiguration config) {
+		if (config == null) {
+			return "default";
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append("connectionTimeout=").append(config.getConnectionTimeout())
+			.append(",socketTimeout=").append(config.getSocketTimeout())
+			.append(",maxConnections=").append(config.getMaxConnections())
+			.append(",maxErrorRetry=").append(config.getMaxErrorRetry())
+			.append(",protocol=").append(config.getProtocol())
+			.append(",userAgent=").append(config.getUserAgentPrefix())
+			.append(",proxyHost=").append(config.getProxyHost())
+			.append(",proxyPort=").append(config.getProxyPort())
+			.append(",proxyUsername=").append(config.getProxyUsername())
+			.append(",proxyPassword=").append(digest(config.getProxyPassword()))
+			.append(",proxyDomain=").append(config.getProxyDomain())
+			.append(",proxyWorkstation=").append(config.getProxyWorkstation());
+		int[] bufferHints = config.getSocketBufferSizeHints();
+		if (bufferHints != null && bufferHints.length == 2) {
+			sb.append(",socketBuffers=").append(bufferHints[0]).append('/').append(bufferHints[1]);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Short SHA-256 digest used to identify secrets in keys without keeping the secret itself.
+	 */
+	static String digest(String value) {
+		if (value == null) {
+			return "none";
+		}
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < 8; i++) {
+				sb.append(String.format("%02x", hash[i]));
+			}
+			return sb.toString();
+		} catch (Exception e) {
+			return Integer.toHexString(value.hashCode());
+		}
+	}
+
+	private static final class ClientEntry {
+		final AmazonSNS client;
+		int refCount;
+		long idleSince = System.currentTimeMillis();
+
+		ClientEntry(AmazonSNS client) {
+			this.client = client;
+		}
+	}
+
+	/**
+	 * Identity of a shared client: region, credentials identity, client configuration settings
+	 * and client kind (synchronous or asynchronous).
+	 */
+	public static final class ClientKey {
+		public static final String SYNC = "sync";
+		public static final String ASYNC = "async";
+
+		private final String region;
+		private final String credentialsIdentity;
+		private final String clientConfiguration;
+		private final String kind;
+
+		public ClientKey(String region, String credentialsIdentity, String clientConfiguration) {
+			this(region, credentialsIdentity, clientConfiguration, SYNC);
+		}
+
+		public ClientKey(String region, String credentialsIdentity, String clientConfiguration, String kind) {
+			this.region = region;
+			this.credentialsIdentity = credentialsIdentity;
+			this.clientConfiguration = clientConfiguration;
+			this.kind = kind;
+		}
+
+		public String getRegion() {
+			return region;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof ClientKey)) {
+				return false;
+			}
+			ClientKey other = (ClientKey) o;
+			return Objects.equals(region, other.region)
+				&& Objects.equals(credentialsIdentity, other.credentialsIdentity)
+				&& Objects.equals(clientConfiguration, other.clientConfiguration)
+				&& Objects.equals(kind, other.kind);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(region, credentialsIdentity, clientConfiguration, kind);
+		}
+
+		@Override
+		public String toString() {
+			// Client configuration is omitted on purpose: it can be long and contains proxy settings
+			return "[region=" + region + ", credentials=" + SNSDiagnostics.redactIdentity(credentialsIdentity)
+				+ ", kind=" + kind + "]";
+		}
+	}
+}
@@ -0,0 +1,228 @@
+package com.axway.aws.sns;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.vordel.trace.Trace;
+
+/**
+ * Gateway-wide cache of AWS credentials shared by all Publish SNS Message filter instances.
+ *
+ * Providers are keyed by credentials identity (credential type with role ARN, file path and profile,
+ * or access key), so filters using the same credentials share one provider. The wrapped provider is
+ * only called from a background thread: it is polled every refresh interval, which lets the SDK
+ * providers renew STS session credentials and reload profile files ahead of expiry (they refresh
+ * within a few minutes of it), and request threads always get the last credentials loaded. A failed
+ * refresh keeps the previous credentials until the next attempt. Only the very first load, when no
+ * credentials were loaded yet, happens on the calling thread.
+ */
+public final class SNSCredentialsCache {
+
+	public static final long DEFAULT_REFRESH_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+	/** Delay before retrying a failed refresh */
+	private static final long RETRY_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+	private static final SNSCredentialsCache INSTANCE = new SNSCredentialsCache(DEFAULT_REFRESH_INTERVAL_MILLIS,
+		SNSClientRegistry.DEFAULT_IDLE_TIMEOUT_MILLIS);
+
+	private final Map<String, CachedCredentialsProvider> providers = new ConcurrentHashMap<>();
+	private final long refreshIntervalMillis;
+	private final long idleTimeoutMillis;
+	private final ScheduledExecutorService scheduler;
+
+	SNSCredentialsCache(long refreshIntervalMillis, long idleTimeoutMillis) {
+		this.refreshIntervalMillis = refreshIntervalMillis;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(
+			SNSClientRegistry.daemonThreadFactory("SNSCredentialsCache-refresher"));
+		this.scheduler.scheduleWithFixedDelay(this::evictIdle, idleTimeoutMillis, idleTimeoutMillis,
+			TimeUnit.MILLISECONDS);
+	}
+
+	public static SNSCredentialsCache getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Returns the shared provider for the identity, wrapping the one built by the factory on first use,
+	 * and takes a reference on it. Every call must be paired with {@link #release(String)}.
+	 */
+	public AWSCredentialsProvider acquire(String identity, Supplier<? extends AWSCredentialsProvider> factory) {
+		CachedCredentialsProvider provider = providers.compute(identity, (k, existing) -> {
+			CachedCredentialsProvider p = existing;
+			if (p == null) {
+				Trace.info("Creating shared AWS credentials provider: " + SNSDiagnostics.redactIdentity(k));
+				p = new CachedCredentialsProvider(k, factory.get());
+				p.start();
+			}
+			p.refCount++;
+			return p;
+		});
+		return provider;
+	}
+
+	/**
+	 * Drops a reference taken by {@link #acquire(String, Supplier)}. The provider keeps refreshing
+	 * until it has been unused for the idle timeout, so redeployed filters find warm credentials.
+	 */
+	public void release(String identity) {
+		providers.computeIfPresent(identity, (k, p) -> {
+			if (p.refCount > 0) {
+				p.refCount--;
+			}
+			if (p.refCount == 0) {
+				p.idleSince = System.currentTimeMillis();
+			}
+			return p;
+		});
+	}
+
+	/**
+	 * Number of providers currently held by the cache.
+	 */
+	public int size() {
+		return providers.size();
+	}
+
+	void evictIdle() {
+		long now = System.currentTimeMillis();
+		List<CachedCredentialsProvider> evicted = new ArrayList<>();
+		for (String identity : providers.keySet()) {
+			providers.computeIfPresent(identity, (k, p) -> {
+				if (p.refCount == 0 && now - p.idleSince >= idleTimeoutMillis) {
+					Trace.info("Evicting idle AWS credentials provider: " + SNSDiagnostics.redactIdentity(k));
+					evicted.add(p);
+					return null;
+				}
+				return p;
+			});
+		}
+		for (CachedCredentialsProvider provider : evicted) {
+			provider.stop();
+		}
+	}
+
+	/**
+	 * Stops every refresh regardless of references. Intended for gateway shutdown.
+	 */
+	public void shutdown() {
+		scheduler.shutdownNow();
+		providers.clear();
+	}
+
+	/**
+	 * Provider serving the last credentials loaded from the wrapped provider, refreshed in the background.
+	 */
+	final class CachedCredentialsProvider implements AWSCredentialsProvider {
+
+		private final String identity;
+		private final AWSCredentialsProvider delegate;
+		/** Static credentials never change, so they are not polled */
+		private final boolean refreshable;
+		private final AtomicBoolean refreshing = new AtomicBoolean();
+		private final AtomicBoolean retryScheduled = new AtomicBoolean();
+		private volatile boolean stopped;
+		private volatile AWSCredentials credentials;
+		private volatile long loadedAt;
+		private volatile ScheduledFuture<?> schedule;
+		int refCount;
+		long idleSince = System.currentTimeMillis();
+
+		CachedCredentialsProvider(String identity, AWSCredentialsProvider delegate) {
+			this.identity = identity;
+			this.delegate = delegate;
+			this.refreshable = !(delegate instanceof AWSStaticCredentialsProvider);
+		}
+
+		void start() {
+			if (refreshable) {
+				// Load right away in the background so that the first request finds credentials
+				schedule = scheduler.scheduleWithFixedDelay(() -> load(false), 0, refreshIntervalMillis,
+					TimeUnit.MILLISECONDS);
+			}
+		}
+
+		void stop() {
+			stopped = true;
+			ScheduledFuture<?> current = schedule;
+			if (current != null) {
+				current.cancel(false);
+			}
+		}
+
+		@Override
+		public AWSCredentials getCredentials() {
+			if (stopped) {
+				// Evicted while a client built with it is still cached: let the SDK provider refresh itself
+				return delegate.getCredentials();
+			}
+			AWSCredentials current = credentials;
+			if (current != null) {
+				return current;
+			}
+			synchronized (this) {
+				if (credentials == null) {
+					credentials = delegate.getCredentials();
+					loadedAt = System.currentTimeMillis();
+				}
+				return credentials;
+			}
+		}
+
+		/**
+		 * Requests a refresh without waiting for it; callers keep the current credentials meanwhile.
+		 */
+		@Override
+		public void refresh() {
+			if (refreshable && !stopped) {
+				scheduler.execute(() -> load(true));
+			}
+		}
+
+		/**
+		 * Age of the credentials served, in milliseconds, or -1 when none were loaded yet.
+		 */
+		public long getAgeMillis() {
+			return credentials != null ? System.currentTimeMillis() - loadedAt : -1;
+		}
+
+		private void load(boolean forced) {
+			if (stopped || !refreshing.compareAndSet(false, true)) {
+				return;
+			}
+			try {
+				if (forced) {
+					delegate.refresh();
+				}
+				AWSCredentials loaded = delegate.getCredentials();
+				if (loaded != null) {
+					credentials = loaded;
+					loadedAt = System.currentTimeMillis();
+				}
+			} catch (Exception e) {
+				Trace.error("Unable to refresh AWS credentials " + SNSDiagnostics.redactIdentity(identity) + ", keeping the current ones: "
+					+ e.getMessage());
+				// Retry sooner than the regular interval; the running schedule stays in place
+				if (retryScheduled.compareAndSet(false, true)) {
+					scheduler.schedule(() -> {
+						retryScheduled.set(false);
+						load(false);
+					}, RETRY_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+				}
+			} finally {
+				refreshing.set(false);
+			}
+		}
+	}
+}
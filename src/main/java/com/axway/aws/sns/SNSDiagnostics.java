@@ -0,0 +1,289 @@
+package com.axway.aws.sns;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.sns.model.PublishRequest;
+import com.vordel.trace.Trace;
+
+/**
+ * Per-publish tracing of a Publish SNS Message filter.
+ *
+ * At the summary level every publish traces a single line: topic, region, outcome, message ID or
+ * error code, attempts, latency and payload size. At the detail level a sample of the publishes also
+ * traces the request, with the body redacted to its length or truncated; the JSON and message
+ * attributes helpers trace their steps for those sampled publishes only. Trace lines of a level that
+ * is not enabled are never built. Errors are traced whatever the level, also as single lines: AWS
+ * error details, access denied and the credentials in use, with account IDs and keys redacted.
+ */
+final class SNSDiagnostics {
+
+	/**
+	 * How much is traced per publish.
+	 */
+	enum Level {
+		OFF, SUMMARY, DETAIL;
+
+		static Level fromValue(String value) {
+			if (value != null) {
+				for (Level level : values()) {
+					if (level.name().equalsIgnoreCase(value.trim())) {
+						return level;
+					}
+				}
+			}
+			return SUMMARY;
+		}
+	}
+
+	static final int DEFAULT_SAMPLE_RATE = 1;
+	/** Characters of the body traced in detail lines by default: none, only its length */
+	static final int DEFAULT_PAYLOAD_LENGTH = 0;
+
+	/** Principal named by an SNS authorization error: "User: arn:... is not authorized" */
+	private static final Pattern DENIED_PRINCIPAL = Pattern.compile("User: (arn:\\S+) is not authorized");
+	private static final Pattern ACCOUNT_ID = Pattern.compile(":\\d{12}:");
+
+	/** Line buffers grown past this size are not kept for reuse */
+	private static final int MAX_RETAINED_BUFFER = 16 * 1024;
+
+	/** Filters attached at the detail level; while there are none the helpers skip the sampled flag lookup */
+	private static final AtomicInteger detailFilters = new AtomicInteger();
+	private static final ThreadLocal<Boolean> sampled = new ThreadLocal<>();
+	private static final ThreadLocal<StringBuilder> lineBuffer = ThreadLocal.withInitial(() -> new StringBuilder(256));
+
+	private final Level level;
+	private final int sampleRate;
+	private final int payloadLength;
+	private boolean closed;
+
+	/**
+	 * @param sampleRate percentage of the publishes traced in detail at the detail level
+	 * @param payloadLength characters of the body traced in detail lines, 0 to trace its length only
+	 */
+	SNSDiagnostics(Level level, int sampleRate, int payloadLength) {
+		this.level = level != null ? level : Level.SUMMARY;
+		this.sampleRate = Math.max(0, Math.min(sampleRate, 100));
+		this.payloadLength = Math.max(0, payloadLength);
+		if (this.level == Level.DETAIL) {
+			detailFilters.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Called when the filter is detached.
+	 */
+	synchronized void close() {
+		if (!closed && level == Level.DETAIL) {
+			detailFilters.decrementAndGet();
+		}
+		closed = true;
+	}
+
+	boolean isSummaryEnabled() {
+		return level != Level.OFF;
+	}
+
+	String describe() {
+		switch (level) {
+		case OFF:
+			return "errors only";
+		case DETAIL:
+			return "summary, details of " + sampleRate + "% of publishes"
+				+ (payloadLength > 0 ? " with up to " + payloadLength + " body characters" : " with redacted body");
+		default:
+			return "summary";
+		}
+	}
+
+	/**
+	 * Samples the publish starting on this thread. When it is traced in detail, returns true and
+	 * {@link #end()} must be called once the publish is handed off.
+	 */
+	boolean begin() {
+		if (level != Level.DETAIL || sampleRate == 0
+				|| (sampleRate < 100 && ThreadLocalRandom.current().nextInt(100) >= sampleRate)) {
+			return false;
+		}
+		sampled.set(Boolean.TRUE);
+		return true;
+	}
+
+	static void end() {
+		sampled.remove();
+	}
+
+	/**
+	 * Whether the publish in progress on this thread is traced in detail.
+	 */
+	static boolean isDetailed() {
+		return detailFilters.get() > 0 && sampled.get() != null;
+	}
+
+	/**
+	 * Traces the request of a sampled publish, with the body redacted or truncated and the message
+	 * attribute names only.
+	 */
+	void detail(String region, List<String> topicArns, int maxAttempts, PublishRequest request) {
+		StringBuilder line = startLine("SNS publish detail: topic=");
+		if (topicArns.size() > 1) {
+			line.append(String.join(",", topicArns));
+		} else {
+			line.append(request.getTopicArn());
+		}
+		line.append(" region=").append(region).append(" maxAttempts=").append(maxAttempts);
+		appendOptional(line, " subject=", request.getSubject());
+		appendOptional(line, " structure=", request.getMessageStructure());
+		appendOptional(line, " groupId=", request.getMessageGroupId());
+		appendOptional(line, " deduplicationId=", request.getMessageDeduplicationId());
+		if (request.getMessageAttributes() != null && !request.getMessageAttributes().isEmpty()) {
+			line.append(" attributes=").append(request.getMessageAttributes().keySet());
+		}
+		line.append(" body=");
+		appendPayload(line, request.getMessage());
+		Trace.debug(finishLine(line));
+	}
+
+	/**
+	 * Traces the one summary line of a completed publish.
+	 *
+	 * @param messageId message ID of a successful publish
+	 * @param error failure of the publish, null on success
+	 */
+	void summary(String region, PublishRequest request, long elapsedNanos, int attempts, String messageId, Throwable error) {
+		if (level == Level.OFF) {
+			return;
+		}
+		StringBuilder line = startLine("SNS publish topic=").append(request.getTopicArn())
+			.append(" region=").append(region);
+		if (error == null) {
+			line.append(" outcome=published messageId=").append(messageId);
+		} else {
+			line.append(" outcome=failed error=").append(SNSMetrics.errorCode(error));
+		}
+		line.append(" attempts=").append(attempts)
+			.append(" latencyMs=").append(TimeUnit.NANOSECONDS.toMillis(elapsedNanos))
+			.append(" bytes=").append(SNSPublishBatcher.payloadSize(request));
+		String text = finishLine(line);
+		if (error == null) {
+			Trace.info(text);
+		} else {
+			Trace.error(text);
+		}
+	}
+
+	/**
+	 * Traces the AWS error of a failed publish in one line.
+	 */
+	static void serviceError(AmazonServiceException error) {
+		StringBuilder line = startLine("SNS error: status=").append(error.getStatusCode())
+			.append(" code=").append(error.getErrorCode())
+			.append(" type=").append(error.getErrorType())
+			.append(" requestId=").append(error.getRequestId());
+		Trace.error(finishLine(line));
+	}
+
+	/**
+	 * Traces an authorization failure in one line, with the principal SNS denied, when it names one.
+	 * The account ID is redacted and an assumed role is reduced to its role name.
+	 */
+	static void accessDenied(String topicArn, AmazonServiceException error) {
+		StringBuilder line = startLine("SNS access denied: topic=").append(redactAccount(topicArn))
+			.append(" code=").append(error.getErrorCode())
+			.append(" requestId=").append(error.getRequestId())
+			.append(" principal=");
+		Matcher principal = error.getErrorMessage() != null ? DENIED_PRINCIPAL.matcher(error.getErrorMessage()) : null;
+		if (principal != null && principal.find()) {
+			String arn = redactAccount(principal.group(1));
+			int session = arn.indexOf(":assumed-role/") >= 0 ? arn.indexOf('/', arn.indexOf(":assumed-role/") + 14) : -1;
+			line.append(session > 0 ? arn.substring(0, session) : arn);
+		} else {
+			line.append("unknown");
+		}
+		line.append(" (check the role the credentials resolve to and its sns:Publish permission on the topic)");
+		Trace.error(finishLine(line));
+	}
+
+	/**
+	 * Whether the failure is SNS refusing the credentials or their permissions.
+	 */
+	static boolean isAccessDenied(AmazonServiceException error) {
+		String code = error.getErrorCode();
+		return error.getStatusCode() == 403 || "AuthorizationError".equals(code)
+			|| (code != null && code.startsWith("AccessDenied"));
+	}
+
+	/**
+	 * Traces the credentials a filter uses in one line: the credential type, the provider and what
+	 * identifies it. Secrets are never traced, access keys only by their last four characters.
+	 */
+	static void credentials(String type, String provider, String identity) {
+		StringBuilder line = startLine("SNS credentials: type=").append(type)
+			.append(" provider=").append(provider);
+		if (identity != null) {
+			line.append(' ').append(identity);
+		}
+		Trace.info(finishLine(line));
+	}
+
+	static String redactKey(String key) {
+		return key == null || key.length() <= 4 ? "****" : "****" + key.substring(key.length() - 4);
+	}
+
+	/**
+	 * Credentials identity of a filter as traced: explicit credentials by the last four characters of
+	 * their access key, without the secret digest, and other identities with their account ID redacted.
+	 */
+	static String redactIdentity(String identity) {
+		if (identity == null || !identity.startsWith("local:")) {
+			return redactAccount(identity);
+		}
+		int end = identity.indexOf(':', 6);
+		return "local:" + redactKey(end > 0 ? identity.substring(6, end) : identity.substring(6));
+	}
+
+	static String redactAccount(String arn) {
+		return arn == null ? null : ACCOUNT_ID.matcher(arn).replaceFirst(":************:");
+	}
+
+	/**
+	 * Appends the body as the detail level shows it: its length only, or its first characters.
+	 */
+	private void appendPayload(StringBuilder line, String body) {
+		if (body == null) {
+			line.append("none");
+		} else if (payloadLength == 0) {
+			line.append("<redacted, ").append(body.length()).append(" chars>");
+		} else if (body.length() <= payloadLength) {
+			line.append('\'').append(body).append('\'');
+		} else {
+			line.append('\'').append(body, 0, payloadLength).append("'... (")
+				.append(body.length() - payloadLength).append(" more chars)");
+		}
+	}
+
+	private static void appendOptional(StringBuilder line, String name, String value) {
+		if (value != null) {
+			line.append(name).append(value);
+		}
+	}
+
+	private static StringBuilder startLine(String prefix) {
+		StringBuilder line = lineBuffer.get();
+		line.setLength(0);
+		return line.append(prefix);
+	}
+
+	private static String finishLine(StringBuilder line) {
+		String text = line.toString();
+		if (line.capacity() > MAX_RETAINED_BUFFER) {
+			lineBuffer.remove();
+		}
+		return text;
+	}
+}
@@ -0,0 +1,71 @@
+package com.axway.aws.sns;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+
+/**
+ * Blob store keeping one file per object in a local or shared directory.
+ *
+ * Objects are written to a temporary file and moved into place, so a reference is never published
+ * before its object is complete. References are file: URIs; only files directly inside the store
+ * directory are read or deleted, whatever the reference found in a message says. Subscribers must see
+ * the same directory (e.g. a shared volume), and removing old objects is left to them or to a
+ * housekeeping job, as lifecycle rules would do on an S3 bucket.
+ */
+public class SNSFileBlobStore implements SNSBlobStore {
+
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private final Path directory;
+
+	public SNSFileBlobStore(String directory) throws IOException {
+		this.directory = Paths.get(directory).toAbsolutePath().normalize();
+		Files.createDirectories(this.directory);
+	}
+
+	public Path getDirectory() {
+		return directory;
+	}
+
+	@Override
+	public String put(byte[] data) throws IOException {
+		String key = UUID.randomUUID().toString();
+		Path target = directory.resolve(key);
+		Path temp = directory.resolve(key + TEMP_SUFFIX);
+		try {
+			Files.write(temp, data);
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+		return target.toUri().toString();
+	}
+
+	@Override
+	public byte[] get(String reference) throws IOException {
+		return Files.readAllBytes(resolve(reference));
+	}
+
+	@Override
+	public void delete(String reference) throws IOException {
+		Files.deleteIfExists(resolve(reference));
+	}
+
+	private Path resolve(String reference) throws IOException {
+		Path path;
+		try {
+			path = Paths.get(new URI(reference)).normalize();
+		} catch (Exception e) {
+			throw new IOException("Invalid blob reference: " + reference);
+		}
+		if (!directory.equals(path.getParent()) || path.getFileName().toString().endsWith(TEMP_SUFFIX)) {
+			throw new IOException("Blob reference outside of " + directory + ": " + reference);
+		}
+		return path;
+	}
+}
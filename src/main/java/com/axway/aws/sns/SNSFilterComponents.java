@@ -0,0 +1,125 @@
+package com.axway.aws.sns;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import com.vordel.trace.Trace;
+
+/**
+ * Gateway-wide registry of the stateful components of Publish SNS Message filters: dispatchers,
+ * batcher, metrics, circuit breaker, rate limiter and idempotency window.
+ *
+ * Components are keyed by filter identity and component name, and carry the settings they were
+ * built with. A policy deployment attaches the new instance of a filter before detaching the one it
+ * replaces; the new instance then takes over every component whose settings are unchanged, with its
+ * threads, queues and state, and only changed components are built anew. The replaced instance keeps
+ * the components it holds for its in-flight publishes, and a component is closed (drained) once the
+ * last instance holding it releases it.
+ */
+public final class SNSFilterComponents {
+
+	private static final SNSFilterComponents INSTANCE = new SNSFilterComponents();
+
+	private final Map<String, Lease<?>> components = new ConcurrentHashMap<>();
+
+	SNSFilterComponents() {
+	}
+
+	public static SNSFilterComponents getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Returns the component of the filter when it was built with the same settings, taking a
+	 * reference on it, or builds a new one with the factory. Every call must be paired with
+	 * {@link Lease#release()}.
+	 *
+	 * @param settings description of every setting the component is built from
+	 * @param closer called once the last reference is released, null when nothing needs closing
+	 */
+	public <T> Lease<T> acquire(String filterKey, String component, String settings, Supplier<? extends T> factory,
+			Consumer<? super T> closer) {
+		String key = filterKey + "|" + component;
+		Lease<?>[] acquired = new Lease<?>[1];
+		components.compute(key, (k, existing) -> {
+			if (existing != null && existing.settings.equals(settings) && existing.retain()) {
+				acquired[0] = existing;
+				return existing;
+			}
+			// A component with other settings stays open for the instances still holding it
+			Lease<T> lease = new Lease<>(k, settings, factory.get(), closer);
+			acquired[0] = lease;
+			return lease;
+		});
+		@SuppressWarnings("unchecked")
+		Lease<T> lease = (Lease<T>) acquired[0];
+		return lease;
+	}
+
+	/**
+	 * Number of components currently held.
+	 */
+	public int size() {
+		return components.size();
+	}
+
+	/**
+	 * Reference to a component shared by the instances of a filter.
+	 */
+	public final class Lease<T> {
+		private final String key;
+		private final String settings;
+		private final T component;
+		private final Consumer<? super T> closer;
+		private int refCount = 1;
+		private boolean reused;
+
+		Lease(String key, String settings, T component, Consumer<? super T> closer) {
+			this.key = key;
+			this.settings = settings;
+			this.component = component;
+			this.closer = closer;
+		}
+
+		public T get() {
+			return component;
+		}
+
+		/**
+		 * Whether the component was taken over from a running instance of the filter.
+		 */
+		public synchronized boolean isReused() {
+			return reused;
+		}
+
+		private synchronized boolean retain() {
+			if (refCount == 0) {
+				return false;
+			}
+			refCount++;
+			reused = true;
+			return true;
+		}
+
+		/**
+		 * Drops the reference; the last one closes the component.
+		 */
+		public void release() {
+			synchronized (this) {
+				if (refCount == 0 || --refCount > 0) {
+					return;
+				}
+			}
+			components.remove(key, this);
+			if (closer != null) {
+				try {
+					closer.accept(component);
+				} catch (RuntimeException e) {
+					Trace.error("Error closing SNS filter component " + key + ": " + e.getMessage());
+				}
+			}
+		}
+	}
+}
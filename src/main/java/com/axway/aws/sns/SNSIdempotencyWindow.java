@@ -0,0 +1,238 @@
+package com.axway.aws.sns;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.amazonaws.services.sns.model.PublishRequest;
+
+/**
+ * Idempotency window of one Publish SNS Message filter instance: remembers the message ID of the
+ * publishes sent successfully over the last window, by idempotency key, so that duplicates of them are
+ * not published again.
+ *
+ * The first publish of a key claims it and reports its outcome; a duplicate arriving meanwhile can wait
+ * for that outcome. A failed publish releases its key, so a later duplicate is published. Keys are
+ * held in striped, insertion-ordered maps bounded both by age and by number of entries: the oldest
+ * keys are dropped first, and keys claimed but never completed expire like the others.
+ */
+public class SNSIdempotencyWindow {
+
+	public static final int DEFAULT_WINDOW_SECONDS = 300;
+	public static final int DEFAULT_MAX_ENTRIES = 100000;
+	/** Longest wait of a duplicate for the publish in progress */
+	public static final long MAX_WAIT_MILLIS = 30000;
+
+	private static final int STRIPES = 16;
+
+	private static final ThreadLocal<MessageDigest> sha256 = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	});
+
+	private final long windowNanos;
+	private final int maxEntriesPerStripe;
+	private final Stripe[] stripes = new Stripe[STRIPES];
+
+	public SNSIdempotencyWindow(int windowSeconds, int maxEntries) {
+		this.windowNanos = TimeUnit.SECONDS.toNanos(windowSeconds > 0 ? windowSeconds : DEFAULT_WINDOW_SECONDS);
+		this.maxEntriesPerStripe = Math.max(1, (maxEntries > 0 ? maxEntries : DEFAULT_MAX_ENTRIES) / STRIPES);
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe();
+		}
+	}
+
+	public String describe() {
+		return TimeUnit.NANOSECONDS.toSeconds(windowNanos) + "s window, up to " + maxEntriesPerStripe * STRIPES + " keys";
+	}
+
+	/**
+	 * Number of keys currently held.
+	 */
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				size += stripe.entries.size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Idempotency key of a publish without a configured key: hash of the topic, the FIFO message group,
+	 * the subject and the message.
+	 */
+	public static String payloadKey(PublishRequest request) {
+		return payloadKey(request, request.getTopicArn());
+	}
+
+	/**
+	 * Same as {@link #payloadKey(PublishRequest)}, for the publish of the request to the given topic.
+	 */
+	public static String payloadKey(PublishRequest request, String topicArn) {
+		MessageDigest digest = sha256.get();
+		digest.reset();
+		for (String part : new String[] { topicArn, request.getMessageGroupId(), request.getSubject(),
+				request.getMessage() }) {
+			if (part != null) {
+				digest.update(part.getBytes(StandardCharsets.UTF_8));
+			}
+			digest.update((byte) 0);
+		}
+		return Base64.getEncoder().encodeToString(digest.digest());
+	}
+
+	/**
+	 * Claims the key for a publish. The returned claim either makes the caller the publisher of the
+	 * key, or refers to the publish of the key already sent or in progress.
+	 */
+	public Claim claim(String key) {
+		Stripe stripe = stripes[(key.hashCode() & 0x7fffffff) % STRIPES];
+		long now = System.nanoTime();
+		synchronized (stripe) {
+			stripe.expire(now);
+			Claim existing = stripe.entries.get(key);
+			if (existing != null) {
+				return new Claim(existing);
+			}
+			Claim claim = new Claim(stripe, key, now + windowNanos);
+			stripe.entries.put(key, claim);
+			while (stripe.entries.size() > maxEntriesPerStripe) {
+				Iterator<Claim> oldest = stripe.entries.values().iterator();
+				oldest.next().result.complete(null);
+				oldest.remove();
+			}
+			return claim;
+		}
+	}
+
+	/**
+	 * Keys of one stripe, oldest first. Guarded by its own monitor.
+	 */
+	private static final class Stripe {
+		final LinkedHashMap<String, Claim> entries = new LinkedHashMap<>();
+
+		void expire(long now) {
+			Iterator<Claim> iterator = entries.values().iterator();
+			while (iterator.hasNext()) {
+				Claim claim = iterator.next();
+				if (claim.expiresAt - now > 0) {
+					break;
+				}
+				claim.result.complete(null);
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Claim on a key: held by the first publish of the key, which reports its outcome with
+	 * {@link #succeeded(String)} or {@link #failed()}, or a reference to that publish for duplicates.
+	 */
+	public final class Claim {
+		private final Stripe stripe;
+		private final String key;
+		private final boolean owner;
+		/** Message ID of the publish, null when it failed or was forgotten */
+		private final CompletableFuture<String> result;
+		private long expiresAt;
+
+		private Claim(Stripe stripe, String key, long expiresAt) {
+			this.stripe = stripe;
+			this.key = key;
+			this.owner = true;
+			this.result = new CompletableFuture<>();
+			this.expiresAt = expiresAt;
+		}
+
+		private Claim(Claim original) {
+			this.stripe = original.stripe;
+			this.key = original.key;
+			this.owner = false;
+			this.result = original.result;
+		}
+
+		/**
+		 * Whether the caller holds the key and must publish.
+		 */
+		public boolean isOwner() {
+			return owner;
+		}
+
+		/**
+		 * Whether the publish of the key is still in progress.
+		 */
+		public boolean isPending() {
+			return !result.isDone();
+		}
+
+		/**
+		 * Message ID of the original publish, null when it is unknown yet.
+		 */
+		public String getMessageId() {
+			return result.getNow(null);
+		}
+
+		/**
+		 * Completes with the message ID of the original publish once it completes, with null when it
+		 * failed or was forgotten.
+		 */
+		public CompletableFuture<String> messageId() {
+			return result.thenApply(messageId -> messageId);
+		}
+
+		/**
+		 * Message ID of the original publish, waiting for it up to the timeout when it is still in
+		 * progress. Returns null when it failed, is still in progress or was forgotten.
+		 */
+		public String awaitMessageId(long timeoutMillis) throws InterruptedException {
+			try {
+				return result.get(Math.min(timeoutMillis, MAX_WAIT_MILLIS), TimeUnit.MILLISECONDS);
+			} catch (ExecutionException | TimeoutException e) {
+				return null;
+			}
+		}
+
+		/**
+		 * Records the successful publish of the key; duplicates get its message ID for the whole window.
+		 */
+		public void succeeded(String messageId) {
+			if (!owner) {
+				return;
+			}
+			synchronized (stripe) {
+				// Moved to the tail: the window starts when the publish was sent
+				if (stripe.entries.remove(key, this)) {
+					expiresAt = System.nanoTime() + windowNanos;
+					stripe.entries.put(key, this);
+				}
+			}
+			result.complete(messageId);
+		}
+
+		/**
+		 * Releases the key after a failed publish, so that a duplicate is published. Does nothing once
+		 * the publish was recorded as successful.
+		 */
+		public void failed() {
+			if (!owner || result.isDone()) {
+				return;
+			}
+			synchronized (stripe) {
+				stripe.entries.remove(key, this);
+			}
+			result.complete(null);
+		}
+	}
+}
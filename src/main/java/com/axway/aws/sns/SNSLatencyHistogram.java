@@ -0,0 +1,132 @@
+package com.axway.aws.sns;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with log-linear buckets.
+ *
+ * Values (microseconds) below 16 get their own bucket; above that every power of two is split in 8
+ * sub-buckets, so any percentile is reported with at most 12.5% relative error from a fixed array of
+ * a few hundred counters, whatever the number of recorded values.
+ */
+public class SNSLatencyHistogram {
+
+	private static final int LINEAR_BUCKETS = 16;
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int MIN_EXPONENT = 4;
+	/** Largest tracked exponent: 2^40 microseconds is about 12 days */
+	private static final int MAX_EXPONENT = 40;
+	private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+
+	private final AtomicLongArray counts = new AtomicLongArray(bucketCount());
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records one value in microseconds; negative values count as zero.
+	 */
+	public void record(long micros) {
+		long value = Math.min(Math.max(micros, 0), MAX_VALUE);
+		counts.incrementAndGet(bucketIndex(value));
+		count.increment();
+		sum.add(value);
+		long currentMax;
+		while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {
+			// Retry until the maximum is published
+		}
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long n = count.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+	/**
+	 * Value at the given percentile (0-100), in microseconds: the upper bound of the bucket holding it,
+	 * capped at the recorded maximum. Returns 0 when nothing was recorded.
+	 */
+	public long getPercentile(double percentile) {
+		long[] totals = new long[counts.length()];
+		addCounts(totals);
+		return percentile(totals, percentile, max.get());
+	}
+
+	long getSum() {
+		return sum.sum();
+	}
+
+	/**
+	 * Adds the bucket counts to the totals, e.g. to merge several histograms.
+	 */
+	void addCounts(long[] totals) {
+		for (int i = 0; i < totals.length; i++) {
+			totals[i] += counts.get(i);
+		}
+	}
+
+	static int bucketCount() {
+		return LINEAR_BUCKETS + (MAX_EXPONENT - MIN_EXPONENT + 1) * SUB_BUCKETS;
+	}
+
+	/**
+	 * Value at the percentile of the bucket counts, capped at the maximum; 0 when the counts are empty.
+	 */
+	static long percentile(long[] totals, double percentile, long max) {
+		long total = 0;
+		for (long count : totals) {
+			total += count;
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(total * Math.min(Math.max(percentile, 0), 100) / 100.0));
+		long seen = 0;
+		for (int i = 0; i < totals.length; i++) {
+			seen += totals[i];
+			if (seen >= rank) {
+				return Math.min(bucketUpperBound(i), max);
+			}
+		}
+		return max;
+	}
+
+	public void reset() {
+		for (int i = 0; i < counts.length(); i++) {
+			counts.set(i, 0);
+		}
+		count.reset();
+		sum.reset();
+		max.set(0);
+	}
+
+	static int bucketIndex(long value) {
+		if (value < LINEAR_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return LINEAR_BUCKETS + (exponent - MIN_EXPONENT) * SUB_BUCKETS + subBucket;
+	}
+
+	static long bucketUpperBound(int index) {
+		if (index < LINEAR_BUCKETS) {
+			return index;
+		}
+		int exponent = (index - LINEAR_BUCKETS) / SUB_BUCKETS + MIN_EXPONENT;
+		int subBucket = (index - LINEAR_BUCKETS) % SUB_BUCKETS;
+		int shift = exponent - SUB_BUCKET_BITS;
+		return ((long) (SUB_BUCKETS + subBucket + 1) << shift) - 1;
+	}
+}
@@ -1,14 +1,16 @@
 package com.axway.aws.sns;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Base64;
-import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
 import com.amazonaws.services.sns.model.MessageAttributeValue;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.vordel.trace.Trace;
 
 /**
@@ -19,7 +21,12 @@ public class SNSMessageAttributesHelper {
 	public static final int MAX_ATTRIBUTES = 10;
 	public static final String MAX_ATTRIBUTES_MESSAGE = "Maximum of 10 attributes reached";
 
-	private static final ObjectMapper objectMapper = new ObjectMapper();
+	private static final JsonFactory jsonFactory = new JsonFactory();
+
+	/** Largest Base64 text decoded through the per-thread scratch buffer */
+	private static final int MAX_SCRATCH_SIZE = 64 * 1024;
+
+	private static final ThreadLocal<byte[]> scratchBuffer = ThreadLocal.withInitial(() -> new byte[1024]);
 
 	private SNSMessageAttributesHelper() {
 	}
@@ -27,45 +34,49 @@ public class SNSMessageAttributesHelper {
 	/**
 	 * Parses JSON into SNS MessageAttributes map. Returns null when input is null/blank
 	 * (caller should omit MessageAttributes on PublishRequest).
+	 *
+	 * The JSON is read in a single streaming pass, without building a tree: attribute rules are checked
+	 * as tokens arrive and BinaryValue is Base64-decoded straight from the parser buffer.
 	 */
 	public static Map<String, MessageAttributeValue> parseMessageAttributes(String json) {
+		boolean detailed = SNSDiagnostics.isDetailed();
 		if (json == null || json.trim().isEmpty()) {
-			Trace.debug("Message attributes JSON is empty, omitting MessageAttributes");
+			if (detailed) {
+				Trace.debug("Message attributes JSON is empty, omitting MessageAttributes");
+			}
 			return null;
 		}
 
-		String trimmed = json.trim();
-		Trace.debug("=== SNSMessageAttributesHelper Debug ===");
-		Trace.debug("Input JSON length: " + trimmed.length());
-
-		try {
-			JsonNode root = objectMapper.readTree(trimmed);
-			if (!root.isObject()) {
+		try (JsonParser parser = jsonFactory.createParser(json)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
 				throw new IllegalArgumentException("Message attributes JSON must be an object");
 			}
 
-			int count = root.size();
-			if (count == 0) {
-				Trace.debug("Message attributes object is empty, omitting MessageAttributes");
-				return null;
-			}
-			if (count > MAX_ATTRIBUTES) {
-				throw new IllegalArgumentException(MAX_ATTRIBUTES_MESSAGE);
+			Map<String, MessageAttributeValue> attributes = null;
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String name = parser.getCurrentName();
+				if (name.trim().isEmpty()) {
+					throw new IllegalArgumentException("Message attribute name cannot be empty");
+				}
+				if (attributes == null) {
+					attributes = new LinkedHashMap<>();
+				} else if (attributes.size() >= MAX_ATTRIBUTES && !attributes.containsKey(name)) {
+					throw new IllegalArgumentException(MAX_ATTRIBUTES_MESSAGE);
+				}
+				attributes.put(name, readMessageAttributeValue(name, parser));
 			}
 
-			Map<String, MessageAttributeValue> attributes = new LinkedHashMap<>();
-			Iterator<Map.Entry<String, JsonNode>> fields = root.fields();
-			while (fields.hasNext()) {
-				Map.Entry<String, JsonNode> entry = fields.next();
-				String name = entry.getKey();
-				if (name == null || name.trim().isEmpty()) {
-					throw new IllegalArgumentException("Message attribute name cannot be empty");
+			if (attributes == null) {
+				if (detailed) {
+					Trace.debug("Message attributes object is empty, omitting MessageAttributes");
 				}
-				MessageAttributeValue value = toMessageAttributeValue(name, entry.getValue());
-				attributes.put(name, value);
+				return null;
 			}
 
-			Trace.debug("Parsed " + attributes.size() + " message attribute(s): " + attributes.keySet());
+			if (detailed) {
+				Trace.debug("Parsed " + attributes.size() + " message attribute(s) from " + json.length()
+					+ " chars: " + attributes.keySet());
+			}
 			return attributes;
 
 		} catch (IllegalArgumentException e) {
@@ -75,43 +86,117 @@ public class SNSMessageAttributesHelper {
 		}
 	}
 
-	private static MessageAttributeValue toMessageAttributeValue(String name, JsonNode node) {
-		if (node == null || !node.isObject()) {
+	/**
+	 * Reads one attribute object; the parser is positioned on its name and is left on its END_OBJECT.
+	 */
+	private static MessageAttributeValue readMessageAttributeValue(String name, JsonParser parser) throws IOException {
+		if (parser.nextToken() != JsonToken.START_OBJECT) {
 			throw new IllegalArgumentException("Message attribute '" + name + "' must be an object");
 		}
 
-		JsonNode dataTypeNode = node.get("DataType");
-		if (dataTypeNode == null || dataTypeNode.isNull() || dataTypeNode.asText().trim().isEmpty()) {
-			throw new IllegalArgumentException("Message attribute '" + name + "' requires DataType");
+		String dataType = null;
+		String stringValue = null;
+		ByteBuffer binaryValue = null;
+
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken token = parser.nextToken();
+			if ("DataType".equals(field)) {
+				dataType = scalarText(parser, token);
+			} else if ("StringValue".equals(field)) {
+				stringValue = token == JsonToken.VALUE_NULL ? null : scalarText(parser, token);
+			} else if ("BinaryValue".equals(field)) {
+				binaryValue = token == JsonToken.VALUE_NULL ? null : readBinaryValue(name, parser, token);
+			} else {
+				parser.skipChildren();
+			}
 		}
-		String dataType = dataTypeNode.asText().trim();
-
-		JsonNode stringValueNode = node.get("StringValue");
-		JsonNode binaryValueNode = node.get("BinaryValue");
 
-		boolean hasString = stringValueNode != null && !stringValueNode.isNull();
-		boolean hasBinary = binaryValueNode != null && !binaryValueNode.isNull();
-
-		if (!hasString && !hasBinary) {
+		if (dataType == null || dataType.trim().isEmpty()) {
+			throw new IllegalArgumentException("Message attribute '" + name + "' requires DataType");
+		}
+		if (stringValue == null && binaryValue == null) {
 			throw new IllegalArgumentException(
 				"Message attribute '" + name + "' requires StringValue or BinaryValue");
 		}
 
-		MessageAttributeValue value = new MessageAttributeValue().withDataType(dataType);
+		MessageAttributeValue value = new MessageAttributeValue().withDataType(dataType.trim());
+		if (binaryValue != null) {
+			value.withBinaryValue(binaryValue);
+		}
+		if (stringValue != null) {
+			value.withStringValue(stringValue);
+		}
+		return value;
+	}
+
+	/**
+	 * Text of a scalar value; objects and arrays read as an empty string, null as null.
+	 */
+	private static String scalarText(JsonParser parser, JsonToken token) throws IOException {
+		if (token == JsonToken.VALUE_NULL) {
+			return null;
+		}
+		if (token.isStructStart()) {
+			parser.skipChildren();
+			return "";
+		}
+		return parser.getText();
+	}
 
-		if (hasBinary) {
-			String binaryText = binaryValueNode.asText();
-			if (binaryText == null || binaryText.trim().isEmpty()) {
+	/**
+	 * Decodes a BinaryValue from the parser's character buffer: the Base64 text is copied into a
+	 * per-thread scratch array instead of a String, then decoded straight into the attribute ByteBuffer.
+	 */
+	private static ByteBuffer readBinaryValue(String name, JsonParser parser, JsonToken token) throws IOException {
+		if (token != JsonToken.VALUE_STRING) {
+			String text = scalarText(parser, token);
+			if (text.trim().isEmpty()) {
 				throw new IllegalArgumentException("Message attribute '" + name + "' BinaryValue cannot be empty");
 			}
-			byte[] decoded = Base64.getDecoder().decode(binaryText.trim());
-			value.withBinaryValue(ByteBuffer.wrap(decoded));
+			return decode(name, ByteBuffer.wrap(text.trim().getBytes(StandardCharsets.ISO_8859_1)));
 		}
 
-		if (hasString) {
-			value.withStringValue(stringValueNode.asText());
+		char[] chars = parser.getTextCharacters();
+		int offset = parser.getTextOffset();
+		int length = parser.getTextLength();
+		while (length > 0 && chars[offset] <= ' ') {
+			offset++;
+			length--;
+		}
+		while (length > 0 && chars[offset + length - 1] <= ' ') {
+			length--;
+		}
+		if (length == 0) {
+			throw new IllegalArgumentException("Message attribute '" + name + "' BinaryValue cannot be empty");
 		}
 
-		return value;
+		byte[] ascii = scratch(length);
+		for (int i = 0; i < length; i++) {
+			char c = chars[offset + i];
+			// Non-ASCII characters are rejected by the decoder as '?'
+			ascii[i] = c < 0x80 ? (byte) c : (byte) '?';
+		}
+		return decode(name, ByteBuffer.wrap(ascii, 0, length));
+	}
+
+	private static ByteBuffer decode(String name, ByteBuffer base64) {
+		try {
+			return Base64.getDecoder().decode(base64);
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Message attribute '" + name + "' BinaryValue is not valid Base64", e);
+		}
+	}
+
+	private static byte[] scratch(int length) {
+		if (length > MAX_SCRATCH_SIZE) {
+			return new byte[length];
+		}
+		byte[] buffer = scratchBuffer.get();
+		if (buffer.length < length) {
+			buffer = new byte[Math.max(length, buffer.length * 2)];
+			scratchBuffer.set(buffer);
+		}
+		return buffer;
 	}
 }
@@ -0,0 +1,231 @@
+package com.axway.aws.sns;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.services.sns.model.MessageAttributeValue;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.vordel.circuit.Message;
+import com.vordel.el.Selector;
+import com.vordel.trace.Trace;
+
+/**
+ * Compiled form of a message attributes JSON template.
+ *
+ * The template is parsed and validated once: attribute names, data types and literal values are
+ * kept as they are, and only values containing ${...} expressions are evaluated per message. Compiled
+ * templates are cached by template text, so filters sharing the same attributes share the work, and
+ * so do Groovy script invocations passing the same attributes JSON (see SNSScriptPublisher).
+ *
+ * Templates whose JSON only becomes valid after substitution (an expression outside a string value,
+ * or in an attribute name or data type) cannot be compiled; {@link #forTemplate(String)} returns null
+ * for them and the caller falls back to {@link SNSMessageAttributesHelper#parseMessageAttributes(String)}.
+ */
+public class SNSMessageAttributesTemplate {
+
+	public static final int MAX_CACHED_TEMPLATES = 256;
+
+	private static final ObjectMapper objectMapper = new ObjectMapper();
+
+	/** Template text to compiled template, least recently used first */
+	private static final Map<String, SNSMessageAttributesTemplate> cache = Collections.synchronizedMap(
+		new LinkedHashMap<String, SNSMessageAttributesTemplate>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, SNSMessageAttributesTemplate> eldest) {
+				return size() > MAX_CACHED_TEMPLATES;
+			}
+		});
+
+	private static final SNSMessageAttributesTemplate EMPTY = new SNSMessageAttributesTemplate(
+		Collections.<CompiledAttribute>emptyList());
+
+	private final List<CompiledAttribute> attributes;
+
+	private SNSMessageAttributesTemplate(List<CompiledAttribute> attributes) {
+		this.attributes = attributes;
+	}
+
+	/**
+	 * Returns the compiled template for the configured attributes JSON, compiling it on first use.
+	 * Returns null when the template cannot be compiled before substitution.
+	 *
+	 * @throws IllegalArgumentException when the template is invalid whatever the substituted values
+	 */
+	public static SNSMessageAttributesTemplate forTemplate(String template) {
+		if (template == null || template.trim().isEmpty()) {
+			return EMPTY;
+		}
+		String key = template.trim();
+		SNSMessageAttributesTemplate compiled = cache.get(key);
+		if (compiled == null) {
+			compiled = compile(key);
+			if (compiled != null) {
+				Trace.debug("Compiled message attributes template with " + compiled.attributes.size() + " attribute(s)");
+				cache.put(key, compiled);
+			}
+		}
+		return compiled;
+	}
+
+	/**
+	 * Whether the template defines no attributes.
+	 */
+	public boolean isEmpty() {
+		return attributes.isEmpty();
+	}
+
+	/**
+	 * Builds the attributes for one message. Returns null when the template has no attributes
+	 * (caller should omit MessageAttributes on PublishRequest).
+	 */
+	public Map<String, MessageAttributeValue> bind(Message msg) {
+		if (attributes.isEmpty()) {
+			return null;
+		}
+		Map<String, MessageAttributeValue> values = new LinkedHashMap<>(attributes.size() * 2);
+		for (CompiledAttribute attribute : attributes) {
+			values.put(attribute.name, attribute.bind(msg));
+		}
+		return values;
+	}
+
+	private static SNSMessageAttributesTemplate compile(String template) {
+		JsonNode root;
+		try {
+			root = objectMapper.readTree(template);
+		} catch (Exception e) {
+			if (template.contains("${")) {
+				// Only valid once substituted
+				return null;
+			}
+			throw new IllegalArgumentException("Invalid message attributes JSON: " + e.getMessage(), e);
+		}
+		if (root == null || !root.isObject()) {
+			if (template.contains("${")) {
+				return null;
+			}
+			throw new IllegalArgumentException("Message attributes JSON must be an object");
+		}
+		if (root.size() > SNSMessageAttributesHelper.MAX_ATTRIBUTES) {
+			throw new IllegalArgumentException(SNSMessageAttributesHelper.MAX_ATTRIBUTES_MESSAGE);
+		}
+
+		List<CompiledAttribute> compiled = new ArrayList<>(root.size());
+		Iterator<Map.Entry<String, JsonNode>> fields = root.fields();
+		while (fields.hasNext()) {
+			Map.Entry<String, JsonNode> entry = fields.next();
+			String name = entry.getKey();
+			if (name.contains("${")) {
+				return null;
+			}
+			if (name.trim().isEmpty()) {
+				throw new IllegalArgumentException("Message attribute name cannot be empty");
+			}
+			CompiledAttribute attribute = compileAttribute(name, entry.getValue());
+			if (attribute == null) {
+				return null;
+			}
+			compiled.add(attribute);
+		}
+		return compiled.isEmpty() ? EMPTY : new SNSMessageAttributesTemplate(Collections.unmodifiableList(compiled));
+	}
+
+	private static CompiledAttribute compileAttribute(String name, JsonNode node) {
+		if (node == null || !node.isObject()) {
+			throw new IllegalArgumentException("Message attribute '" + name + "' must be an object");
+		}
+
+		JsonNode dataTypeNode = node.get("DataType");
+		if (dataTypeNode == null || dataTypeNode.isNull() || dataTypeNode.asText().trim().isEmpty()) {
+			throw new IllegalArgumentException("Message attribute '" + name + "' requires DataType");
+		}
+		String dataType = dataTypeNode.asText().trim();
+		if (dataType.contains("${")) {
+			return null;
+		}
+
+		JsonNode stringValueNode = node.get("StringValue");
+		JsonNode binaryValueNode = node.get("BinaryValue");
+
+		boolean hasString = stringValueNode != null && !stringValueNode.isNull();
+		boolean hasBinary = binaryValueNode != null && !binaryValueNode.isNull();
+
+		if (!hasString && !hasBinary) {
+			throw new IllegalArgumentException(
+				"Message attribute '" + name + "' requires StringValue or BinaryValue");
+		}
+
+		CompiledAttribute attribute = new CompiledAttribute(name, dataType);
+		if (hasString) {
+			String text = stringValueNode.asText();
+			if (text.contains("${")) {
+				attribute.stringSelector = new Selector<>(text, String.class);
+			} else {
+				attribute.stringValue = text;
+			}
+		}
+		if (hasBinary) {
+			String text = binaryValueNode.asText();
+			if (text.contains("${")) {
+				attribute.binarySelector = new Selector<>(text, String.class);
+			} else {
+				attribute.binaryValue = decodeBinary(name, text);
+			}
+		}
+		return attribute;
+	}
+
+	private static byte[] decodeBinary(String name, String text) {
+		if (text == null || text.trim().isEmpty()) {
+			throw new IllegalArgumentException("Message attribute '" + name + "' BinaryValue cannot be empty");
+		}
+		try {
+			return Base64.getDecoder().decode(text.trim());
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Message attribute '" + name + "' BinaryValue is not valid Base64", e);
+		}
+	}
+
+	/**
+	 * One attribute: name and data type are fixed, each value is either a literal or a selector.
+	 */
+	private static final class CompiledAttribute {
+		private final String name;
+		private final String dataType;
+		private String stringValue;
+		private Selector<String> stringSelector;
+		private byte[] binaryValue;
+		private Selector<String> binarySelector;
+
+		private CompiledAttribute(String name, String dataType) {
+			this.name = name;
+			this.dataType = dataType;
+		}
+
+		private MessageAttributeValue bind(Message msg) {
+			MessageAttributeValue value = new MessageAttributeValue().withDataType(dataType);
+			if (binarySelector != null) {
+				value.withBinaryValue(ByteBuffer.wrap(decodeBinary(name, binarySelector.substitute(msg))));
+			} else if (binaryValue != null) {
+				// Each request gets its own read-only view of the shared bytes
+				value.withBinaryValue(ByteBuffer.wrap(binaryValue).asReadOnlyBuffer());
+			}
+			if (stringSelector != null) {
+				String substituted = stringSelector.substitute(msg);
+				value.withStringValue(substituted != null ? substituted : "");
+			} else if (stringValue != null) {
+				value.withStringValue(stringValue);
+			}
+			return value;
+		}
+	}
+}
@@ -0,0 +1,165 @@
+package com.axway.aws.sns;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.Arrays;
+
+import com.vordel.mime.Body;
+import com.vordel.mime.ContentType;
+
+/**
+ * Message body of a publish, read from the content body stream of the message into this thread's
+ * reusable buffer and decoded once, without the intermediate copies of the ${content.body} selector.
+ *
+ * The body is streamed without its Content-Transfer-Encoding and decoded with the charset of its
+ * Content-Type, UTF-8 when it has none. SNS takes UTF-8, so a body in another charset is transcoded
+ * to UTF-8 for the size check and the payload codec; a UTF-8 (or ASCII) body is decoded straight from
+ * the read buffer. Reading stops as soon as the body exceeds what the limit allows, so an oversized
+ * body is rejected before it is fully read. A content body that is not a stream (already a string) is
+ * used as is. The UTF-8 bytes stay available to the payload codec until the next body is read on the
+ * same thread.
+ */
+final class SNSMessageBody {
+
+	static final String CONTENT_BODY = "content.body";
+
+	private static final int INITIAL_BUFFER = 16 * 1024;
+	/** Buffers grown past this size are not kept for reuse */
+	private static final int MAX_RETAINED_BUFFER = 512 * 1024;
+
+	private static final ThreadLocal<byte[]> readBuffer = ThreadLocal.withInitial(() -> new byte[INITIAL_BUFFER]);
+
+	private final String text;
+	private final byte[] data;
+	private final int length;
+
+	private SNSMessageBody(String text, byte[] data, int length) {
+		this.text = text;
+		this.data = data;
+		this.length = length;
+	}
+
+	/**
+	 * Body as sent, never null.
+	 */
+	String getText() {
+		return text;
+	}
+
+	/**
+	 * UTF-8 bytes of the body in the shared buffer (the first {@link #getLength()} bytes), null when
+	 * the body was not read from a stream.
+	 */
+	byte[] getData() {
+		return data;
+	}
+
+	int getLength() {
+		return length;
+	}
+
+	/**
+	 * Reads the content body of a message; a missing or blank body is published as "{}".
+	 *
+	 * @param limit largest body size (bytes) accepted
+	 * @throws SNSPayloadCodec.PayloadTooLargeException when the body exceeds the limit
+	 */
+	static SNSMessageBody read(Object content, int limit) throws IOException {
+		if (content instanceof Body) {
+			return read((Body) content, limit);
+		}
+		String text = content != null ? content.toString() : null;
+		return isBlank(text) ? new SNSMessageBody("{}", null, 0) : new SNSMessageBody(text, null, 0);
+	}
+
+	private static SNSMessageBody read(Body body, int limit) throws IOException {
+		Charset charset = charset(body);
+		boolean utf8 = charset == StandardCharsets.UTF_8 || charset == StandardCharsets.US_ASCII;
+		// Every character takes at least one UTF-8 byte: past this many bytes in its own charset, the
+		// body is too large whatever its content
+		long rawLimit = utf8 ? limit : (long) limit * (long) Math.ceil(charset.newEncoder().maxBytesPerChar());
+		byte[] buffer = readBuffer.get();
+		int length = 0;
+		try (InputStream in = body.getInputStream(Body.WRITE_NO_CTE)) {
+			int read;
+			while ((read = in.read(buffer, length, buffer.length - length)) >= 0) {
+				length += read;
+				if (length > rawLimit) {
+					throw tooLarge(limit);
+				}
+				if (length == buffer.length) {
+					buffer = Arrays.copyOf(buffer, (int) Math.min(Integer.MAX_VALUE - 8, buffer.length * 2L));
+				}
+			}
+		} finally {
+			if (buffer.length > MAX_RETAINED_BUFFER) {
+				readBuffer.remove();
+			} else {
+				readBuffer.set(buffer);
+			}
+		}
+		if (utf8) {
+			int start = 0;
+			while (start < length && (buffer[start] & 0xff) <= ' ') {
+				start++;
+			}
+			if (start == length) {
+				return new SNSMessageBody("{}", null, 0);
+			}
+			return new SNSMessageBody(new String(buffer, 0, length, StandardCharsets.UTF_8), buffer, length);
+		}
+		String text = new String(buffer, 0, length, charset);
+		if (isBlank(text)) {
+			return new SNSMessageBody("{}", null, 0);
+		}
+		byte[] data = text.getBytes(StandardCharsets.UTF_8);
+		if (data.length > limit) {
+			throw tooLarge(limit);
+		}
+		return new SNSMessageBody(text, data, data.length);
+	}
+
+	/**
+	 * Charset of the body's Content-Type, UTF-8 when it names none.
+	 */
+	private static Charset charset(Body body) throws UnsupportedEncodingException {
+		ContentType contentType = body.getContentType();
+		String name = contentType != null ? contentType.getParameter("charset") : null;
+		if (isBlank(name)) {
+			return StandardCharsets.UTF_8;
+		}
+		name = name.trim();
+		if (name.length() > 1 && name.charAt(0) == '"' && name.charAt(name.length() - 1) == '"') {
+			name = name.substring(1, name.length() - 1);
+		}
+		try {
+			return Charset.forName(name);
+		} catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+			throw new UnsupportedEncodingException("Unsupported message body charset " + name);
+		}
+	}
+
+	private static SNSPayloadCodec.PayloadTooLargeException tooLarge(int limit) {
+		return new SNSPayloadCodec.PayloadTooLargeException("Message body exceeds the SNS limit of " + limit + " bytes");
+	}
+
+	/**
+	 * Same as trim().isEmpty(), without the trimmed copy.
+	 */
+	static boolean isBlank(String value) {
+		if (value == null) {
+			return true;
+		}
+		for (int i = 0; i < value.length(); i++) {
+			if (value.charAt(i) > ' ') {
+				return false;
+			}
+		}
+		return true;
+	}
+}
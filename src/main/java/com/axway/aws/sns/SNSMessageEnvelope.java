@@ -0,0 +1,103 @@
+package com.axway.aws.sns;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.vordel.circuit.Message;
+import com.vordel.el.Selector;
+import com.vordel.trace.Trace;
+
+/**
+ * Per-protocol message envelope for messageStructure = "json".
+ *
+ * Each protocol message comes from its own selector, compiled once when the filter is attached. Per
+ * message, the selectors are evaluated and their values escaped straight into the envelope buffer of
+ * {@link SNSMessageJsonHelper}. The "default" message, required by SNS, falls back to the request body.
+ */
+public class SNSMessageEnvelope {
+
+	/** Protocol keys, in envelope order, with the entity field holding each template */
+	public static final Map<String, String> PROTOCOL_FIELDS;
+
+	static {
+		Map<String, String> fields = new LinkedHashMap<>();
+		fields.put("default", "jsonDefaultMessage");
+		fields.put("sqs", "jsonSqsMessage");
+		fields.put("lambda", "jsonLambdaMessage");
+		fields.put("http", "jsonHttpMessage");
+		fields.put("email", "jsonEmailMessage");
+		PROTOCOL_FIELDS = Collections.unmodifiableMap(fields);
+	}
+
+	private final Selector<String> defaultMessage;
+	private final List<String> keys;
+	private final List<Selector<String>> messages;
+
+	private SNSMessageEnvelope(Selector<String> defaultMessage, List<String> keys, List<Selector<String>> messages) {
+		this.defaultMessage = defaultMessage;
+		this.keys = keys;
+		this.messages = messages;
+	}
+
+	/**
+	 * Compiles the envelope from protocol templates keyed by protocol. Returns null when no template is
+	 * configured, in which case the body is formatted by {@link SNSMessageJsonHelper#formatJsonMessage(String)}.
+	 */
+	public static SNSMessageEnvelope compile(Map<String, String> templates) {
+		Selector<String> defaultMessage = null;
+		List<String> keys = new ArrayList<>();
+		List<Selector<String>> messages = new ArrayList<>();
+		for (String protocol : PROTOCOL_FIELDS.keySet()) {
+			String template = templates.get(protocol);
+			if (template == null || template.trim().isEmpty()) {
+				continue;
+			}
+			Selector<String> selector = new Selector<>(template, String.class);
+			if ("default".equals(protocol)) {
+				defaultMessage = selector;
+			} else if ("http".equals(protocol)) {
+				// HTTP and HTTPS subscriptions are addressed separately by SNS
+				keys.add("http");
+				messages.add(selector);
+				keys.add("https");
+				messages.add(selector);
+			} else {
+				keys.add(protocol);
+				messages.add(selector);
+			}
+		}
+		if (defaultMessage == null && keys.isEmpty()) {
+			return null;
+		}
+		Trace.debug("Compiled JSON message envelope, protocols: " + keys);
+		return new SNSMessageEnvelope(defaultMessage, keys, messages);
+	}
+
+	/**
+	 * Builds the envelope for one message. Protocols whose template resolves to an empty value are
+	 * left out, so their subscribers receive the default message.
+	 */
+	public String build(Message msg, String body) {
+		String defaultValue = defaultMessage != null ? defaultMessage.substitute(msg) : null;
+		if (defaultValue == null || defaultValue.isEmpty()) {
+			defaultValue = body != null ? body.trim() : "";
+		}
+
+		StringBuilder out = SNSMessageJsonHelper.startEnvelope();
+		SNSMessageJsonHelper.appendField(out, "default", defaultValue, 0, defaultValue.length());
+		String previous = null;
+		for (int i = 0; i < keys.size(); i++) {
+			// http and https share one selector, evaluated once
+			String value = previous != null && messages.get(i) == messages.get(i - 1) ? previous
+				: messages.get(i).substitute(msg);
+			previous = value;
+			if (value != null && !value.isEmpty()) {
+				SNSMessageJsonHelper.appendField(out, keys.get(i), value, 0, value.length());
+			}
+		}
+		return SNSMessageJsonHelper.finishEnvelope(out);
+	}
+}
@@ -1,58 +1,129 @@
 package com.axway.aws.sns;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.JsonNode;
+import java.io.IOException;
+import java.nio.CharBuffer;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
 import com.vordel.trace.Trace;
 
 public class SNSMessageJsonHelper {
-	private static final ObjectMapper objectMapper = new ObjectMapper();
-	
+	private static final JsonFactory jsonFactory = new JsonFactory();
+
+	/** Envelope buffers grown past this size are not kept for reuse */
+	private static final int MAX_RETAINED_BUFFER = 512 * 1024;
+
+	private static final ThreadLocal<StringBuilder> envelopeBuffer = ThreadLocal.withInitial(() -> new StringBuilder(1024));
+
 	/**
 	 * Formata o corpo da mensagem para o formato esperado pelo SNS quando messageStructure = "json".
 	 * O valor de "default" deve ser sempre uma string, conforme a documentação da AWS SNS.
+	 *
+	 * Um corpo que já é um envelope (objeto JSON com a chave "default" de primeiro nível do tipo string) é
+	 * enviado como está; qualquer outro corpo é escapado uma única vez como valor de "default".
 	 */
 	public static String formatJsonMessage(String body) {
-		Trace.debug("=== SNSMessageJsonHelper Debug ===");
-		Trace.debug("Input body: '" + body + "'");
-
-		if (body == null || body.trim().isEmpty()) {
-			Trace.debug("Body is null or empty, returning default");
+		boolean detailed = SNSDiagnostics.isDetailed();
+		if (body == null) {
+			if (detailed) {
+				Trace.debug("Body is null or empty, returning default");
+			}
 			return "{\"default\":\"\"}";
 		}
 
-		String trimmed = body.trim();
-		Trace.debug("Trimmed body: '" + trimmed + "'");
+		int start = 0;
+		int end = body.length();
+		while (start < end && body.charAt(start) <= ' ') {
+			start++;
+		}
+		while (end > start && body.charAt(end - 1) <= ' ') {
+			end--;
+		}
+		if (start == end) {
+			if (detailed) {
+				Trace.debug("Body is null or empty, returning default");
+			}
+			return "{\"default\":\"\"}";
+		}
 
-		try {
-			// Verificar se já tem a chave "default" e é uma string
-			if (trimmed.startsWith("{") && trimmed.contains("\"default\"")) {
-				// Já está no formato esperado
-				Trace.debug("Body already has default key, returning as is");
-				return trimmed;
+		if (body.charAt(start) == '{' && isEnvelope(body)) {
+			// Já está no formato esperado
+			if (detailed) {
+				Trace.debug("Body already has a top-level default string, returning as is");
 			}
+			return body.substring(start, end);
+		}
+
+		// Para qualquer outro corpo (JSON ou não), o valor de "default" deve ser uma string
+		StringBuilder out = startEnvelope();
+		appendField(out, "default", body, start, end);
+		String result = finishEnvelope(out);
+		if (detailed) {
+			Trace.debug("Body of " + (end - start) + " chars converted to string format, envelope length: " + result.length());
+		}
+		return result;
+	}
 
-			// Para qualquer JSON (válido ou não), converter para string
-			// O SNS espera que o valor de "default" seja uma string
-			JsonNode resultNode = objectMapper.createObjectNode().put("default", trimmed);
-			String result = objectMapper.writeValueAsString(resultNode);
-			
-			Trace.debug("Body converted to string format: '" + result + "'");
-			return result;
-			
-		} catch (Exception e) {
-			Trace.debug("Error processing JSON, treating as plain string: " + e.getMessage());
-			
-			// Fallback: tratar como string simples
-			try {
-				JsonNode resultNode = objectMapper.createObjectNode().put("default", trimmed);
-				String result = objectMapper.writeValueAsString(resultNode);
-				
-				Trace.debug("Fallback result: '" + result + "'");
-				return result;
-			} catch (Exception fallbackError) {
-				Trace.debug("Fallback also failed, returning simple default");
-				return "{\"default\":\"" + trimmed.replace("\"", "\\\"") + "\"}";
+	/**
+	 * Whether the text is a JSON object whose top-level "default" key holds a string. Nested keys named
+	 * "default" do not count, and text that is not valid JSON is never an envelope.
+	 */
+	static boolean isEnvelope(String text) {
+		try (JsonParser parser = jsonFactory.createParser(text)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				return false;
 			}
+			boolean hasDefault = false;
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String name = parser.getCurrentName();
+				JsonToken value = parser.nextToken();
+				if ("default".equals(name)) {
+					hasDefault = value == JsonToken.VALUE_STRING;
+				} else {
+					parser.skipChildren();
+				}
+			}
+			return hasDefault && parser.nextToken() == null;
+		} catch (IOException e) {
+			if (SNSDiagnostics.isDetailed()) {
+				Trace.debug("Body is not a JSON envelope: " + e.getMessage());
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Returns this thread's envelope buffer, emptied and holding the opening brace.
+	 */
+	static StringBuilder startEnvelope() {
+		StringBuilder out = envelopeBuffer.get();
+		out.setLength(0);
+		return out.append('{');
+	}
+
+	/**
+	 * Appends "key":"value" for the given range of the value, escaping it as a JSON string in place.
+	 */
+	static void appendField(StringBuilder out, String key, CharSequence value, int start, int end) {
+		if (out.length() > 1) {
+			out.append(',');
+		}
+		out.append('"').append(key).append("\":\"");
+		JsonStringEncoder.getInstance().quoteAsString(
+			start == 0 && end == value.length() ? value : CharBuffer.wrap(value, start, end), out);
+		out.append('"');
+	}
+
+	/**
+	 * Closes the envelope and returns it, releasing the buffer when a large body made it grow.
+	 */
+	static String finishEnvelope(StringBuilder out) {
+		String envelope = out.append('}').toString();
+		if (out.capacity() > MAX_RETAINED_BUFFER) {
+			envelopeBuffer.remove();
 		}
+		return envelope;
 	}
-} 
\ No newline at end of file
+}
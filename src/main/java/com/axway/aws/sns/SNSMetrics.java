@@ -0,0 +1,354 @@
+package com.axway.aws.sns;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.metrics.RequestMetricCollector;
+import com.amazonaws.util.AWSRequestMetrics;
+import com.amazonaws.util.TimingInfo;
+import com.vordel.trace.Trace;
+
+/**
+ * Publish metrics of one Publish SNS Message filter instance, aggregated by topic ARN and region.
+ *
+ * Each topic gets a {@link TopicMetrics} registered as an MXBean under
+ * com.axway.aws.sns:type=PublishSNSMessage,filter=...,instance=...,region=...,topic=...
+ * SDK request metrics are collected through a per-request {@link RequestMetricCollector}, so the shared
+ * clients need no metrics configuration and other filters using them are not affected. Counters cover
+ * the lifetime of the filter; latency histograms cover the last minute only.
+ */
+public class SNSMetrics {
+
+	public static final String JMX_DOMAIN = "com.axway.aws.sns";
+
+	/** Topics tracked separately; further topics are aggregated under "*" */
+	public static final int MAX_TOPICS = 500;
+
+	private static final AtomicInteger instances = new AtomicInteger();
+
+	private final String filterName;
+	private final int instance;
+	private final boolean jmx;
+	private final ConcurrentMap<String, TopicMetrics> topics = new ConcurrentHashMap<>();
+
+	public SNSMetrics(String filterName, boolean jmx) {
+		this.filterName = filterName != null ? filterName : "Publish SNS Message";
+		this.instance = instances.incrementAndGet();
+		this.jmx = jmx;
+	}
+
+	/**
+	 * Metrics for the topic, created and registered on first use.
+	 */
+	public TopicMetrics topic(String region, String topicArn) {
+		String key = region + "|" + topicArn;
+		TopicMetrics metrics = topics.get(key);
+		if (metrics != null) {
+			return metrics;
+		}
+		if (topics.size() >= MAX_TOPICS) {
+			region = "*";
+			topicArn = "*";
+			key = "*|*";
+		}
+		final String topicRegion = region;
+		final String topicName = topicArn;
+		return topics.computeIfAbsent(key, k -> register(new TopicMetrics(topicRegion, topicName)));
+	}
+
+	/**
+	 * Unregisters the MXBeans of this filter instance.
+	 */
+	public void close() {
+		if (!jmx) {
+			return;
+		}
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (TopicMetrics metrics : topics.values()) {
+			if (metrics.objectName != null) {
+				try {
+					server.unregisterMBean(metrics.objectName);
+				} catch (Exception e) {
+					Trace.debug("Unable to unregister SNS metrics MBean " + metrics.objectName + ": " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	private TopicMetrics register(TopicMetrics metrics) {
+		if (!jmx) {
+			return metrics;
+		}
+		try {
+			ObjectName name = new ObjectName(JMX_DOMAIN + ":type=PublishSNSMessage"
+				+ ",filter=" + ObjectName.quote(filterName)
+				+ ",instance=" + instance
+				+ ",region=" + ObjectName.quote(metrics.region)
+				+ ",topic=" + ObjectName.quote(metrics.topicArn));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+			metrics.objectName = name;
+		} catch (Exception e) {
+			Trace.error("Unable to register SNS metrics MBean: " + e.getMessage());
+		}
+		return metrics;
+	}
+
+	/**
+	 * Error code of a failure, as counted in the metrics and traced in the summary line: the code of a
+	 * rejection by the filter, the AWS error code for service errors, the exception type otherwise.
+	 */
+	static String errorCode(Throwable error) {
+		Throwable cause = SNSRetryEngine.unwrap(error);
+		if (cause instanceof SNSPublishRejectedException) {
+			return ((SNSPublishRejectedException) cause).getErrorCode();
+		}
+		AmazonServiceException serviceException = SNSRetryPolicy.findServiceException(cause);
+		if (serviceException != null && serviceException.getErrorCode() != null) {
+			return serviceException.getErrorCode();
+		}
+		return cause != null ? cause.getClass().getSimpleName() : "Unknown";
+	}
+
+	private static double millis(long micros) {
+		return micros / 1000.0;
+	}
+
+	/**
+	 * Counters and histograms of one topic and region.
+	 */
+	public static class TopicMetrics implements SNSTopicMetricsMXBean {
+
+		private final String region;
+		private final String topicArn;
+		private volatile ObjectName objectName;
+
+		private final LongAdder publishes = new LongAdder();
+		private final LongAdder successes = new LongAdder();
+		private final LongAdder failures = new LongAdder();
+		private final LongAdder attempts = new LongAdder();
+		private final LongAdder retries = new LongAdder();
+		private final LongAdder bytes = new LongAdder();
+		private final AtomicInteger inFlight = new AtomicInteger();
+		private final ConcurrentMap<String, LongAdder> errorCodes = new ConcurrentHashMap<>();
+		private final SNSWindowedHistogram latency = new SNSWindowedHistogram(SNSWindowedHistogram.DEFAULT_WINDOW_SECONDS);
+
+		private final LongAdder sdkRequests = new LongAdder();
+		private final LongAdder sdkHttpRetries = new LongAdder();
+		private final SNSWindowedHistogram sdkLatency = new SNSWindowedHistogram(SNSWindowedHistogram.DEFAULT_WINDOW_SECONDS);
+
+		private final RequestMetricCollector requestMetricCollector = new RequestMetricCollector() {
+			@Override
+			public void collectMetrics(Request<?> request, Response<?> response) {
+				AWSRequestMetrics metrics = request.getAWSRequestMetrics();
+				if (metrics == null) {
+					return;
+				}
+				TimingInfo timing = metrics.getTimingInfo();
+				for (TimingInfo httpRequest : timing.getAllSubMeasurements(AWSRequestMetrics.Field.HttpRequestTime.name())) {
+					Double elapsedMillis = httpRequest.getTimeTakenMillisIfKnown();
+					if (elapsedMillis != null) {
+						sdkRequests.increment();
+						sdkLatency.record((long) (elapsedMillis * 1000));
+					}
+				}
+				Number httpRetries = timing.getCounter(AWSRequestMetrics.Field.HttpClientRetryCount.name());
+				if (httpRetries != null) {
+					sdkHttpRetries.add(httpRetries.longValue());
+				}
+			}
+		};
+
+		TopicMetrics(String region, String topicArn) {
+			this.region = region;
+			this.topicArn = topicArn;
+		}
+
+		/**
+		 * Collector to set on each PublishRequest of this topic.
+		 */
+		public RequestMetricCollector getRequestMetricCollector() {
+			return requestMetricCollector;
+		}
+
+		/**
+		 * Marks a publish as started.
+		 */
+		public void begin() {
+			publishes.increment();
+			inFlight.incrementAndGet();
+		}
+
+		/**
+		 * Records one failed attempt; retried tells whether another attempt follows.
+		 */
+		public void attemptFailed(Throwable error, boolean retried) {
+			errorCodes.computeIfAbsent(errorCode(error), k -> new LongAdder()).increment();
+			if (retried) {
+				retries.increment();
+			}
+		}
+
+		public void succeeded(long elapsedNanos, int attemptCount, long payloadBytes) {
+			complete(elapsedNanos, attemptCount);
+			successes.increment();
+			bytes.add(payloadBytes);
+		}
+
+		public void failed(long elapsedNanos, int attemptCount) {
+			complete(elapsedNanos, attemptCount);
+			failures.increment();
+		}
+
+		private void complete(long elapsedNanos, int attemptCount) {
+			inFlight.decrementAndGet();
+			attempts.add(attemptCount);
+			latency.record(elapsedNanos / 1000);
+		}
+
+		@Override
+		public String getTopicArn() {
+			return topicArn;
+		}
+
+		@Override
+		public String getRegion() {
+			return region;
+		}
+
+		@Override
+		public long getPublishCount() {
+			return publishes.sum();
+		}
+
+		@Override
+		public long getSuccessCount() {
+			return successes.sum();
+		}
+
+		@Override
+		public long getFailureCount() {
+			return failures.sum();
+		}
+
+		@Override
+		public int getInFlight() {
+			return inFlight.get();
+		}
+
+		@Override
+		public long getAttemptCount() {
+			return attempts.sum();
+		}
+
+		@Override
+		public long getRetryCount() {
+			return retries.sum();
+		}
+
+		@Override
+		public double getAttemptsPerMessage() {
+			long completed = successes.sum() + failures.sum();
+			return completed == 0 ? 0 : (double) attempts.sum() / completed;
+		}
+
+		@Override
+		public long getBytesPublished() {
+			return bytes.sum();
+		}
+
+		@Override
+		public long getLatencyWindowSeconds() {
+			return latency.getWindowSeconds();
+		}
+
+		@Override
+		public double getLatencyMeanMillis() {
+			return latency.getMean() / 1000.0;
+		}
+
+		@Override
+		public double getLatencyP50Millis() {
+			return millis(latency.getPercentile(50));
+		}
+
+		@Override
+		public double getLatencyP99Millis() {
+			return millis(latency.getPercentile(99));
+		}
+
+		@Override
+		public double getLatencyP999Millis() {
+			return millis(latency.getPercentile(99.9));
+		}
+
+		@Override
+		public double getLatencyMaxMillis() {
+			return millis(latency.getMax());
+		}
+
+		@Override
+		public long getSdkRequestCount() {
+			return sdkRequests.sum();
+		}
+
+		@Override
+		public long getSdkHttpRetryCount() {
+			return sdkHttpRetries.sum();
+		}
+
+		@Override
+		public double getSdkLatencyP50Millis() {
+			return millis(sdkLatency.getPercentile(50));
+		}
+
+		@Override
+		public double getSdkLatencyP99Millis() {
+			return millis(sdkLatency.getPercentile(99));
+		}
+
+		@Override
+		public double getSdkLatencyP999Millis() {
+			return millis(sdkLatency.getPercentile(99.9));
+		}
+
+		@Override
+		public double getSdkLatencyMaxMillis() {
+			return millis(sdkLatency.getMax());
+		}
+
+		@Override
+		public Map<String, Long> getErrorCodes() {
+			Map<String, Long> codes = new TreeMap<>();
+			for (Map.Entry<String, LongAdder> entry : errorCodes.entrySet()) {
+				codes.put(entry.getKey(), entry.getValue().sum());
+			}
+			return codes;
+		}
+
+		@Override
+		public void reset() {
+			publishes.reset();
+			successes.reset();
+			failures.reset();
+			attempts.reset();
+			retries.reset();
+			bytes.reset();
+			errorCodes.clear();
+			latency.reset();
+			sdkRequests.reset();
+			sdkHttpRetries.reset();
+			sdkLatency.reset();
+		}
+	}
+}
@@ -0,0 +1,455 @@
+package com.axway.aws.sns;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.AbortedException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.Protocol;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.AWSSessionCredentials;
+import com.amazonaws.auth.AnonymousAWSCredentials;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sns.AbstractAmazonSNSAsync;
+import com.amazonaws.services.sns.model.AmazonSNSException;
+import com.amazonaws.services.sns.model.BatchResultErrorEntry;
+import com.amazonaws.services.sns.model.GetTopicAttributesRequest;
+import com.amazonaws.services.sns.model.GetTopicAttributesResult;
+import com.amazonaws.services.sns.model.MessageAttributeValue;
+import com.amazonaws.services.sns.model.PublishBatchRequest;
+import com.amazonaws.services.sns.model.PublishBatchRequestEntry;
+import com.amazonaws.services.sns.model.PublishBatchResult;
+import com.amazonaws.services.sns.model.PublishBatchResultEntry;
+import com.amazonaws.services.sns.model.PublishRequest;
+import com.amazonaws.services.sns.model.PublishResult;
+
+import software.amazon.awssdk.auth.credentials.AnonymousCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.core.exception.ApiCallAttemptTimeoutException;
+import software.amazon.awssdk.core.exception.ApiCallTimeoutException;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.core.retry.RetryPolicy;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.http.nio.netty.ProxyConfiguration;
+import software.amazon.awssdk.http.nio.netty.SdkEventLoopGroup;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.sns.SnsAsyncClient;
+import software.amazon.awssdk.services.sns.SnsAsyncClientBuilder;
+
+import com.vordel.trace.Trace;
+
+/**
+ * Non-blocking transport of the Publish SNS Message filter: an AmazonSNSAsync backed by the AWS SDK v2
+ * SNS client on the Netty NIO HTTP engine.
+ *
+ * Requests on the wire do not hold a thread each: a few event loop threads serve all the connections,
+ * so a large number of publishes can be in flight with a small thread footprint. Exposing the SDK v1
+ * interface keeps the rest of the filter (retry engine, batcher, dispatchers, outbox replay) unchanged;
+ * only Publish, PublishBatch and GetTopicAttributes (used by the warm-up) are supported. The same
+ * ClientConfiguration drives both transports: timeouts, max connections, retries and proxy settings
+ * are mapped to their SDK v2 equivalents.
+ * Service errors are converted back to AmazonSNSException so that the retry policy classifies them alike.
+ *
+ * All the clients share one event loop group, created with the first client and shut down with the
+ * last one, so that every region, topic and credential set does not add its own set of threads. The
+ * SDK v1 RequestMetricCollector of a request is not applied on this transport: the SDK latency and
+ * HTTP retry metrics of its topics stay empty, while the filter's own metrics are recorded as usual.
+ */
+public class SNSNioClient extends AbstractAmazonSNSAsync {
+
+	private static final AtomicInteger threadCount = new AtomicInteger();
+
+	/** Event loop group of all the clients, and the number of clients using it */
+	private static SdkEventLoopGroup eventLoopGroup;
+	private static int eventLoopClients;
+
+	private final SnsAsyncClient client;
+	private final String region;
+	private boolean shutdown;
+	private volatile boolean metricsNoticeTraced;
+
+	public SNSNioClient(String region, AWSCredentialsProvider credentialsProvider, ClientConfiguration config) {
+		this(region, credentialsProvider, config, null);
+	}
+
+	/**
+	 * Creates a client sending its requests to the given endpoint instead of the regional SNS endpoint,
+	 * e.g. a VPC endpoint or a local test server; requests are still signed for the region.
+	 */
+	public SNSNioClient(String region, AWSCredentialsProvider credentialsProvider, ClientConfiguration config,
+			URI endpoint) {
+		this.region = region;
+		NettyNioAsyncHttpClient.Builder http = NettyNioAsyncHttpClient.builder()
+			.eventLoopGroup(acquireEventLoopGroup());
+		ClientOverrideConfiguration.Builder override = ClientOverrideConfiguration.builder();
+		SnsAsyncClientBuilder builder = SnsAsyncClient.builder()
+			.region(Region.of(region))
+			.credentialsProvider(toV2(credentialsProvider));
+		if (config != null) {
+			http.maxConcurrency(config.getMaxConnections())
+				.tcpKeepAlive(config.useTcpKeepAlive());
+			if (config.getConnectionTimeout() > 0) {
+				http.connectionTimeout(Duration.ofMillis(config.getConnectionTimeout()));
+			}
+			if (config.getSocketTimeout() > 0) {
+				http.readTimeout(Duration.ofMillis(config.getSocketTimeout()))
+					.writeTimeout(Duration.ofMillis(config.getSocketTimeout()));
+			}
+			if (config.getConnectionTTL() > 0) {
+				http.connectionTimeToLive(Duration.ofMillis(config.getConnectionTTL()));
+			}
+			if (config.getConnectionMaxIdleMillis() > 0) {
+				http.connectionMaxIdleTime(Duration.ofMillis(config.getConnectionMaxIdleMillis()));
+			}
+			if (config.getProxyHost() != null && !config.getProxyHost().isEmpty()) {
+				http.proxyConfiguration(toProxyConfiguration(config));
+			}
+			if (config.getRequestTimeout() > 0) {
+				override.apiCallAttemptTimeout(Duration.ofMillis(config.getRequestTimeout()));
+			}
+			if (config.getClientExecutionTimeout() > 0) {
+				override.apiCallTimeout(Duration.ofMillis(config.getClientExecutionTimeout()));
+			}
+			if (config.getMaxErrorRetry() >= 0) {
+				override.retryPolicy(config.getMaxErrorRetry() == 0 ? RetryPolicy.none()
+					: RetryPolicy.builder().numRetries(config.getMaxErrorRetry()).build());
+			}
+			if (config.getProtocol() == Protocol.HTTP) {
+				builder.endpointOverride(URI.create("http://sns." + region + ".amazonaws.com"
+					+ (region.startsWith("cn-") ? ".cn" : "")));
+			}
+		}
+		if (endpoint != null) {
+			builder.endpointOverride(endpoint);
+		}
+		try {
+			this.client = builder.httpClientBuilder(http).overrideConfiguration(override.build()).build();
+		} catch (RuntimeException e) {
+			releaseEventLoopGroup();
+			throw e;
+		}
+	}
+
+	@Override
+	public PublishResult publish(PublishRequest request) {
+		return join(publishAsync(request, null));
+	}
+
+	@Override
+	public Future<PublishResult> publishAsync(PublishRequest request,
+			AsyncHandler<PublishRequest, PublishResult> asyncHandler) {
+		checkMetricCollector(request);
+		CompletableFuture<PublishResult> future = client.publish(toV2(request)).handle((response, error) -> {
+			if (error != null) {
+				throw new CompletionException(toV1(error));
+			}
+			return new PublishResult().withMessageId(response.messageId()).withSequenceNumber(response.sequenceNumber());
+		});
+		return notify(future, request, asyncHandler);
+	}
+
+	@Override
+	public PublishBatchResult publishBatch(PublishBatchRequest request) {
+		return join(publishBatchAsync(request, null));
+	}
+
+	@Override
+	public Future<PublishBatchResult> publishBatchAsync(PublishBatchRequest request,
+			AsyncHandler<PublishBatchRequest, PublishBatchResult> asyncHandler) {
+		checkMetricCollector(request);
+		CompletableFuture<PublishBatchResult> future = client.publishBatch(toV2(request)).handle((response, error) -> {
+			if (error != null) {
+				throw new CompletionException(toV1(error));
+			}
+			List<PublishBatchResultEntry> successful = new ArrayList<>(response.successful().size());
+			for (software.amazon.awssdk.services.sns.model.PublishBatchResultEntry entry : response.successful()) {
+				successful.add(new PublishBatchResultEntry().withId(entry.id()).withMessageId(entry.messageId())
+					.withSequenceNumber(entry.sequenceNumber()));
+			}
+			List<BatchResultErrorEntry> failed = new ArrayList<>(response.failed().size());
+			for (software.amazon.awssdk.services.sns.model.BatchResultErrorEntry entry : response.failed()) {
+				failed.add(new BatchResultErrorEntry().withId(entry.id()).withCode(entry.code())
+					.withMessage(entry.message()).withSenderFault(entry.senderFault()));
+			}
+			return new PublishBatchResult().withSuccessful(successful).withFailed(failed);
+		});
+		return notify(future, request, asyncHandler);
+	}
+
+	@Override
+	public GetTopicAttributesResult getTopicAttributes(GetTopicAttributesRequest request) {
+		return join(getTopicAttributesAsync(request, null));
+	}
+
+	@Override
+	public Future<GetTopicAttributesResult> getTopicAttributesAsync(GetTopicAttributesRequest request,
+			AsyncHandler<GetTopicAttributesRequest, GetTopicAttributesResult> asyncHandler) {
+		software.amazon.awssdk.services.sns.model.GetTopicAttributesRequest.Builder v2Request =
+			software.amazon.awssdk.services.sns.model.GetTopicAttributesRequest.builder().topicArn(request.getTopicArn());
+		if (request.getRequestCredentialsProvider() != null) {
+			// Used by the warm-up to open connections with unsigned requests
+			v2Request.overrideConfiguration(o -> o.credentialsProvider(toV2(request.getRequestCredentialsProvider())));
+		}
+		CompletableFuture<GetTopicAttributesResult> future = client.getTopicAttributes(v2Request.build()).handle((response, error) -> {
+			if (error != null) {
+				throw new CompletionException(toV1(error));
+			}
+			return new GetTopicAttributesResult().withAttributes(response.attributes());
+		});
+		return notify(future, request, asyncHandler);
+	}
+
+	@Override
+	public void shutdown() {
+		synchronized (this) {
+			if (shutdown) {
+				return;
+			}
+			shutdown = true;
+		}
+		client.close();
+		releaseEventLoopGroup();
+	}
+
+	/**
+	 * Traces once per client that the SDK metrics requested on its publishes are not collected.
+	 */
+	private void checkMetricCollector(com.amazonaws.AmazonWebServiceRequest request) {
+		if (!metricsNoticeTraced && request.getRequestMetricCollector() != null) {
+			metricsNoticeTraced = true;
+			Trace.info("SNS NIO transport (" + region + "): SDK request metrics are not collected on this transport, "
+				+ "SDK latency and HTTP retry metrics stay empty");
+		}
+	}
+
+	/**
+	 * Takes a reference on the shared event loop group, creating it for the first client.
+	 */
+	private static synchronized SdkEventLoopGroup acquireEventLoopGroup() {
+		if (eventLoopGroup == null) {
+			eventLoopGroup = SdkEventLoopGroup.builder()
+				.numberOfThreads(Math.max(2, Runtime.getRuntime().availableProcessors()))
+				.threadFactory(daemonThreads())
+				.build();
+		}
+		eventLoopClients++;
+		return eventLoopGroup;
+	}
+
+	/**
+	 * Drops a reference on the shared event loop group; the last client shuts it down, as the HTTP
+	 * client does not close a group it was given.
+	 */
+	private static synchronized void releaseEventLoopGroup() {
+		if (eventLoopGroup != null && --eventLoopClients == 0) {
+			eventLoopGroup.eventLoopGroup().shutdownGracefully();
+			eventLoopGroup = null;
+		}
+	}
+
+	private static <REQUEST extends com.amazonaws.AmazonWebServiceRequest, RESULT> CompletableFuture<RESULT> notify(
+			CompletableFuture<RESULT> future, REQUEST request, AsyncHandler<REQUEST, RESULT> asyncHandler) {
+		if (asyncHandler != null) {
+			future.whenComplete((result, error) -> {
+				if (error == null) {
+					asyncHandler.onSuccess(request, result);
+				} else {
+					Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+					asyncHandler.onError(cause instanceof Exception ? (Exception) cause : new ExecutionException(cause));
+				}
+			});
+		}
+		return future;
+	}
+
+	/**
+	 * Waits for the result of a blocking call, rethrowing its failure as the SDK v1 client would.
+	 */
+	private static <T> T join(Future<T> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AbortedException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause() instanceof CompletionException && e.getCause().getCause() != null
+				? e.getCause().getCause() : e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new NioClientException(String.valueOf(cause), cause, false);
+		}
+	}
+
+	/**
+	 * Converts an SDK v2 failure to its SDK v1 equivalent: service errors keep their code, status and
+	 * request ID; client errors keep whether they may be retried.
+	 */
+	static RuntimeException toV1(Throwable error) {
+		Throwable cause = error;
+		while (cause instanceof CompletionException && cause.getCause() != null) {
+			cause = cause.getCause();
+		}
+		if (cause instanceof AwsServiceException) {
+			AwsServiceException serviceException = (AwsServiceException) cause;
+			String errorMessage = serviceException.awsErrorDetails() != null
+				? serviceException.awsErrorDetails().errorMessage() : serviceException.getMessage();
+			AmazonSNSException converted = new AmazonSNSException(errorMessage);
+			if (serviceException.awsErrorDetails() != null) {
+				converted.setErrorCode(serviceException.awsErrorDetails().errorCode());
+			}
+			converted.setStatusCode(serviceException.statusCode());
+			converted.setRequestId(serviceException.requestId());
+			converted.setServiceName("AmazonSNS");
+			converted.setErrorType(serviceException.statusCode() >= 500
+				? AmazonServiceException.ErrorType.Service : AmazonServiceException.ErrorType.Client);
+			return converted;
+		}
+		if (cause instanceof SdkException) {
+			boolean retryable = ((SdkException) cause).retryable() || cause instanceof ApiCallTimeoutException
+				|| cause instanceof ApiCallAttemptTimeoutException;
+			for (Throwable t = cause.getCause(); t != null && !retryable; t = t.getCause()) {
+				retryable = t instanceof IOException;
+			}
+			return new NioClientException(cause.getMessage(), cause, retryable);
+		}
+		return cause instanceof RuntimeException ? (RuntimeException) cause
+			: new NioClientException(String.valueOf(cause), cause, false);
+	}
+
+	private static software.amazon.awssdk.services.sns.model.PublishRequest toV2(PublishRequest request) {
+		return software.amazon.awssdk.services.sns.model.PublishRequest.builder()
+			.topicArn(request.getTopicArn())
+			.targetArn(request.getTargetArn())
+			.phoneNumber(request.getPhoneNumber())
+			.message(request.getMessage())
+			.subject(request.getSubject())
+			.messageStructure(request.getMessageStructure())
+			.messageGroupId(request.getMessageGroupId())
+			.messageDeduplicationId(request.getMessageDeduplicationId())
+			.messageAttributes(toV2(request.getMessageAttributes()))
+			.build();
+	}
+
+	private static software.amazon.awssdk.services.sns.model.PublishBatchRequest toV2(PublishBatchRequest request) {
+		List<software.amazon.awssdk.services.sns.model.PublishBatchRequestEntry> entries =
+			new ArrayList<>(request.getPublishBatchRequestEntries().size());
+		for (PublishBatchRequestEntry entry : request.getPublishBatchRequestEntries()) {
+			entries.add(software.amazon.awssdk.services.sns.model.PublishBatchRequestEntry.builder()
+				.id(entry.getId())
+				.message(entry.getMessage())
+				.subject(entry.getSubject())
+				.messageStructure(entry.getMessageStructure())
+				.messageGroupId(entry.getMessageGroupId())
+				.messageDeduplicationId(entry.getMessageDeduplicationId())
+				.messageAttributes(toV2(entry.getMessageAttributes()))
+				.build());
+		}
+		return software.amazon.awssdk.services.sns.model.PublishBatchRequest.builder()
+			.topicArn(request.getTopicArn())
+			.publishBatchRequestEntries(entries)
+			.build();
+	}
+
+	private static Map<String, software.amazon.awssdk.services.sns.model.MessageAttributeValue> toV2(
+			Map<String, MessageAttributeValue> attributes) {
+		Map<String, software.amazon.awssdk.services.sns.model.MessageAttributeValue> converted = new HashMap<>();
+		if (attributes != null) {
+			for (Map.Entry<String, MessageAttributeValue> attribute : attributes.entrySet()) {
+				MessageAttributeValue value = attribute.getValue();
+				software.amazon.awssdk.services.sns.model.MessageAttributeValue.Builder builder =
+					software.amazon.awssdk.services.sns.model.MessageAttributeValue.builder()
+						.dataType(value.getDataType())
+						.stringValue(value.getStringValue());
+				ByteBuffer binaryValue = value.getBinaryValue();
+				if (binaryValue != null) {
+					builder.binaryValue(SdkBytes.fromByteBuffer(binaryValue.duplicate()));
+				}
+				converted.put(attribute.getKey(), builder.build());
+			}
+		}
+		return converted;
+	}
+
+	/**
+	 * Adapts the filter's SDK v1 credentials provider; credentials are resolved on every signing, so
+	 * refreshed credentials are picked up as with the SDK v1 client. Anonymous credentials leave the
+	 * request unsigned, as they do with the SDK v1 client.
+	 */
+	private static AwsCredentialsProvider toV2(AWSCredentialsProvider provider) {
+		return () -> {
+			AWSCredentials credentials = provider.getCredentials();
+			if (credentials instanceof AnonymousAWSCredentials) {
+				return AnonymousCredentialsProvider.create().resolveCredentials();
+			}
+			if (credentials instanceof AWSSessionCredentials) {
+				return AwsSessionCredentials.create(credentials.getAWSAccessKeyId(), credentials.getAWSSecretKey(),
+					((AWSSessionCredentials) credentials).getSessionToken());
+			}
+			return AwsBasicCredentials.create(credentials.getAWSAccessKeyId(), credentials.getAWSSecretKey());
+		};
+	}
+
+	private static ProxyConfiguration toProxyConfiguration(ClientConfiguration config) {
+		ProxyConfiguration.Builder proxy = ProxyConfiguration.builder()
+			.scheme(config.getProxyProtocol() == Protocol.HTTPS ? "https" : "http")
+			.host(config.getProxyHost())
+			.port(config.getProxyPort());
+		if (config.getProxyUsername() != null) {
+			proxy.username(config.getProxyUsername()).password(config.getProxyPassword());
+		}
+		if (config.getNonProxyHosts() != null) {
+			proxy.nonProxyHosts(new HashSet<>(Arrays.asList(config.getNonProxyHosts().split("\\|"))));
+		}
+		return proxy.build();
+	}
+
+	private static ThreadFactory daemonThreads() {
+		return runnable -> {
+			Thread thread = new Thread(runnable, "sns-nio-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	/**
+	 * Client-side failure of the NIO transport (connection, timeout), retryable when the SDK says so.
+	 */
+	static final class NioClientException extends com.amazonaws.SdkClientException {
+
+		private static final long serialVersionUID = 1L;
+
+		private final boolean retryable;
+
+		NioClientException(String message, Throwable cause, boolean retryable) {
+			super(message, cause);
+			this.retryable = retryable;
+		}
+
+		@Override
+		public boolean isRetryable() {
+			return retryable;
+		}
+	}
+}
@@ -0,0 +1,258 @@
+package com.axway.aws.sns;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.amazonaws.services.sns.model.PublishRequest;
+import com.amazonaws.services.sns.model.PublishResult;
+import com.vordel.trace.Trace;
+
+/**
+ * Dispatcher of FIFO topic publishes keeping the order of each message group.
+ *
+ * Publishes of one message group (region, topic ARN and MessageGroupId) are started one after the
+ * other in submission order, each only once the previous one has completed with all its retries, so
+ * that a retry never lets a later message overtake an earlier one. Publishes of different groups are
+ * started in parallel by a fixed pool of workers, which also run blocking (synchronous) publishes.
+ *
+ * With batching, publishes waiting behind a running one of the same group are sent together in a
+ * single PublishBatch attempt, keeping their order within the batch. Entries failed by the batch are
+ * then published again one by one, in order, each with its own retries, before the group moves on.
+ * Order is kept as long as SNS fails the entries following a failed one of the same group; an entry
+ * accepted after a failed one is not withdrawn.
+ */
+public class SNSOrderedDispatcher {
+
+	public static final int DEFAULT_WORKERS = 16;
+
+	/**
+	 * One publish handed to the dispatcher.
+	 */
+	public interface OrderedPublish {
+
+		PublishRequest getRequest();
+
+		/**
+		 * Publishes this request alone, retries included.
+		 */
+		CompletableFuture<PublishResult> publish();
+
+		/**
+		 * Makes one PublishBatch attempt for the requests of the group, this one first. Returns one
+		 * future per request, in the same order.
+		 */
+		List<CompletableFuture<PublishResult>> publishBatch(List<PublishRequest> requests);
+
+		/**
+		 * Called on the publishes sent in the batch of another one, once the batch attempt was made.
+		 */
+		void batched();
+	}
+
+	private final ExecutorService workers;
+	private final int workerCount;
+	private final int maxBatchEntries;
+	private final ConcurrentMap<String, Group> groups = new ConcurrentHashMap<>();
+
+	/**
+	 * @param workers number of groups published at the same time
+	 * @param maxBatchEntries publishes of a group sent in one PublishBatch attempt, 1 to never batch
+	 */
+	public SNSOrderedDispatcher(int workers, int maxBatchEntries) {
+		this.workerCount = workers > 0 ? workers : DEFAULT_WORKERS;
+		this.maxBatchEntries = Math.max(1, Math.min(maxBatchEntries, SNSPublishBatcher.MAX_BATCH_ENTRIES));
+		this.workers = Executors.newFixedThreadPool(workerCount,
+			SNSClientRegistry.daemonThreadFactory("SNSOrderedDispatcher-worker"));
+	}
+
+	public int getWorkers() {
+		return workerCount;
+	}
+
+	public int getMaxBatchEntries() {
+		return maxBatchEntries;
+	}
+
+	/**
+	 * Number of message groups with publishes queued or in flight.
+	 */
+	public int getActiveGroups() {
+		return groups.size();
+	}
+
+	/**
+	 * Queues the publish behind the earlier ones of its group. The future completes with the outcome of
+	 * the publish, retries included.
+	 */
+	public CompletableFuture<PublishResult> submit(String region, OrderedPublish publish) {
+		PublishRequest request = publish.getRequest();
+		String key = region + "|" + request.getTopicArn() + "|" + request.getMessageGroupId();
+		Pending pending = new Pending(publish);
+		while (true) {
+			Group group = groups.computeIfAbsent(key, Group::new);
+			boolean start;
+			synchronized (group) {
+				if (group.removed) {
+					// Emptied and unmapped meanwhile: use a new one
+					continue;
+				}
+				group.queue.add(pending);
+				start = !group.running;
+				group.running = true;
+			}
+			if (start) {
+				schedule(group);
+			}
+			return pending.future;
+		}
+	}
+
+	/**
+	 * Stops the workers once the publishes already queued have been started; later ones fail.
+	 */
+	public void shutdown() {
+		workers.shutdown();
+	}
+
+	private void schedule(Group group) {
+		try {
+			workers.execute(() -> drain(group));
+		} catch (RejectedExecutionException e) {
+			List<Pending> abandoned;
+			synchronized (group) {
+				abandoned = new ArrayList<>(group.queue);
+				group.queue.clear();
+				group.running = false;
+				group.removed = true;
+				groups.remove(group.key, group);
+			}
+			for (Pending pending : abandoned) {
+				pending.future.completeExceptionally(e);
+			}
+		}
+	}
+
+	/**
+	 * Starts the next publish (or batch) of the group; the group is scheduled again once it completes.
+	 */
+	private void drain(Group group) {
+		List<Pending> items = new ArrayList<>(maxBatchEntries);
+		synchronized (group) {
+			int bytes = 0;
+			while (!group.queue.isEmpty() && items.size() < maxBatchEntries) {
+				int size = SNSPublishBatcher.payloadSize(group.queue.peek().publish.getRequest());
+				if (!items.isEmpty() && bytes + size > SNSPublishBatcher.MAX_BATCH_PAYLOAD_BYTES) {
+					break;
+				}
+				items.add(group.queue.poll());
+				bytes += size;
+			}
+			if (items.isEmpty()) {
+				group.running = false;
+				group.removed = true;
+				groups.remove(group.key, group);
+				return;
+			}
+		}
+		CompletableFuture<Void> done;
+		try {
+			done = items.size() == 1 ? publishAlone(items.get(0)) : publishBatch(items);
+		} catch (RuntimeException e) {
+			Trace.error("Unable to start ordered SNS publish: " + e.getMessage());
+			for (Pending pending : items) {
+				pending.future.completeExceptionally(e);
+			}
+			done = CompletableFuture.completedFuture(null);
+		}
+		// Next turn on a worker, not on the thread completing the publish
+		done.whenComplete((result, error) -> schedule(group));
+	}
+
+	private static CompletableFuture<Void> publishAlone(Pending pending) {
+		CompletableFuture<PublishResult> future;
+		try {
+			future = pending.publish.publish();
+		} catch (RuntimeException e) {
+			pending.future.completeExceptionally(e);
+			return CompletableFuture.completedFuture(null);
+		}
+		return future.handle((result, error) -> {
+			pending.complete(result, error);
+			return null;
+		});
+	}
+
+	private static CompletableFuture<Void> publishBatch(List<Pending> items) {
+		List<PublishRequest> requests = new ArrayList<>(items.size());
+		for (Pending pending : items) {
+			requests.add(pending.publish.getRequest());
+		}
+		List<CompletableFuture<PublishResult>> results = items.get(0).publish.publishBatch(requests);
+		for (int i = 1; i < items.size(); i++) {
+			items.get(i).publish.batched();
+		}
+		Trace.debug("Ordered SNS PublishBatch of " + items.size() + " entries for group "
+			+ requests.get(0).getMessageGroupId());
+
+		return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).handle((v, e) -> {
+			// Successful entries are done; failed ones are published again alone, in order
+			List<Pending> failed = new ArrayList<>();
+			for (int i = 0; i < items.size(); i++) {
+				CompletableFuture<PublishResult> result = results.get(i);
+				if (result.isCompletedExceptionally()) {
+					failed.add(items.get(i));
+				} else {
+					items.get(i).future.complete(result.join());
+				}
+			}
+			return failed;
+		}).thenCompose(SNSOrderedDispatcher::publishInOrder);
+	}
+
+	private static CompletableFuture<Void> publishInOrder(List<Pending> items) {
+		CompletableFuture<Void> chain = CompletableFuture.completedFuture(null);
+		for (Pending pending : items) {
+			chain = chain.thenCompose(v -> publishAlone(pending));
+		}
+		return chain;
+	}
+
+	private static final class Pending {
+		final OrderedPublish publish;
+		final CompletableFuture<PublishResult> future = new CompletableFuture<>();
+
+		Pending(OrderedPublish publish) {
+			this.publish = publish;
+		}
+
+		void complete(PublishResult result, Throwable error) {
+			if (error != null) {
+				future.completeExceptionally(SNSRetryEngine.unwrap(error));
+			} else {
+				future.complete(result);
+			}
+		}
+	}
+
+	/**
+	 * Queued publishes of one message group. Guarded by its own monitor.
+	 */
+	private static final class Group {
+		final String key;
+		final ArrayDeque<Pending> queue = new ArrayDeque<>();
+		boolean running;
+		/** Unmapped once empty; submitters then create a new group */
+		boolean removed;
+
+		Group(String key) {
+			this.key = key;
+		}
+	}
+}
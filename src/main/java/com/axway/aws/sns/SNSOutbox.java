@@ -0,0 +1,800 @@
+package com.axway.aws.sns;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.sns.model.MessageAttributeValue;
+import com.amazonaws.services.sns.model.PublishRequest;
+import com.vordel.trace.Trace;
+
+/**
+ * Durable local outbox for publishes that could not be delivered to SNS.
+ *
+ * The outbox is an append-only log of fixed-size, memory-mapped segment files
+ * ({@code outbox-<id>.seg}). Each record is {@code [length][crc32][payload]}; the length is written
+ * last, so a zero length marks the end of the written data. A background replayer reads records in
+ * order and hands them to the {@link ReplayHandler}; the read position is persisted in
+ * {@code outbox.offset} so delivery resumes where it stopped after a restart. Consumed segments
+ * are deleted, and segments older than the retention period are dropped even if not replayed.
+ *
+ * Each set of credentials has its own log, in a {@code credentials-<digest>} subdirectory of the
+ * outbox directory, and every entry records the digest of the credentials it was published with: an
+ * entry is only replayed by a filter using the same credentials, and entries of one set of
+ * credentials never wait behind those of another. Outboxes are shared per directory and credentials,
+ * and reference-counted, so a policy redeployment hands the same outbox over to the new filter
+ * instance. Failures are tracked per region and topic, and an entry SNS refuses the credentials for
+ * is kept, as the permission may be granted later.
+ */
+public class SNSOutbox {
+
+	public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+	public static final int DEFAULT_RETENTION_HOURS = 72;
+
+	private static final int RECORD_HEADER_SIZE = 8;
+	/**
+	 * Version 2 adds the FIFO message group and deduplication IDs, version 3 the credentials digest;
+	 * entries of earlier versions are still read
+	 */
+	private static final byte ENTRY_VERSION = 3;
+	private static final String CREDENTIALS_PREFIX = "credentials-";
+	private static final String SEGMENT_PREFIX = "outbox-";
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final String OFFSET_FILE = "outbox.offset";
+	private static final long FSYNC_INTERVAL_MILLIS = 1000;
+	private static final long RETENTION_CHECK_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+	private static final long IDLE_POLL_MILLIS = 500;
+	private static final long MIN_REPLAY_BACKOFF_MILLIS = 500;
+	private static final long MAX_REPLAY_BACKOFF_MILLIS = 30000;
+
+	private static final Map<String, SNSOutbox> outboxes = new ConcurrentHashMap<>();
+
+	/**
+	 * When appended records are forced to disk.
+	 */
+	public enum FsyncPolicy {
+		/** Force after every append. */
+		ALWAYS,
+		/** Force in the background once per second. */
+		INTERVAL,
+		/** Leave it to the operating system. */
+		NEVER;
+
+		public static FsyncPolicy fromValue(String value) {
+			if (value != null) {
+				for (FsyncPolicy policy : values()) {
+					if (policy.name().equalsIgnoreCase(value.trim())) {
+						return policy;
+					}
+				}
+			}
+			return INTERVAL;
+		}
+	}
+
+	/**
+	 * Delivers a replayed entry. Throwing an exception classified as permanent by
+	 * {@link SNSRetryPolicy#classify(Throwable)} drops the entry, unless SNS denied the credentials;
+	 * any other exception keeps it for a later attempt.
+	 */
+	public interface ReplayHandler {
+		void replay(Entry entry) throws Exception;
+	}
+
+	private final File directory;
+	private final String credentialsId;
+	private final long segmentSize;
+	private final FsyncPolicy fsyncPolicy;
+	private final long retentionMillis;
+
+	// Writer state
+	private long writeSegmentId;
+	private MappedByteBuffer writeBuffer;
+	private int writePosition;
+	private boolean dirty;
+
+	// Reader state
+	private long readSegmentId;
+	private MappedByteBuffer readBuffer;
+	private int readPosition;
+
+	// Handlers of the attached filters, the most recent last, and the one running a replay
+	private final List<ReplayHandler> replayHandlers = new ArrayList<>();
+	private ReplayHandler activeHandler;
+	// Region|topic pairs the replayer is failing to deliver to
+	private final Set<String> unavailableTopics = ConcurrentHashMap.newKeySet();
+	private volatile boolean closed;
+	private int refCount;
+	private Thread replayer;
+
+	private SNSOutbox(File directory, String credentialsId, long segmentSize, FsyncPolicy fsyncPolicy,
+			int retentionHours) throws IOException {
+		this.directory = directory;
+		this.credentialsId = credentialsId;
+		this.segmentSize = segmentSize > RECORD_HEADER_SIZE ? Math.min(segmentSize, Integer.MAX_VALUE) : DEFAULT_SEGMENT_SIZE;
+		this.fsyncPolicy = fsyncPolicy != null ? fsyncPolicy : FsyncPolicy.INTERVAL;
+		this.retentionMillis = TimeUnit.HOURS.toMillis(retentionHours > 0 ? retentionHours : DEFAULT_RETENTION_HOURS);
+		recover();
+	}
+
+	/**
+	 * Opens (or takes a reference on) the outbox of the credentials stored in the directory. Settings
+	 * of an outbox that is already open are kept. Every call must be paired with {@link #release()}.
+	 *
+	 * @param credentialsIdentity identity of the credentials the filter publishes with, only its
+	 *            digest is stored
+	 */
+	public static SNSOutbox acquire(String directory, String credentialsIdentity, long segmentSize,
+			FsyncPolicy fsyncPolicy, int retentionHours) throws IOException {
+		String credentialsId = SNSClientRegistry.digest(credentialsIdentity);
+		File base = new File(directory).getCanonicalFile();
+		File dir = new File(base, CREDENTIALS_PREFIX + credentialsId);
+		synchronized (outboxes) {
+			SNSOutbox outbox = outboxes.get(dir.getPath());
+			if (outbox == null) {
+				adoptUnscopedSegments(base, dir);
+				outbox = new SNSOutbox(dir, credentialsId, segmentSize, fsyncPolicy, retentionHours);
+				outbox.start();
+				outboxes.put(dir.getPath(), outbox);
+			}
+			outbox.refCount++;
+			return outbox;
+		}
+	}
+
+	/**
+	 * Drops a reference; the last release stops the replayer and flushes the outbox.
+	 */
+	public void release() {
+		synchronized (outboxes) {
+			if (--refCount > 0) {
+				return;
+			}
+			outboxes.remove(directory.getPath());
+		}
+		close();
+	}
+
+	/**
+	 * Adds the handler of an attached filter; entries are delivered by the most recently added one.
+	 */
+	public synchronized void addReplayHandler(ReplayHandler handler) {
+		replayHandlers.add(handler);
+		notifyAll();
+	}
+
+	/**
+	 * Removes the handler of a detached filter, waiting for a replay it is running to complete, so
+	 * that it is never called once the filter has released its clients.
+	 */
+	public synchronized void removeReplayHandler(ReplayHandler handler) {
+		replayHandlers.remove(handler);
+		while (activeHandler == handler) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * False while the replayer is failing to deliver to the topic, i.e. SNS is considered unavailable
+	 * for it. New publishes to the topic can then go straight to the outbox to keep their order and
+	 * latency.
+	 */
+	public boolean isHealthy(String region, String topicArn) {
+		return unavailableTopics.isEmpty() || !unavailableTopics.contains(region + "|" + topicArn);
+	}
+
+	/**
+	 * True when records are waiting to be replayed.
+	 */
+	public synchronized boolean hasBacklog() {
+		return readSegmentId < writeSegmentId || readPosition < writePosition;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Digest of the credentials the entries of this outbox are published with.
+	 */
+	public String getCredentialsId() {
+		return credentialsId;
+	}
+
+	/**
+	 * Appends the publish to the log. Returns false when the entry does not fit in a segment.
+	 */
+	public boolean append(Entry entry) throws IOException {
+		byte[] payload = entry.encode(credentialsId);
+		int recordSize = RECORD_HEADER_SIZE + payload.length;
+		if (recordSize + 4 > segmentSize) {
+			Trace.error("SNS outbox entry of " + payload.length + " bytes exceeds segment size " + segmentSize);
+			return false;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, payload.length);
+
+		synchronized (this) {
+			if (closed) {
+				throw new IOException("SNS outbox is closed: " + directory);
+			}
+			// Keep 4 zero bytes after the last record as end marker
+			if (writePosition + recordSize + 4 > segmentSize) {
+				rollSegment();
+			}
+			ByteBuffer buffer = writeBuffer.duplicate();
+			buffer.position(writePosition + RECORD_HEADER_SIZE);
+			buffer.put(payload);
+			writeBuffer.putInt(writePosition + 4, (int) crc.getValue());
+			// Length last: a record is visible only once completely written
+			writeBuffer.putInt(writePosition, payload.length);
+			writePosition += recordSize;
+			dirty = true;
+			if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+				writeBuffer.force();
+				dirty = false;
+			}
+			notifyAll();
+		}
+		return true;
+	}
+
+	private void start() {
+		replayer = new Thread(this::replayLoop, "SNSOutbox-replayer-" + directory.getParentFile().getName()
+			+ "-" + credentialsId);
+		replayer.setDaemon(true);
+		replayer.start();
+	}
+
+	private void close() {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		if (replayer != null) {
+			try {
+				replayer.join(TimeUnit.SECONDS.toMillis(5));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (this) {
+			if (writeBuffer != null && fsyncPolicy != FsyncPolicy.NEVER) {
+				writeBuffer.force();
+			}
+			writeOffset();
+			// Mapped buffers are unmapped by the garbage collector
+			writeBuffer = null;
+			readBuffer = null;
+		}
+		Trace.info("SNS outbox closed: " + directory);
+	}
+
+	private void replayLoop() {
+		long backoff = MIN_REPLAY_BACKOFF_MILLIS;
+		long lastFsync = System.currentTimeMillis();
+		long lastRetentionCheck = 0;
+		while (!closed) {
+			try {
+				long now = System.currentTimeMillis();
+				if (fsyncPolicy == FsyncPolicy.INTERVAL && now - lastFsync >= FSYNC_INTERVAL_MILLIS) {
+					forceIfDirty();
+					lastFsync = now;
+				}
+				if (now - lastRetentionCheck >= RETENTION_CHECK_INTERVAL_MILLIS) {
+					applyRetention();
+					lastRetentionCheck = now;
+				}
+
+				byte[] payload = hasReplayHandler() ? peek() : null;
+				if (payload == null) {
+					waitFor(IDLE_POLL_MILLIS);
+					continue;
+				}
+
+				Entry entry;
+				try {
+					entry = Entry.decode(payload);
+				} catch (IOException e) {
+					Trace.error("Dropping unreadable SNS outbox entry: " + e.getMessage());
+					advance(payload.length);
+					continue;
+				}
+				if (entry.getCredentialsId() != null && !entry.getCredentialsId().equals(credentialsId)) {
+					// Only possible when segments were moved between outboxes by hand
+					Trace.error("Dropping SNS outbox entry for " + entry.getTopicArn() + " published with other credentials ("
+						+ entry.getCredentialsId() + ")");
+					advance(payload.length);
+					continue;
+				}
+
+				ReplayHandler handler = beginReplay();
+				if (handler == null) {
+					continue;
+				}
+				String topic = entry.getRegion() + "|" + entry.getTopicArn();
+				try {
+					handler.replay(entry);
+					advance(payload.length);
+					if (unavailableTopics.remove(topic)) {
+						Trace.info("SNS outbox replay succeeded, SNS is available again for " + entry.getTopicArn());
+					}
+					backoff = MIN_REPLAY_BACKOFF_MILLIS;
+				} catch (Exception e) {
+					boolean denied = e instanceof AmazonServiceException
+						&& SNSDiagnostics.isAccessDenied((AmazonServiceException) e);
+					if (!denied && SNSRetryPolicy.classify(e) == SNSRetryPolicy.ErrorClass.PERMANENT) {
+						Trace.error("Dropping SNS outbox entry for " + entry.getTopicArn() + ": " + e.getMessage());
+						advance(payload.length);
+						continue;
+					}
+					if (unavailableTopics.add(topic)) {
+						Trace.error("SNS outbox replay " + (denied ? "denied" : "failed") + " for " + entry.getTopicArn()
+							+ ", will retry: " + e.getMessage());
+					}
+					waitFor(backoff);
+					backoff = Math.min(backoff * 2, MAX_REPLAY_BACKOFF_MILLIS);
+				} finally {
+					endReplay();
+				}
+			} catch (Throwable t) {
+				Trace.error("Error in SNS outbox replayer: " + t.getMessage(), t);
+				waitFor(MAX_REPLAY_BACKOFF_MILLIS);
+			}
+		}
+	}
+
+	private synchronized boolean hasReplayHandler() {
+		return !replayHandlers.isEmpty();
+	}
+
+	/**
+	 * Returns the handler to deliver the next entry with, marked as running until {@link #endReplay()}.
+	 */
+	private synchronized ReplayHandler beginReplay() {
+		activeHandler = replayHandlers.isEmpty() ? null : replayHandlers.get(replayHandlers.size() - 1);
+		return activeHandler;
+	}
+
+	private synchronized void endReplay() {
+		activeHandler = null;
+		notifyAll();
+	}
+
+	private synchronized void waitFor(long millis) {
+		if (closed) {
+			return;
+		}
+		try {
+			wait(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			closed = true;
+		}
+	}
+
+	private synchronized void forceIfDirty() {
+		if (dirty && writeBuffer != null) {
+			writeBuffer.force();
+			dirty = false;
+		}
+	}
+
+	/**
+	 * Returns the payload of the next record to replay, or null when there is none.
+	 */
+	private synchronized byte[] peek() throws IOException {
+		while (true) {
+			if (readBuffer == null) {
+				readBuffer = readSegmentId == writeSegmentId ? writeBuffer : mapSegment(readSegmentId);
+				if (readBuffer == null) {
+					// Segment removed by retention; move on
+					if (!nextReadSegment()) {
+						return null;
+					}
+					continue;
+				}
+			}
+			int length = readPosition + 4 <= segmentSize ? readBuffer.getInt(readPosition) : 0;
+			if (length <= 0 || readPosition + RECORD_HEADER_SIZE + length > segmentSize) {
+				if (readSegmentId < writeSegmentId) {
+					// End of a completed segment
+					nextReadSegment();
+					continue;
+				}
+				return null;
+			}
+			byte[] payload = new byte[length];
+			ByteBuffer record = readBuffer.duplicate();
+			record.position(readPosition + RECORD_HEADER_SIZE);
+			record.get(payload);
+			CRC32 crc = new CRC32();
+			crc.update(payload, 0, length);
+			if ((int) crc.getValue() != readBuffer.getInt(readPosition + 4)) {
+				Trace.error("Corrupted SNS outbox record in segment " + readSegmentId + " at " + readPosition);
+				if (readSegmentId < writeSegmentId) {
+					nextReadSegment();
+					continue;
+				}
+				return null;
+			}
+			return payload;
+		}
+	}
+
+	private synchronized void advance(int payloadLength) {
+		readPosition += RECORD_HEADER_SIZE + payloadLength;
+		writeOffset();
+	}
+
+	/**
+	 * Moves the reader to the next segment and deletes the consumed one. Must hold the monitor.
+	 */
+	private boolean nextReadSegment() {
+		if (readSegmentId >= writeSegmentId) {
+			return false;
+		}
+		File consumed = segmentFile(readSegmentId);
+		readSegmentId++;
+		readPosition = 0;
+		readBuffer = null;
+		writeOffset();
+		if (consumed.exists() && !consumed.delete()) {
+			Trace.error("Unable to delete consumed SNS outbox segment: " + consumed);
+		}
+		return true;
+	}
+
+	/**
+	 * Drops completed segments older than the retention period, replayed or not.
+	 */
+	private synchronized void applyRetention() {
+		long cutoff = System.currentTimeMillis() - retentionMillis;
+		for (Map.Entry<Long, File> segment : listSegments().entrySet()) {
+			long id = segment.getKey();
+			File file = segment.getValue();
+			if (id >= writeSegmentId || file.lastModified() >= cutoff) {
+				continue;
+			}
+			Trace.error("Dropping SNS outbox segment past retention: " + file);
+			if (id == readSegmentId) {
+				readSegmentId++;
+				readPosition = 0;
+				readBuffer = null;
+				writeOffset();
+			}
+			if (!file.delete()) {
+				Trace.error("Unable to delete SNS outbox segment: " + file);
+			}
+		}
+	}
+
+	/**
+	 * Moves the writer to a new segment. Must hold the monitor.
+	 */
+	private void rollSegment() throws IOException {
+		if (writeBuffer != null && fsyncPolicy != FsyncPolicy.NEVER) {
+			writeBuffer.force();
+		}
+		writeSegmentId++;
+		writeBuffer = mapSegment(writeSegmentId);
+		writePosition = 0;
+	}
+
+	/**
+	 * Moves the segments written directly in the outbox directory, before entries recorded their
+	 * credentials, to the first outbox opened in it, which replays them as it did before.
+	 */
+	private static void adoptUnscopedSegments(File base, File dir) {
+		File[] files = base.listFiles();
+		if (files == null || dir.exists()) {
+			return;
+		}
+		for (File file : files) {
+			String name = file.getName();
+			if (!(name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) && !name.equals(OFFSET_FILE)) {
+				continue;
+			}
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				return;
+			}
+			if (file.renameTo(new File(dir, name))) {
+				Trace.info("SNS outbox file moved to the outbox of the current credentials: " + name);
+			} else {
+				Trace.error("Unable to move SNS outbox file to " + dir + ": " + name);
+			}
+		}
+	}
+
+	/**
+	 * Restores writer and reader positions from the segment files and the offset file.
+	 */
+	private void recover() throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create SNS outbox directory: " + directory);
+		}
+		TreeMap<Long, File> segments = listSegments();
+		writeSegmentId = segments.isEmpty() ? 0 : segments.lastKey();
+		writeBuffer = mapSegment(writeSegmentId);
+		writePosition = scanEnd(writeBuffer);
+
+		readSegmentId = segments.isEmpty() ? writeSegmentId : segments.firstKey();
+		readPosition = 0;
+		File offsetFile = new File(directory, OFFSET_FILE);
+		if (offsetFile.isFile()) {
+			try (DataInputStream in = new DataInputStream(new java.io.FileInputStream(offsetFile))) {
+				long segmentId = in.readLong();
+				int position = in.readInt();
+				if (segments.containsKey(segmentId) || segmentId == writeSegmentId) {
+					readSegmentId = segmentId;
+					readPosition = position;
+				}
+			} catch (IOException e) {
+				Trace.error("Unable to read SNS outbox offset, replaying from the oldest segment: " + e.getMessage());
+			}
+		}
+		Trace.info("SNS outbox opened: " + directory + " (segments " + readSegmentId + ".." + writeSegmentId
+			+ ", fsync " + fsyncPolicy + ")");
+	}
+
+	/**
+	 * Finds the end of the valid records in a segment.
+	 */
+	private int scanEnd(ByteBuffer buffer) {
+		int position = 0;
+		while (position + RECORD_HEADER_SIZE <= segmentSize) {
+			int length = buffer.getInt(position);
+			if (length <= 0 || position + RECORD_HEADER_SIZE + length > segmentSize) {
+				break;
+			}
+			byte[] payload = new byte[length];
+			ByteBuffer record = buffer.duplicate();
+			record.position(position + RECORD_HEADER_SIZE);
+			record.get(payload);
+			CRC32 crc = new CRC32();
+			crc.update(payload, 0, length);
+			if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+				// Torn write: overwrite from here
+				buffer.putInt(position, 0);
+				break;
+			}
+			position += RECORD_HEADER_SIZE + length;
+		}
+		return position;
+	}
+
+	private MappedByteBuffer mapSegment(long segmentId) throws IOException {
+		File file = segmentFile(segmentId);
+		if (segmentId != writeSegmentId && !file.exists()) {
+			return null;
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+			// The mapping stays valid after the channel is closed
+			return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		}
+	}
+
+	private void writeOffset() {
+		File offsetFile = new File(directory, OFFSET_FILE);
+		try (RandomAccessFile raf = new RandomAccessFile(offsetFile, "rw")) {
+			raf.seek(0);
+			raf.writeLong(readSegmentId);
+			raf.writeInt(readPosition);
+		} catch (IOException e) {
+			Trace.error("Unable to write SNS outbox offset: " + e.getMessage());
+		}
+	}
+
+	private File segmentFile(long segmentId) {
+		return new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, segmentId, SEGMENT_SUFFIX));
+	}
+
+	private TreeMap<Long, File> listSegments() {
+		TreeMap<Long, File> segments = new TreeMap<>();
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+					try {
+						segments.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+							name.length() - SEGMENT_SUFFIX.length())), file);
+					} catch (NumberFormatException e) {
+						// Not a segment
+					}
+				}
+			}
+		}
+		return segments;
+	}
+
+	/**
+	 * A publish stored in the outbox.
+	 */
+	public static final class Entry {
+		private final String region;
+		private final String topicArn;
+		private final String message;
+		private final String subject;
+		private final String messageStructure;
+		private final Map<String, MessageAttributeValue> messageAttributes;
+		private final String messageGroupId;
+		private final String messageDeduplicationId;
+		private final String credentialsId;
+
+		public Entry(String region, String topicArn, String message, String subject, String messageStructure,
+				Map<String, MessageAttributeValue> messageAttributes) {
+			this(region, topicArn, message, subject, messageStructure, messageAttributes, null, null);
+		}
+
+		public Entry(String region, String topicArn, String message, String subject, String messageStructure,
+				Map<String, MessageAttributeValue> messageAttributes, String messageGroupId, String messageDeduplicationId) {
+			this(region, topicArn, message, subject, messageStructure, messageAttributes, messageGroupId,
+				messageDeduplicationId, null);
+		}
+
+		private Entry(String region, String topicArn, String message, String subject, String messageStructure,
+				Map<String, MessageAttributeValue> messageAttributes, String messageGroupId, String messageDeduplicationId,
+				String credentialsId) {
+			this.region = region;
+			this.topicArn = topicArn;
+			this.message = message;
+			this.subject = subject;
+			this.messageStructure = messageStructure;
+			this.messageAttributes = messageAttributes;
+			this.messageGroupId = messageGroupId;
+			this.messageDeduplicationId = messageDeduplicationId;
+			this.credentialsId = credentialsId;
+		}
+
+		public static Entry fromRequest(String region, PublishRequest request) {
+			return new Entry(region, request.getTopicArn(), request.getMessage(), request.getSubject(),
+				request.getMessageStructure(), request.getMessageAttributes(), request.getMessageGroupId(),
+				request.getMessageDeduplicationId());
+		}
+
+		public String getRegion() {
+			return region;
+		}
+
+		public String getTopicArn() {
+			return topicArn;
+		}
+
+		/**
+		 * Digest of the credentials the entry was published with, null for entries stored before it
+		 * was recorded.
+		 */
+		public String getCredentialsId() {
+			return credentialsId;
+		}
+
+		public PublishRequest toPublishRequest() {
+			PublishRequest request = new PublishRequest()
+				.withTopicArn(topicArn)
+				.withMessage(message)
+				.withSubject(subject)
+				.withMessageStructure(messageStructure)
+				.withMessageGroupId(messageGroupId)
+				.withMessageDeduplicationId(messageDeduplicationId);
+			if (messageAttributes != null && !messageAttributes.isEmpty()) {
+				request.withMessageAttributes(messageAttributes);
+			}
+			return request;
+		}
+
+		byte[] encode(String credentialsId) throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(256 + (message != null ? message.length() : 0));
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(ENTRY_VERSION);
+			writeString(out, region);
+			writeString(out, topicArn);
+			writeString(out, message);
+			writeString(out, subject);
+			writeString(out, messageStructure);
+			int count = messageAttributes != null ? messageAttributes.size() : 0;
+			out.writeInt(count);
+			if (count > 0) {
+				for (Map.Entry<String, MessageAttributeValue> attribute : messageAttributes.entrySet()) {
+					MessageAttributeValue value = attribute.getValue();
+					writeString(out, attribute.getKey());
+					writeString(out, value.getDataType());
+					writeString(out, value.getStringValue());
+					ByteBuffer binary = value.getBinaryValue();
+					if (binary == null) {
+						out.writeInt(-1);
+					} else {
+						ByteBuffer copy = binary.duplicate();
+						byte[] data = new byte[copy.remaining()];
+						copy.get(data);
+						out.writeInt(data.length);
+						out.write(data);
+					}
+				}
+			}
+			writeString(out, messageGroupId);
+			writeString(out, messageDeduplicationId);
+			writeString(out, credentialsId);
+			out.flush();
+			return bytes.toByteArray();
+		}
+
+		static Entry decode(byte[] payload) throws IOException {
+			DataInputStream in = new DataInputStream(new java.io.ByteArrayInputStream(payload));
+			byte version = in.readByte();
+			if (version < 1 || version > ENTRY_VERSION) {
+				throw new IOException("Unsupported SNS outbox entry version " + version);
+			}
+			String region = readString(in);
+			String topicArn = readString(in);
+			String message = readString(in);
+			String subject = readString(in);
+			String messageStructure = readString(in);
+			int count = in.readInt();
+			Map<String, MessageAttributeValue> attributes = null;
+			if (count > 0) {
+				attributes = new LinkedHashMap<>();
+				for (int i = 0; i < count; i++) {
+					String name = readString(in);
+					MessageAttributeValue value = new MessageAttributeValue()
+						.withDataType(readString(in))
+						.withStringValue(readString(in));
+					int binaryLength = in.readInt();
+					if (binaryLength >= 0) {
+						byte[] data = new byte[binaryLength];
+						in.readFully(data);
+						value.withBinaryValue(ByteBuffer.wrap(data));
+					}
+					attributes.put(name, value);
+				}
+			}
+			String messageGroupId = version >= 2 ? readString(in) : null;
+			String messageDeduplicationId = version >= 2 ? readString(in) : null;
+			String credentialsId = version >= 3 ? readString(in) : null;
+			return new Entry(region, topicArn, message, subject, messageStructure, attributes, messageGroupId,
+				messageDeduplicationId, credentialsId);
+		}
+
+		private static void writeString(DataOutputStream out, String value) throws IOException {
+			if (value == null) {
+				out.writeInt(-1);
+				return;
+			}
+			byte[] data = value.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(data.length);
+			out.write(data);
+		}
+
+		private static String readString(DataInputStream in) throws IOException {
+			int length = in.readInt();
+			if (length < 0) {
+				return null;
+			}
+			byte[] data = new byte[length];
+			in.readFully(data);
+			return new String(data, StandardCharsets.UTF_8);
+		}
+	}
+}
@@ -0,0 +1,237 @@
+package com.axway.aws.sns;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import com.amazonaws.services.sns.model.MessageAttributeValue;
+import com.amazonaws.services.sns.model.PublishRequest;
+import com.vordel.trace.Trace;
+
+/**
+ * Payload stage of the Publish SNS Message filter, applied to a publish request before it is sent.
+ *
+ * Bodies of at least the compression threshold are gzip compressed and published Base64 encoded,
+ * marked by the {@link #ENCODING_ATTRIBUTE} message attribute. When the payload (message, subject and
+ * message attributes) still exceeds the offload threshold, the body is written to the blob store and
+ * its reference is published instead, marked by the {@link #OFFLOAD_ATTRIBUTE} message attribute
+ * holding the original body size. {@link SNSPayloadDecoder} reverses both for subscribers.
+ *
+ * Whatever the configuration, a payload over the SNS limit of {@link #MAX_PAYLOAD_BYTES} is rejected
+ * with {@link PayloadTooLargeException} before any network call. Messages with the json message
+ * structure are never encoded, since SNS must be able to parse them.
+ */
+public class SNSPayloadCodec {
+
+	/** SNS limit on message, subject and message attributes together */
+	public static final int MAX_PAYLOAD_BYTES = 262144;
+
+	/** Value of aws.sns.error.code when a payload exceeds the SNS limit */
+	public static final String ERROR_CODE = "PayloadTooLarge";
+
+	/** Message attribute set to the encoding of a compressed body */
+	public static final String ENCODING_ATTRIBUTE = "axway.sns.payload.encoding";
+	/** Message attribute set to the original body size (bytes) when the body was offloaded */
+	public static final String OFFLOAD_ATTRIBUTE = "axway.sns.payload.offloaded";
+	public static final String GZIP = "gzip";
+
+	public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+	static final int MAX_MESSAGE_ATTRIBUTES = 10;
+
+	private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+	private static final int GZIP_TRAILER_LENGTH = 8;
+	/** Deflaters are costly to create and hold native memory: a few are kept for reuse */
+	private static final BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(
+		Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+	private final boolean compress;
+	private final int compressionThreshold;
+	private final SNSBlobStore blobStore;
+	private final int offloadThreshold;
+
+	/**
+	 * @param compress whether to gzip bodies of at least the compression threshold
+	 * @param compressionThreshold body size (bytes) from which bodies are compressed
+	 * @param blobStore store for offloaded bodies, null to never offload
+	 * @param offloadThreshold payload size (bytes) above which the body is offloaded, at most {@link #MAX_PAYLOAD_BYTES}
+	 */
+	public SNSPayloadCodec(boolean compress, int compressionThreshold, SNSBlobStore blobStore, int offloadThreshold) {
+		this.compress = compress;
+		this.compressionThreshold = Math.max(0, compressionThreshold);
+		this.blobStore = blobStore;
+		this.offloadThreshold = offloadThreshold > 0 ? Math.min(offloadThreshold, MAX_PAYLOAD_BYTES) : MAX_PAYLOAD_BYTES;
+	}
+
+	public SNSBlobStore getBlobStore() {
+		return blobStore;
+	}
+
+	/**
+	 * Largest message body (bytes) worth reading: bodies over the SNS limit are only accepted when they
+	 * may be compressed or offloaded.
+	 */
+	public int getBodyLimit() {
+		return compress || blobStore != null ? Integer.MAX_VALUE : MAX_PAYLOAD_BYTES;
+	}
+
+	public String describe() {
+		return (compress ? "gzip from " + compressionThreshold + " bytes" : "no compression")
+			+ (blobStore != null ? ", offload over " + offloadThreshold + " bytes" : "");
+	}
+
+	/**
+	 * Compresses or offloads the message of the request in place, then checks the payload size.
+	 *
+	 * @throws PayloadTooLargeException when the payload exceeds the SNS limit
+	 * @throws IOException when the body could not be written to the blob store
+	 */
+	public void encode(PublishRequest request) throws IOException {
+		encode(request, null, 0);
+	}
+
+	/**
+	 * Same as {@link #encode(PublishRequest)}, given the UTF-8 bytes of the message when already
+	 * available (the first bodyLength bytes of body) so that they are not encoded again.
+	 */
+	public void encode(PublishRequest request, byte[] body, int bodyLength) throws IOException {
+		int size = SNSPublishBatcher.payloadSize(request);
+		String message = request.getMessage();
+		boolean compressible = compress && size >= compressionThreshold;
+		boolean offloadable = blobStore != null && size > offloadThreshold;
+		if ((compressible || offloadable) && message != null && !message.isEmpty()) {
+			if ("json".equalsIgnoreCase(request.getMessageStructure())) {
+				Trace.debug("SNS payload not encoded: json message structure");
+			} else if (attributeCount(request) + (offloadable ? 2 : 1) > MAX_MESSAGE_ATTRIBUTES) {
+				Trace.debug("SNS payload not encoded: no room for the marker message attributes");
+			} else {
+				encode(request, message, size, compressible, body, bodyLength);
+				size = SNSPublishBatcher.payloadSize(request);
+			}
+		}
+		if (size > MAX_PAYLOAD_BYTES) {
+			throw new PayloadTooLargeException("Payload of " + size + " bytes exceeds the SNS limit of "
+				+ MAX_PAYLOAD_BYTES + " bytes");
+		}
+	}
+
+	private void encode(PublishRequest request, String message, int size, boolean compressible, byte[] body,
+			int bodyLength) throws IOException {
+		if (body == null) {
+			body = message.getBytes(StandardCharsets.UTF_8);
+			bodyLength = body.length;
+		}
+		byte[] payload = null;
+		String encoded = message;
+		boolean compressed = false;
+		if (compressible) {
+			byte[] gzipped = gzip(body, bodyLength);
+			// Base64 adds a third: only worth it when the body shrinks by more than that
+			if (gzipped.length * 4L / 3 + 4 < bodyLength) {
+				payload = gzipped;
+				encoded = Base64.getEncoder().encodeToString(gzipped);
+				compressed = true;
+			}
+		}
+
+		Map<String, MessageAttributeValue> attributes = request.getMessageAttributes() != null
+			? new HashMap<>(request.getMessageAttributes()) : new HashMap<>();
+		if (compressed) {
+			attributes.put(ENCODING_ATTRIBUTE, new MessageAttributeValue().withDataType("String").withStringValue(GZIP));
+		}
+		// Base64 is ASCII, so its length is its size in bytes; the plain body keeps its UTF-8 size
+		int encodedSize = size - bodyLength + (compressed ? encoded.length() + markerSize(ENCODING_ATTRIBUTE, "String", GZIP) : bodyLength);
+		if (blobStore != null && encodedSize > offloadThreshold) {
+			String reference = blobStore.put(payload != null ? payload
+				: body.length == bodyLength ? body : Arrays.copyOf(body, bodyLength));
+			attributes.put(OFFLOAD_ATTRIBUTE, new MessageAttributeValue().withDataType("Number")
+				.withStringValue(Integer.toString(bodyLength)));
+			request.setMessage(reference);
+			Trace.debug("SNS message body of " + bodyLength + " bytes offloaded" + (compressed ? " gzip compressed" : "")
+				+ " to " + reference);
+		} else if (compressed) {
+			request.setMessage(encoded);
+			Trace.debug("SNS message body compressed from " + bodyLength + " to " + encoded.length() + " bytes");
+		} else {
+			return;
+		}
+		request.setMessageAttributes(attributes);
+	}
+
+	private static int attributeCount(PublishRequest request) {
+		return request.getMessageAttributes() != null ? request.getMessageAttributes().size() : 0;
+	}
+
+	private static int markerSize(String name, String dataType, String value) {
+		return name.length() + dataType.length() + value.length();
+	}
+
+	/**
+	 * Gzip compresses the data with a pooled deflater.
+	 */
+	static byte[] gzip(byte[] data) {
+		return gzip(data, data.length);
+	}
+
+	/**
+	 * Gzip compresses the first dataLength bytes of the data.
+	 */
+	static byte[] gzip(byte[] data, int dataLength) {
+		Deflater deflater = deflaters.poll();
+		if (deflater == null) {
+			deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		}
+		try {
+			deflater.setInput(data, 0, dataLength);
+			deflater.finish();
+			byte[] out = new byte[GZIP_HEADER.length + dataLength / 2 + 64];
+			System.arraycopy(GZIP_HEADER, 0, out, 0, GZIP_HEADER.length);
+			int length = GZIP_HEADER.length;
+			while (!deflater.finished()) {
+				if (length == out.length) {
+					out = Arrays.copyOf(out, out.length * 2);
+				}
+				length += deflater.deflate(out, length, out.length - length);
+			}
+			if (out.length < length + GZIP_TRAILER_LENGTH) {
+				out = Arrays.copyOf(out, length + GZIP_TRAILER_LENGTH);
+			}
+			CRC32 crc = new CRC32();
+			crc.update(data, 0, dataLength);
+			writeIntLE(out, length, (int) crc.getValue());
+			writeIntLE(out, length + 4, dataLength);
+			length += GZIP_TRAILER_LENGTH;
+			return length == out.length ? out : Arrays.copyOf(out, length);
+		} finally {
+			deflater.reset();
+			if (!deflaters.offer(deflater)) {
+				deflater.end();
+			}
+		}
+	}
+
+	private static void writeIntLE(byte[] out, int offset, int value) {
+		out[offset] = (byte) value;
+		out[offset + 1] = (byte) (value >> 8);
+		out[offset + 2] = (byte) (value >> 16);
+		out[offset + 3] = (byte) (value >> 24);
+	}
+
+	/**
+	 * Rejection of a payload exceeding the SNS limit, before it is sent.
+	 */
+	public static class PayloadTooLargeException extends SNSPublishRejectedException {
+
+		private static final long serialVersionUID = 1L;
+
+		public PayloadTooLargeException(String message) {
+			super(ERROR_CODE, message);
+		}
+	}
+}
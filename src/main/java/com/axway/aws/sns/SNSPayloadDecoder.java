@@ -0,0 +1,100 @@
+package com.axway.aws.sns;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Subscriber side of {@link SNSPayloadCodec}: restores the original body of a message published with
+ * compression or offload enabled. Messages without the marker attributes are returned as they are, so
+ * subscribers can decode every message they receive.
+ *
+ * Decode either from the message and its attribute values (raw message delivery, Lambda or SQS message
+ * attributes) or from the JSON notification delivered by SNS to HTTP and SQS subscribers.
+ */
+public final class SNSPayloadDecoder {
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	private SNSPayloadDecoder() {
+	}
+
+	/**
+	 * Returns the original body of a message.
+	 *
+	 * @param message the message as received
+	 * @param attributes string values of the message attributes, by name
+	 * @param blobStore store the publisher offloads to, only needed for offloaded messages
+	 */
+	public static String decode(String message, Map<String, String> attributes, SNSBlobStore blobStore) throws IOException {
+		String encoding = attributes != null ? attributes.get(SNSPayloadCodec.ENCODING_ATTRIBUTE) : null;
+		boolean offloaded = attributes != null && attributes.containsKey(SNSPayloadCodec.OFFLOAD_ATTRIBUTE);
+		if (encoding == null && !offloaded) {
+			return message;
+		}
+
+		byte[] payload;
+		if (offloaded) {
+			if (blobStore == null) {
+				throw new IOException("Message body was offloaded to " + message + " but no blob store was given");
+			}
+			payload = blobStore.get(message);
+		} else {
+			payload = Base64.getDecoder().decode(message);
+		}
+		if (encoding != null) {
+			if (!SNSPayloadCodec.GZIP.equals(encoding)) {
+				throw new IOException("Unsupported payload encoding: " + encoding);
+			}
+			payload = gunzip(payload);
+		}
+		return new String(payload, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Returns the original body of an SNS notification, the JSON document with Message and
+	 * MessageAttributes fields delivered to HTTP/S and SQS subscribers without raw message delivery.
+	 */
+	public static String decodeNotification(String notification, SNSBlobStore blobStore) throws IOException {
+		JsonNode root = mapper.readTree(notification);
+		JsonNode message = root != null ? root.get("Message") : null;
+		if (message == null || !message.isTextual()) {
+			throw new IOException("Not an SNS notification: no Message field");
+		}
+		Map<String, String> attributes = new HashMap<>();
+		JsonNode messageAttributes = root.get("MessageAttributes");
+		if (messageAttributes != null) {
+			Iterator<Map.Entry<String, JsonNode>> fields = messageAttributes.fields();
+			while (fields.hasNext()) {
+				Map.Entry<String, JsonNode> field = fields.next();
+				JsonNode value = field.getValue().get("Value");
+				if (value != null) {
+					attributes.put(field.getKey(), value.asText());
+				}
+			}
+		}
+		return decode(message.asText(), attributes, blobStore);
+	}
+
+	static byte[] gunzip(byte[] data) throws IOException {
+		try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(data))) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+			return out.toByteArray();
+		}
+	}
+}
@@ -0,0 +1,381 @@
+package com.axway.aws.sns;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.sns.AmazonSNS;
+import com.amazonaws.services.sns.model.AmazonSNSException;
+import com.amazonaws.services.sns.model.BatchResultErrorEntry;
+import com.amazonaws.services.sns.model.MessageAttributeValue;
+import com.amazonaws.services.sns.model.PublishBatchRequest;
+import com.amazonaws.services.sns.model.PublishBatchRequestEntry;
+import com.amazonaws.services.sns.model.PublishBatchResult;
+import com.amazonaws.services.sns.model.PublishBatchResultEntry;
+import com.amazonaws.services.sns.model.PublishRequest;
+import com.amazonaws.services.sns.model.PublishResult;
+import com.vordel.trace.Trace;
+
+/**
+ * Gathers concurrent publishes to the same topic into SNS PublishBatch calls.
+ *
+ * A batch is sent when it reaches the maximum number of entries, when adding a publish would
+ * exceed the PublishBatch payload limit, or when the linger time since its first entry expires.
+ * Every publish gets its own future, completed with the message ID of its entry or with an
+ * AmazonServiceException carrying the entry's error code.
+ *
+ * Batches are keyed by client as well as topic and region, and are removed once sent: a batcher
+ * taken over by a redeployed filter never sends with the client of the replaced instance.
+ */
+public class SNSPublishBatcher {
+
+	public static final int MAX_BATCH_ENTRIES = 10;
+	public static final int MAX_BATCH_PAYLOAD_BYTES = 262144;
+	public static final long DEFAULT_LINGER_MILLIS = 10;
+
+	private static final ScheduledExecutorService lingerTimer = Executors.newSingleThreadScheduledExecutor(
+		SNSClientRegistry.daemonThreadFactory("SNSPublishBatcher-linger"));
+	/** Concurrent PublishBatch calls, the default connection pool size of a client; further batches queue */
+	static final int MAX_FLUSH_THREADS = 50;
+	private static final ExecutorService flushExecutor = newFlushExecutor();
+
+	private final int maxEntries;
+	private final long lingerMillis;
+	private final Map<BatchKey, TopicBatch> batches = new ConcurrentHashMap<>();
+
+	public SNSPublishBatcher(int maxEntries, long lingerMillis) {
+		this.maxEntries = maxEntries > 0 && maxEntries <= MAX_BATCH_ENTRIES ? maxEntries : MAX_BATCH_ENTRIES;
+		this.lingerMillis = lingerMillis >= 0 ? lingerMillis : DEFAULT_LINGER_MILLIS;
+	}
+
+	private static ExecutorService newFlushExecutor() {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_FLUSH_THREADS, MAX_FLUSH_THREADS, 60, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(), SNSClientRegistry.daemonThreadFactory("SNSPublishBatcher-flush"));
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	public long getLingerMillis() {
+		return lingerMillis;
+	}
+
+	/**
+	 * Adds the publish to the pending batch of its topic and region. The future completes when
+	 * the batch containing the publish has been sent.
+	 */
+	public CompletableFuture<PublishResult> submit(AmazonSNS client, String region, PublishRequest request) {
+		int size = payloadSize(request);
+		if (size > MAX_BATCH_PAYLOAD_BYTES) {
+			// Cannot share a batch with anything; let SNS report the size error for this publish alone
+			CompletableFuture<PublishResult> future = new CompletableFuture<>();
+			send(client, request.getTopicArn(), singletonList(new PendingPublish(request, future, size)));
+			return future;
+		}
+		BatchKey key = new BatchKey(client, region, request.getTopicArn());
+		while (true) {
+			TopicBatch batch = batches.computeIfAbsent(key, TopicBatch::new);
+			CompletableFuture<PublishResult> future = batch.add(request, size);
+			if (future != null) {
+				return future;
+			}
+			// Sent and removed meanwhile: start the next batch
+		}
+	}
+
+	/**
+	 * Sends the publishes right away in one PublishBatch call, outside of the pending batches, keeping
+	 * their order. Returns one future per publish, in the same order.
+	 */
+	public List<CompletableFuture<PublishResult>> sendNow(AmazonSNS client, String topicArn, List<PublishRequest> requests) {
+		List<PendingPublish> entries = new ArrayList<>(requests.size());
+		List<CompletableFuture<PublishResult>> futures = new ArrayList<>(requests.size());
+		for (PublishRequest request : requests) {
+			CompletableFuture<PublishResult> future = new CompletableFuture<>();
+			entries.add(new PendingPublish(request, future, payloadSize(request)));
+			futures.add(future);
+		}
+		send(client, topicArn, entries);
+		return futures;
+	}
+
+	/**
+	 * Sends all pending batches immediately, e.g. when the filter is detached.
+	 */
+	public void flushAll() {
+		for (TopicBatch batch : batches.values()) {
+			batch.flushPending();
+		}
+	}
+
+	private static List<PendingPublish> singletonList(PendingPublish pending) {
+		List<PendingPublish> list = new ArrayList<>(1);
+		list.add(pending);
+		return list;
+	}
+
+	/**
+	 * Approximate PublishBatch payload size of a publish: message, subject and message attributes.
+	 */
+	static int payloadSize(PublishRequest request) {
+		int size = utf8Length(request.getMessage()) + utf8Length(request.getSubject());
+		Map<String, MessageAttributeValue> attributes = request.getMessageAttributes();
+		if (attributes != null) {
+			for (Map.Entry<String, MessageAttributeValue> entry : attributes.entrySet()) {
+				MessageAttributeValue value = entry.getValue();
+				size += utf8Length(entry.getKey()) + utf8Length(value.getDataType()) + utf8Length(value.getStringValue());
+				if (value.getBinaryValue() != null) {
+					size += value.getBinaryValue().remaining();
+				}
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * UTF-8 encoded length of the value, computed without encoding it. Unpaired surrogates count as
+	 * three bytes, an upper bound of what the encoder writes for them.
+	 */
+	static int utf8Length(String value) {
+		if (value == null) {
+			return 0;
+		}
+		int length = value.length();
+		int bytes = length;
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				continue;
+			}
+			if (c < 0x800) {
+				bytes += 1;
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+				// Two chars, four bytes
+				bytes += 2;
+				i++;
+			} else {
+				bytes += 2;
+			}
+		}
+		return bytes;
+	}
+
+	private void send(AmazonSNS client, String topicArn, List<PendingPublish> entries) {
+		if (entries.isEmpty()) {
+			return;
+		}
+		try {
+			flushExecutor.execute(() -> publishBatch(client, topicArn, entries));
+		} catch (Exception e) {
+			for (PendingPublish pending : entries) {
+				pending.future.completeExceptionally(e);
+			}
+		}
+	}
+
+	private static void publishBatch(AmazonSNS client, String topicArn, List<PendingPublish> entries) {
+		Map<String, PendingPublish> byId = new HashMap<>();
+		List<PublishBatchRequestEntry> requestEntries = new ArrayList<>(entries.size());
+		for (int i = 0; i < entries.size(); i++) {
+			String id = Integer.toString(i);
+			PublishRequest request = entries.get(i).request;
+			PublishBatchRequestEntry entry = new PublishBatchRequestEntry()
+				.withId(id)
+				.withMessage(request.getMessage())
+				.withSubject(request.getSubject())
+				.withMessageStructure(request.getMessageStructure())
+				.withMessageGroupId(request.getMessageGroupId())
+				.withMessageDeduplicationId(request.getMessageDeduplicationId());
+			if (request.getMessageAttributes() != null && !request.getMessageAttributes().isEmpty()) {
+				entry.withMessageAttributes(request.getMessageAttributes());
+			}
+			requestEntries.add(entry);
+			byId.put(id, entries.get(i));
+		}
+
+		try {
+			Trace.debug("Sending SNS PublishBatch with " + requestEntries.size() + " entries to " + topicArn);
+			PublishBatchRequest batchRequest = new PublishBatchRequest()
+				.withTopicArn(topicArn)
+				.withPublishBatchRequestEntries(requestEntries);
+			// Entries share the topic, hence its metrics collector
+			batchRequest.setRequestMetricCollector(entries.get(0).request.getRequestMetricCollector());
+			PublishBatchResult result = client.publishBatch(batchRequest);
+
+			if (result.getSuccessful() != null) {
+				for (PublishBatchResultEntry success : result.getSuccessful()) {
+					PendingPublish pending = byId.remove(success.getId());
+					if (pending != null) {
+						pending.future.complete(new PublishResult()
+							.withMessageId(success.getMessageId())
+							.withSequenceNumber(success.getSequenceNumber()));
+					}
+				}
+			}
+			if (result.getFailed() != null) {
+				for (BatchResultErrorEntry failure : result.getFailed()) {
+					PendingPublish pending = byId.remove(failure.getId());
+					if (pending != null) {
+						pending.future.completeExceptionally(toException(failure));
+					}
+				}
+			}
+			for (PendingPublish pending : byId.values()) {
+				pending.future.completeExceptionally(
+					new IllegalStateException("PublishBatch response did not include entry"));
+			}
+		} catch (Exception e) {
+			for (PendingPublish pending : entries) {
+				pending.future.completeExceptionally(e);
+			}
+		}
+	}
+
+	private static AmazonServiceException toException(BatchResultErrorEntry failure) {
+		AmazonSNSException exception = new AmazonSNSException(failure.getMessage());
+		exception.setErrorCode(failure.getCode());
+		exception.setServiceName("AmazonSNS");
+		boolean senderFault = Boolean.TRUE.equals(failure.getSenderFault());
+		exception.setErrorType(senderFault ? AmazonServiceException.ErrorType.Client : AmazonServiceException.ErrorType.Service);
+		exception.setStatusCode(senderFault ? 400 : 500);
+		return exception;
+	}
+
+	private static final class PendingPublish {
+		final PublishRequest request;
+		final CompletableFuture<PublishResult> future;
+		final int size;
+
+		PendingPublish(PublishRequest request, CompletableFuture<PublishResult> future, int size) {
+			this.request = request;
+			this.future = future;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Client, region and topic of a batch. Clients compare by identity.
+	 */
+	private static final class BatchKey {
+		final AmazonSNS client;
+		final String region;
+		final String topicArn;
+
+		BatchKey(AmazonSNS client, String region, String topicArn) {
+			this.client = client;
+			this.region = region;
+			this.topicArn = topicArn;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof BatchKey)) {
+				return false;
+			}
+			BatchKey key = (BatchKey) other;
+			return client == key.client && region.equals(key.region) && topicArn.equals(key.topicArn);
+		}
+
+		@Override
+		public int hashCode() {
+			return (System.identityHashCode(client) * 31 + region.hashCode()) * 31 + topicArn.hashCode();
+		}
+	}
+
+	/**
+	 * Pending publishes for one client, topic and region, until they are sent.
+	 */
+	private final class TopicBatch {
+		private final BatchKey key;
+		private final AmazonSNS client;
+		private final String topicArn;
+		private List<PendingPublish> pending = new ArrayList<>(MAX_BATCH_ENTRIES);
+		private int pendingBytes;
+		private ScheduledFuture<?> lingerFlush;
+		/** Sent and removed from the batcher; publishes go to the next batch */
+		private boolean retired;
+
+		TopicBatch(BatchKey key) {
+			this.key = key;
+			this.client = key.client;
+			this.topicArn = key.topicArn;
+		}
+
+		/**
+		 * Adds the publish, or returns null when the batch was sent meanwhile.
+		 */
+		CompletableFuture<PublishResult> add(PublishRequest request, int size) {
+			CompletableFuture<PublishResult> future = new CompletableFuture<>();
+			List<PendingPublish> overflow = null;
+			List<PendingPublish> full = null;
+			synchronized (this) {
+				if (retired) {
+					return null;
+				}
+				if (pendingBytes + size > MAX_BATCH_PAYLOAD_BYTES) {
+					overflow = takePending();
+				}
+				pending.add(new PendingPublish(request, future, size));
+				pendingBytes += size;
+				if (pending.size() >= maxEntries || pendingBytes >= MAX_BATCH_PAYLOAD_BYTES) {
+					full = takePending();
+					retire();
+				} else if (lingerFlush == null) {
+					lingerFlush = lingerTimer.schedule(this::flushPending, lingerMillis, TimeUnit.MILLISECONDS);
+				}
+			}
+			if (overflow != null) {
+				send(client, topicArn, overflow);
+			}
+			if (full != null) {
+				send(client, topicArn, full);
+			}
+			return future;
+		}
+
+		void flushPending() {
+			List<PendingPublish> entries;
+			synchronized (this) {
+				entries = takePending();
+				retire();
+			}
+			send(client, topicArn, entries);
+		}
+
+		/**
+		 * Removes the batch from the batcher. Must hold the monitor.
+		 */
+		private void retire() {
+			retired = true;
+			batches.remove(key, this);
+		}
+
+		/**
+		 * Detaches the pending entries and cancels the linger flush. Must hold the monitor.
+		 */
+		private List<PendingPublish> takePending() {
+			List<PendingPublish> entries = pending;
+			pending = new ArrayList<>(MAX_BATCH_ENTRIES);
+			pendingBytes = 0;
+			if (lingerFlush != null) {
+				lingerFlush.cancel(false);
+				lingerFlush = null;
+			}
+			return entries;
+		}
+	}
+}
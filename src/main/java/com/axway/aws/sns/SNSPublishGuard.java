@@ -0,0 +1,95 @@
+package com.axway.aws.sns;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import com.amazonaws.services.sns.model.PublishResult;
+
+/**
+ * Guards applied to every attempt of one publish: the circuit breaker and the rate limiter of its topic.
+ *
+ * The first attempt uses the permit taken by the filter before the publish was started, so that a
+ * rate limit rejection is reported right away; retries take their own permit, waiting up to the retry
+ * timeout without holding a thread: the attempt is started on the executor of the publish once the
+ * permit is granted. An attempt rejected by either guard fails with an {@link SNSPublishRejectedException}.
+ */
+final class SNSPublishGuard {
+
+	private final SNSCircuitBreaker.TopicBreaker breaker;
+	private final SNSRateLimiter.TopicLimiter limiter;
+	private final long retryTimeoutMillis;
+	private final AtomicReference<SNSRateLimiter.Permit> pendingPermit;
+
+	SNSPublishGuard(SNSCircuitBreaker.TopicBreaker breaker, SNSRateLimiter.TopicLimiter limiter,
+			long retryTimeoutMillis, SNSRateLimiter.Permit firstPermit) {
+		this.breaker = breaker;
+		this.limiter = limiter;
+		this.retryTimeoutMillis = retryTimeoutMillis;
+		this.pendingPermit = new AtomicReference<>(firstPermit);
+	}
+
+	/**
+	 * Runs the attempt if both guards let it through, reporting its outcome to them. When the attempt
+	 * has to wait for a permit, it is started on the executor once the permit is granted.
+	 */
+	CompletableFuture<PublishResult> attempt(final Supplier<CompletableFuture<PublishResult>> attempt, Executor executor) {
+		SNSRateLimiter.Permit permit = limiter != null ? pendingPermit.getAndSet(null) : null;
+		if (limiter == null || permit != null) {
+			return guarded(permit, attempt);
+		}
+		CompletableFuture<SNSRateLimiter.Permit> acquired = limiter.acquireAsync(retryTimeoutMillis);
+		if (acquired.isDone() && !acquired.isCompletedExceptionally()) {
+			return guarded(acquired.join(), attempt);
+		}
+		return acquired.thenComposeAsync(p -> guarded(p, attempt), executor != null ? executor : SNSRetryEngine.workers());
+	}
+
+	private CompletableFuture<PublishResult> guarded(SNSRateLimiter.Permit permit,
+			Supplier<CompletableFuture<PublishResult>> attempt) {
+		if (breaker != null && !breaker.tryAcquire()) {
+			if (permit != null) {
+				permit.cancel();
+			}
+			return failed(breaker.rejection());
+		}
+
+		final SNSRateLimiter.Permit attemptPermit = permit;
+		final long startNanos = System.nanoTime();
+		CompletableFuture<PublishResult> future;
+		try {
+			future = attempt.get();
+		} catch (RuntimeException e) {
+			complete(startNanos, attemptPermit, e);
+			throw e;
+		}
+		return future.whenComplete((result, error) ->
+			complete(startNanos, attemptPermit, error != null ? SNSRetryEngine.unwrap(error) : null));
+	}
+
+	/**
+	 * Gives back the first permit when the publish was never started (e.g. asynchronous queue full).
+	 */
+	void cancel() {
+		SNSRateLimiter.Permit permit = pendingPermit.getAndSet(null);
+		if (permit != null) {
+			permit.cancel();
+		}
+	}
+
+	private void complete(long startNanos, SNSRateLimiter.Permit permit, Throwable error) {
+		if (breaker != null) {
+			breaker.onResult(System.nanoTime() - startNanos, error);
+		}
+		if (permit != null) {
+			permit.release(error);
+		}
+	}
+
+	private static CompletableFuture<PublishResult> failed(Throwable error) {
+		CompletableFuture<PublishResult> future = new CompletableFuture<>();
+		future.completeExceptionally(error);
+		return future;
+	}
+}
@@ -0,0 +1,23 @@
+package com.axway.aws.sns;
+
+/**
+ * Publish rejected by the filter itself before reaching SNS (open circuit breaker, rate limit).
+ *
+ * The error code is reported as aws.sns.error.code so that policies can tell these rejections from
+ * AWS errors. Not an AmazonClientException, so the retry policy classifies it as permanent.
+ */
+public class SNSPublishRejectedException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String errorCode;
+
+	public SNSPublishRejectedException(String errorCode, String message) {
+		super(message);
+		this.errorCode = errorCode;
+	}
+
+	public String getErrorCode() {
+		return errorCode;
+	}
+}
@@ -0,0 +1,264 @@
+package com.axway.aws.sns;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import com.amazonaws.services.sns.model.PublishRequest;
+import com.vordel.circuit.Message;
+import com.vordel.el.Selector;
+
+/**
+ * Immutable snapshot of the per-message settings of a Publish SNS Message filter, compiled when the
+ * filter is attached.
+ *
+ * Fields without ${...} expressions are resolved once; only fields containing expressions are
+ * substituted per message. The publish request is prebuilt from the literal fields and copied for
+ * each publish, and the retry policy is built once when both retry settings are literal.
+ *
+ * The topic ARN may list several topics, separated by commas or white space, or be an expression
+ * resolving to such a list or to a collection of topic ARNs; the message is then published to each.
+ */
+public final class SNSPublishTemplate {
+
+	/** Literal topic ARNs; null when the topic ARN is an expression */
+	private final List<String> topicArns;
+	private final Selector<Object> topicArnSelector;
+	private final Field<String> region;
+	private final Field<String> subject;
+	private final Field<String> messageStructure;
+	private final Field<String> messageGroupId;
+	private final Field<String> messageDeduplicationId;
+	private final Field<Integer> maxRetries;
+	private final Field<Integer> retryDelay;
+
+	/** Null when a retry setting is evaluated per message */
+	private final SNSRetryPolicy retryPolicy;
+	/** Literal fields already set; never sent itself */
+	private final PublishRequest requestTemplate;
+
+	private SNSPublishTemplate(String topicArn, String region, String subject, String messageStructure,
+			String messageGroupId, String messageDeduplicationId, String maxRetries, String retryDelay) {
+		this.topicArnSelector = topicArn != null && topicArn.contains("${") ? new Selector<>(topicArn, Object.class) : null;
+		this.topicArns = topicArnSelector == null ? splitTopicArns(topicArn) : null;
+		this.region = Field.of(region, String.class);
+		this.subject = Field.of(subject, String.class);
+		this.messageStructure = Field.of(messageStructure, String.class);
+		this.messageGroupId = Field.of(emptyToNull(messageGroupId), String.class);
+		this.messageDeduplicationId = Field.of(emptyToNull(messageDeduplicationId), String.class);
+		this.maxRetries = Field.of(maxRetries, Integer.class);
+		this.retryDelay = Field.of(retryDelay, Integer.class);
+
+		this.retryPolicy = this.maxRetries.isLiteral() && this.retryDelay.isLiteral()
+			? retryPolicy(this.maxRetries.literal, this.retryDelay.literal) : null;
+
+		PublishRequest request = new PublishRequest();
+		if (this.subject.isLiteral()) {
+			request.setSubject(this.subject.literal);
+		}
+		if (this.messageStructure.isLiteral()) {
+			request.setMessageStructure(lowerCase(this.messageStructure.literal));
+		}
+		if (this.messageGroupId.isLiteral()) {
+			request.setMessageGroupId(this.messageGroupId.literal);
+		}
+		if (this.messageDeduplicationId.isLiteral()) {
+			request.setMessageDeduplicationId(this.messageDeduplicationId.literal);
+		}
+		this.requestTemplate = request;
+	}
+
+	/**
+	 * Compiles the configured field values; null values stand for unset fields.
+	 */
+	public static SNSPublishTemplate compile(String topicArn, String region, String subject, String messageStructure,
+			String messageGroupId, String messageDeduplicationId, String maxRetries, String retryDelay) {
+		return new SNSPublishTemplate(topicArn, region, subject, messageStructure, messageGroupId,
+			messageDeduplicationId, maxRetries, retryDelay);
+	}
+
+	/**
+	 * Whether publishes carry a FIFO message group ID.
+	 */
+	public boolean hasMessageGroupId() {
+		return !messageGroupId.isLiteral() || messageGroupId.literal != null;
+	}
+
+	/**
+	 * Topic ARNs the message is published to, in configured order and without duplicates.
+	 */
+	public List<String> getTopicArns(Message msg) {
+		if (topicArns != null) {
+			return topicArns;
+		}
+		Object value = topicArnSelector.substitute(msg);
+		if (value instanceof Object[]) {
+			value = Arrays.asList((Object[]) value);
+		}
+		if (value instanceof Collection) {
+			List<String> topics = new ArrayList<>();
+			for (Object item : (Collection<?>) value) {
+				if (item != null) {
+					topics.addAll(splitTopicArns(item.toString()));
+				}
+			}
+			return distinct(topics);
+		}
+		return splitTopicArns(value != null ? value.toString() : null);
+	}
+
+	public String getRegion(Message msg) {
+		return region.resolve(msg);
+	}
+
+	/**
+	 * Configured region when it is not an expression, otherwise null.
+	 */
+	public String getLiteralRegion() {
+		return region.isLiteral() ? region.literal : null;
+	}
+
+	/**
+	 * Configured topic ARNs when they are not an expression, otherwise null.
+	 */
+	public List<String> getLiteralTopicArns() {
+		return topicArns;
+	}
+
+	/**
+	 * Retry policy of the message: missing or invalid values fall back to the defaults.
+	 */
+	public SNSRetryPolicy getRetryPolicy(Message msg) {
+		return retryPolicy != null ? retryPolicy : retryPolicy(maxRetries.resolve(msg), retryDelay.resolve(msg));
+	}
+
+	/**
+	 * Copies the request template for one message and topic, substituting the fields containing
+	 * expressions. The message structure is lower case; the message itself is left for the caller to set.
+	 */
+	public PublishRequest newRequest(Message msg, String topicArn) {
+		// Field by field: clone() would share the mutable request client options between requests
+		PublishRequest request = new PublishRequest();
+		request.setTopicArn(topicArn);
+		request.setSubject(subject.isLiteral() ? requestTemplate.getSubject() : subject.resolve(msg));
+		request.setMessageStructure(messageStructure.isLiteral()
+			? requestTemplate.getMessageStructure() : lowerCase(messageStructure.resolve(msg)));
+		// FIFO IDs: an expression resolving to an empty value leaves the ID unset
+		request.setMessageGroupId(messageGroupId.isLiteral()
+			? requestTemplate.getMessageGroupId() : emptyToNull(messageGroupId.resolve(msg)));
+		request.setMessageDeduplicationId(messageDeduplicationId.isLiteral()
+			? requestTemplate.getMessageDeduplicationId() : emptyToNull(messageDeduplicationId.resolve(msg)));
+		return request;
+	}
+
+	/**
+	 * Copies a complete request, message and attributes included, for another topic of a fan-out.
+	 */
+	public static PublishRequest forTopic(PublishRequest request, String topicArn) {
+		PublishRequest copy = new PublishRequest();
+		copy.setTopicArn(topicArn);
+		copy.setMessage(request.getMessage());
+		copy.setSubject(request.getSubject());
+		copy.setMessageStructure(request.getMessageStructure());
+		copy.setMessageGroupId(request.getMessageGroupId());
+		copy.setMessageDeduplicationId(request.getMessageDeduplicationId());
+		if (request.getMessageAttributes() != null) {
+			copy.setMessageAttributes(new HashMap<>(request.getMessageAttributes()));
+		}
+		return copy;
+	}
+
+	public String describe() {
+		int dynamic = topicArnSelector != null ? 1 : 0;
+		for (Field<?> field : new Field<?>[] { region, subject, messageStructure, messageGroupId,
+				messageDeduplicationId, maxRetries, retryDelay }) {
+			dynamic += field.isLiteral() ? 0 : 1;
+		}
+		return (dynamic == 0 ? "all fields literal" : dynamic + " field(s) evaluated per message")
+			+ (topicArns != null && topicArns.size() > 1 ? ", " + topicArns.size() + " topics" : "");
+	}
+
+	private static List<String> splitTopicArns(String value) {
+		if (value == null || value.trim().isEmpty()) {
+			return Collections.emptyList();
+		}
+		String[] parts = value.trim().split("[,\\s]+");
+		if (parts.length == 1) {
+			return Collections.singletonList(parts[0]);
+		}
+		List<String> topics = new ArrayList<>(parts.length);
+		for (String part : parts) {
+			if (!part.isEmpty()) {
+				topics.add(part);
+			}
+		}
+		return distinct(topics);
+	}
+
+	private static List<String> distinct(List<String> topics) {
+		List<String> distinct = new ArrayList<>(topics.size());
+		for (String topic : topics) {
+			if (!distinct.contains(topic)) {
+				distinct.add(topic);
+			}
+		}
+		return Collections.unmodifiableList(distinct);
+	}
+
+	private static SNSRetryPolicy retryPolicy(Integer maxRetries, Integer retryDelay) {
+		return new SNSRetryPolicy(maxRetries != null && maxRetries >= 1 ? maxRetries : SNSRetryPolicy.DEFAULT_MAX_ATTEMPTS,
+			retryDelay != null ? retryDelay : SNSRetryPolicy.DEFAULT_BASE_DELAY_MILLIS,
+			SNSRetryPolicy.DEFAULT_MAX_DELAY_MILLIS);
+	}
+
+	private static String emptyToNull(String value) {
+		return value != null && !value.trim().isEmpty() ? value.trim() : null;
+	}
+
+	private static String lowerCase(String value) {
+		return value != null ? value.toLowerCase() : null;
+	}
+
+	/**
+	 * A configured value: either a literal, resolved once, or a selector substituted per message.
+	 */
+	private static final class Field<T> {
+		private final T literal;
+		private final Selector<T> selector;
+
+		private Field(T literal, Selector<T> selector) {
+			this.literal = literal;
+			this.selector = selector;
+		}
+
+		static <T> Field<T> of(String value, Class<T> type) {
+			if (value != null && value.contains("${")) {
+				return new Field<>(null, new Selector<>(value, type));
+			}
+			return new Field<>(convert(value, type), null);
+		}
+
+		boolean isLiteral() {
+			return selector == null;
+		}
+
+		T resolve(Message msg) {
+			return selector != null ? selector.substitute(msg) : literal;
+		}
+
+		private static <T> T convert(String value, Class<T> type) {
+			if (value == null || type == String.class) {
+				return type.cast(value);
+			}
+			try {
+				return type.cast(Integer.valueOf(value.trim()));
+			} catch (NumberFormatException e) {
+				// Same as an unset value: the caller's default applies
+				return null;
+			}
+		}
+	}
+}
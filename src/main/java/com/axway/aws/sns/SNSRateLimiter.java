@@ -0,0 +1,348 @@
+package com.axway.aws.sns;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.vordel.trace.Trace;
+
+/**
+ * Client-side publish limits of one Publish SNS Message filter instance, one limiter per topic ARN.
+ *
+ * Each limiter combines a token bucket, keeping the publish rate under the configured TPS with the
+ * configured burst, and an optional adaptive concurrency limit (AIMD): the number of attempts in flight
+ * grows by one per round of successful attempts and shrinks by {@link #DECREASE_RATIO} on a throttling
+ * error or on an attempt slower than the latency threshold, at most once per round trip. Every attempt,
+ * retries included, takes a {@link Permit} that must be released with its outcome. Permits are taken
+ * either by waiting on the calling thread or, for attempts started off the request thread, as a future
+ * completed by a shared timer once a slot and a token are available.
+ */
+public class SNSRateLimiter {
+
+	/** Value of aws.sns.error.code when a publish is rejected by the limiter */
+	public static final String ERROR_CODE = "RateLimitExceeded";
+
+	/** Topics with their own limiter; further topics share one */
+	public static final int MAX_TOPICS = 500;
+
+	public static final int DEFAULT_MAX_CONCURRENCY = 100;
+	public static final int DEFAULT_LATENCY_THRESHOLD_MILLIS = 1000;
+	public static final int DEFAULT_TIMEOUT_MILLIS = 1000;
+	static final double DECREASE_RATIO = 0.7;
+	private static final int INITIAL_CONCURRENCY = 10;
+
+	private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+		SNSClientRegistry.daemonThreadFactory("SNSRateLimiter-timer"));
+
+	private final double ratePerSecond;
+	private final int burst;
+	private final int maxConcurrency;
+	private final long latencyThresholdNanos;
+	private final ConcurrentMap<String, TopicLimiter> topics = new ConcurrentHashMap<>();
+
+	/**
+	 * @param ratePerSecond publishes per second, 0 for no rate limit
+	 * @param burst publishes allowed at once above the rate, at least 1
+	 * @param maxConcurrency upper bound of the adaptive concurrency limit, 0 for no concurrency limit
+	 * @param latencyThresholdMillis attempts slower than this shrink the concurrency limit
+	 */
+	public SNSRateLimiter(double ratePerSecond, int burst, int maxConcurrency, int latencyThresholdMillis) {
+		this.ratePerSecond = Math.max(0, ratePerSecond);
+		this.burst = Math.max(1, burst);
+		this.maxConcurrency = Math.max(0, maxConcurrency);
+		this.latencyThresholdNanos = TimeUnit.MILLISECONDS.toNanos(
+			latencyThresholdMillis > 0 ? latencyThresholdMillis : DEFAULT_LATENCY_THRESHOLD_MILLIS);
+	}
+
+	/**
+	 * Whether any limit is configured.
+	 */
+	public boolean isEnabled() {
+		return ratePerSecond > 0 || maxConcurrency > 0;
+	}
+
+	public TopicLimiter topic(String topicArn) {
+		TopicLimiter limiter = topics.get(topicArn);
+		if (limiter != null) {
+			return limiter;
+		}
+		String key = topics.size() >= MAX_TOPICS ? "*" : topicArn;
+		return topics.computeIfAbsent(key, TopicLimiter::new);
+	}
+
+	public String describe() {
+		return (ratePerSecond > 0 ? ratePerSecond + "/s (burst " + burst + ")" : "no rate limit")
+			+ (maxConcurrency > 0 ? ", adaptive concurrency up to " + maxConcurrency + " (latency threshold "
+				+ TimeUnit.NANOSECONDS.toMillis(latencyThresholdNanos) + "ms)" : "");
+	}
+
+	/**
+	 * Rejection of a publish that could not get a permit within the timeout.
+	 */
+	public static class RateLimitExceededException extends SNSPublishRejectedException {
+
+		private static final long serialVersionUID = 1L;
+
+		public RateLimitExceededException(String message) {
+			super(ERROR_CODE, message);
+		}
+	}
+
+	/**
+	 * Permission for one attempt; {@link #release(Throwable)} must be called once the attempt completes.
+	 */
+	public final class Permit {
+
+		private final TopicLimiter limiter;
+		private final long startNanos = System.nanoTime();
+		private boolean released;
+
+		Permit(TopicLimiter limiter) {
+			this.limiter = limiter;
+		}
+
+		/**
+		 * Gives the permit back; error is null on success and feeds the adaptive concurrency limit.
+		 */
+		public void release(Throwable error) {
+			synchronized (this) {
+				if (released) {
+					return;
+				}
+				released = true;
+			}
+			limiter.release(System.nanoTime() - startNanos, error);
+		}
+
+		/**
+		 * Gives the permit back without an outcome, when no attempt was made with it.
+		 */
+		public void cancel() {
+			synchronized (this) {
+				if (released) {
+					return;
+				}
+				released = true;
+			}
+			limiter.releaseSlot();
+		}
+	}
+
+	/**
+	 * Limits of one topic.
+	 */
+	public final class TopicLimiter {
+
+		private final String topicArn;
+
+		// Token bucket, tokens may go negative to reserve future tokens for waiting callers
+		private double tokens = burst;
+		private long refilledNanos = System.nanoTime();
+
+		// Adaptive concurrency
+		private double limit = Math.min(INITIAL_CONCURRENCY, maxConcurrency);
+		private int inFlight;
+		private long lastDecreaseNanos;
+		/** Slots awaited by {@link #acquireAsync(long)}, handed over as attempts complete */
+		private final ArrayDeque<CompletableFuture<Void>> slotWaiters = new ArrayDeque<>();
+
+		TopicLimiter(String topicArn) {
+			this.topicArn = topicArn;
+		}
+
+		/**
+		 * Current concurrency limit, or 0 when concurrency is not limited.
+		 */
+		public synchronized int getConcurrencyLimit() {
+			return maxConcurrency > 0 ? (int) limit : 0;
+		}
+
+		/**
+		 * Takes a permit, waiting up to the timeout for a concurrency slot and a token.
+		 */
+		public Permit acquire(long timeoutMillis) throws InterruptedException {
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeoutMillis));
+			if (maxConcurrency > 0 && !acquireSlot(deadline)) {
+				throw rejection("concurrency limit " + getConcurrencyLimit() + " reached");
+			}
+			if (ratePerSecond > 0) {
+				long waitNanos = reserveToken(deadline);
+				if (waitNanos < 0) {
+					releaseSlot();
+					throw rejection("rate limit " + ratePerSecond + "/s reached");
+				}
+				if (waitNanos > 0) {
+					try {
+						TimeUnit.NANOSECONDS.sleep(waitNanos);
+					} catch (InterruptedException e) {
+						releaseSlot();
+						throw e;
+					}
+				}
+			}
+			return new Permit(this);
+		}
+
+		/**
+		 * Takes a permit without blocking: the future completes once a concurrency slot and a token are
+		 * available, or exceptionally with a {@link RateLimitExceededException} after the timeout.
+		 * Dependent stages run on the limiter timer unless given their own executor.
+		 */
+		public CompletableFuture<Permit> acquireAsync(long timeoutMillis) {
+			final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeoutMillis));
+			CompletableFuture<Void> slot = maxConcurrency > 0 ? acquireSlotAsync(timeoutMillis)
+				: CompletableFuture.<Void>completedFuture(null);
+			return slot.thenCompose(v -> {
+				CompletableFuture<Permit> permit = new CompletableFuture<>();
+				long waitNanos = ratePerSecond > 0 ? reserveToken(deadline) : 0;
+				if (waitNanos < 0) {
+					releaseSlot();
+					permit.completeExceptionally(rejection("rate limit " + ratePerSecond + "/s reached"));
+				} else if (waitNanos == 0) {
+					permit.complete(new Permit(this));
+				} else {
+					timer.schedule(() -> permit.complete(new Permit(this)), waitNanos, TimeUnit.NANOSECONDS);
+				}
+				return permit;
+			});
+		}
+
+		private CompletableFuture<Void> acquireSlotAsync(long timeoutMillis) {
+			final CompletableFuture<Void> slot = new CompletableFuture<>();
+			synchronized (this) {
+				if (inFlight < (int) limit && slotWaiters.isEmpty()) {
+					inFlight++;
+					slot.complete(null);
+					return slot;
+				}
+				if (timeoutMillis <= 0) {
+					slot.completeExceptionally(rejection("concurrency limit " + (int) limit + " reached"));
+					return slot;
+				}
+				slotWaiters.add(slot);
+			}
+			timer.schedule(() -> {
+				if (slot.completeExceptionally(rejection("concurrency limit " + getConcurrencyLimit() + " reached"))) {
+					synchronized (this) {
+						slotWaiters.remove(slot);
+					}
+				}
+			}, timeoutMillis, TimeUnit.MILLISECONDS);
+			return slot;
+		}
+
+		/**
+		 * Hands the free slots to the waiting {@link #acquireAsync(long)} callers, and wakes up a
+		 * blocking caller. Must hold the monitor; the returned slots are completed without it.
+		 */
+		private List<CompletableFuture<Void>> handOffSlots() {
+			List<CompletableFuture<Void>> granted = null;
+			while (inFlight < (int) limit && !slotWaiters.isEmpty()) {
+				CompletableFuture<Void> waiter = slotWaiters.poll();
+				if (!waiter.isDone()) {
+					inFlight++;
+					if (granted == null) {
+						granted = new ArrayList<>(2);
+					}
+					granted.add(waiter);
+				}
+			}
+			notify();
+			return granted;
+		}
+
+		private void grant(List<CompletableFuture<Void>> granted) {
+			if (granted == null) {
+				return;
+			}
+			for (CompletableFuture<Void> waiter : granted) {
+				if (!waiter.complete(null)) {
+					// Timed out meanwhile
+					releaseSlot();
+				}
+			}
+		}
+
+		private RateLimitExceededException rejection(String reason) {
+			return new RateLimitExceededException("Publish to " + topicArn + " rejected: " + reason);
+		}
+
+		private synchronized boolean acquireSlot(long deadline) throws InterruptedException {
+			while (inFlight >= (int) limit) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					return false;
+				}
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			}
+			inFlight++;
+			return true;
+		}
+
+		private void releaseSlot() {
+			if (maxConcurrency <= 0) {
+				return;
+			}
+			List<CompletableFuture<Void>> granted;
+			synchronized (this) {
+				inFlight--;
+				granted = handOffSlots();
+			}
+			grant(granted);
+		}
+
+		/**
+		 * Takes a token, possibly ahead of time. Returns the time to wait before using it, or -1 when it
+		 * would not be available before the deadline (nothing is reserved then).
+		 */
+		private synchronized long reserveToken(long deadline) {
+			long now = System.nanoTime();
+			tokens = Math.min(burst, tokens + (now - refilledNanos) * ratePerSecond / 1e9);
+			refilledNanos = now;
+			if (tokens >= 1) {
+				tokens -= 1;
+				return 0;
+			}
+			long waitNanos = (long) Math.ceil((1 - tokens) * 1e9 / ratePerSecond);
+			if (now + waitNanos - deadline > 0) {
+				return -1;
+			}
+			tokens -= 1;
+			return waitNanos;
+		}
+
+		private void release(long elapsedNanos, Throwable error) {
+			if (maxConcurrency <= 0) {
+				return;
+			}
+			List<CompletableFuture<Void>> granted;
+			synchronized (this) {
+				inFlight--;
+				boolean congested = elapsedNanos > latencyThresholdNanos || (error != null
+					&& SNSRetryPolicy.classify(error) == SNSRetryPolicy.ErrorClass.THROTTLING);
+				long now = System.nanoTime();
+				if (congested) {
+					// One decrease per round trip, however many attempts of that round report congestion
+					if (now - lastDecreaseNanos > elapsedNanos) {
+						double previous = limit;
+						limit = Math.max(1, limit * DECREASE_RATIO);
+						lastDecreaseNanos = now;
+						if ((int) previous != (int) limit) {
+							Trace.debug("SNS concurrency limit for " + topicArn + " decreased to " + (int) limit);
+						}
+					}
+				} else if (error == null && limit < maxConcurrency) {
+					limit = Math.min(maxConcurrency, limit + 1 / limit);
+				}
+				granted = handOffSlots();
+			}
+			grant(granted);
+		}
+	}
+}
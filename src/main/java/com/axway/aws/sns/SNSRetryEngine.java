@@ -0,0 +1,186 @@
+package com.axway.aws.sns;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import com.amazonaws.services.sns.model.PublishResult;
+
+/**
+ * Runs publish attempts according to an {@link SNSRetryPolicy} without sleeping on the caller thread.
+ *
+ * The first attempt starts on the calling thread; retries are scheduled on a shared timer after the
+ * backoff delay and started on the executor of the publish, so a waiting request never holds a thread in
+ * Thread.sleep and asynchronous publishes never hold one at all. A request waiting for its publish runs
+ * the retries itself through a {@link CallerExecutor}; other publishes use a bounded worker pool, which
+ * only starts attempts through the asynchronous client and never blocks on SNS.
+ */
+public final class SNSRetryEngine {
+
+	/**
+	 * Notified after every failed attempt.
+	 */
+	public interface Listener {
+		/**
+		 * @param attempt the failed attempt (1-based)
+		 * @param error the failure
+		 * @param errorClass classification of the failure
+		 * @param nextDelayMillis delay before the next attempt, or -1 when giving up
+		 */
+		void onAttemptFailed(int attempt, Throwable error, SNSRetryPolicy.ErrorClass errorClass, long nextDelayMillis);
+	}
+
+	private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+		SNSClientRegistry.daemonThreadFactory("SNSRetryEngine-timer"));
+	/** Threads starting retries; further retries queue */
+	static final int MAX_WORKERS = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+	private static final ThreadPoolExecutor workers = newWorkers();
+
+	private SNSRetryEngine() {
+	}
+
+	private static ThreadPoolExecutor newWorkers() {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_WORKERS, MAX_WORKERS, 60, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(), SNSClientRegistry.daemonThreadFactory("SNSRetryEngine-worker"));
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * Shared pool starting the retries of publishes nobody waits for.
+	 */
+	static Executor workers() {
+		return workers;
+	}
+
+	/**
+	 * Executes the publish with retries started on the worker pool. The returned future completes with
+	 * the first successful result, or exceptionally with the last failure once the policy gives up.
+	 */
+	public static CompletableFuture<PublishResult> execute(SNSRetryPolicy policy,
+			Supplier<CompletableFuture<PublishResult>> attempt, Listener listener) {
+		return execute(policy, attempt, listener, workers);
+	}
+
+	/**
+	 * Executes the publish with retries started on the given executor.
+	 */
+	public static CompletableFuture<PublishResult> execute(SNSRetryPolicy policy,
+			Supplier<CompletableFuture<PublishResult>> attempt, Listener listener, Executor executor) {
+		CompletableFuture<PublishResult> result = new CompletableFuture<>();
+		runAttempt(policy, attempt, listener, executor != null ? executor : workers, 1, result);
+		return result;
+	}
+
+	private static void runAttempt(final SNSRetryPolicy policy, final Supplier<CompletableFuture<PublishResult>> attempt,
+			final Listener listener, final Executor executor, final int attemptNumber,
+			final CompletableFuture<PublishResult> result) {
+		CompletableFuture<PublishResult> future;
+		try {
+			future = attempt.get();
+		} catch (Exception e) {
+			future = new CompletableFuture<>();
+			future.completeExceptionally(e);
+		}
+		future.whenComplete((value, error) -> {
+			if (error == null) {
+				result.complete(value);
+				return;
+			}
+			Throwable cause = unwrap(error);
+			SNSRetryPolicy.ErrorClass errorClass = SNSRetryPolicy.classify(cause);
+			if (!policy.shouldRetry(attemptNumber, errorClass)) {
+				notify(listener, attemptNumber, cause, errorClass, -1);
+				result.completeExceptionally(cause);
+				return;
+			}
+			long delay = policy.backoffMillis(attemptNumber);
+			notify(listener, attemptNumber, cause, errorClass, delay);
+			try {
+				timer.schedule(() -> executor.execute(
+					() -> runAttempt(policy, attempt, listener, executor, attemptNumber + 1, result)), delay, TimeUnit.MILLISECONDS);
+			} catch (Exception e) {
+				result.completeExceptionally(cause);
+			}
+		});
+	}
+
+	private static void notify(Listener listener, int attempt, Throwable error, SNSRetryPolicy.ErrorClass errorClass,
+			long nextDelayMillis) {
+		if (listener != null) {
+			try {
+				listener.onAttemptFailed(attempt, error, errorClass, nextDelayMillis);
+			} catch (RuntimeException e) {
+				// Listener failures must not break the retry chain
+			}
+		}
+	}
+
+	/**
+	 * Executor of a thread waiting for one publish: the retries of that publish run on the waiting thread
+	 * itself, which would otherwise only wait, instead of holding a worker in a blocking publish. Tasks
+	 * submitted once the thread stopped waiting, e.g. when interrupted, go to the worker pool.
+	 */
+	static final class CallerExecutor implements Executor {
+
+		private static final Runnable WAKE_UP = () -> { };
+
+		private final BlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+		private boolean abandoned;
+
+		@Override
+		public void execute(Runnable task) {
+			synchronized (this) {
+				if (!abandoned) {
+					tasks.add(task);
+					return;
+				}
+			}
+			if (task != WAKE_UP) {
+				workers.execute(task);
+			}
+		}
+
+		/**
+		 * Runs the tasks of the publish on this thread until its future completes, then returns its result.
+		 */
+		<T> T await(CompletableFuture<T> future) throws InterruptedException, ExecutionException {
+			future.whenComplete((value, error) -> execute(WAKE_UP));
+			try {
+				while (!future.isDone()) {
+					tasks.take().run();
+				}
+			} finally {
+				List<Runnable> remaining = new ArrayList<>();
+				synchronized (this) {
+					abandoned = true;
+					tasks.drainTo(remaining);
+				}
+				for (Runnable task : remaining) {
+					if (task != WAKE_UP) {
+						workers.execute(task);
+					}
+				}
+			}
+			return future.get();
+		}
+	}
+
+	static Throwable unwrap(Throwable error) {
+		Throwable t = error;
+		while ((t instanceof CompletionException || t instanceof ExecutionException) && t.getCause() != null) {
+			t = t.getCause();
+		}
+		return t;
+	}
+}
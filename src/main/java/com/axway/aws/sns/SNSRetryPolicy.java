@@ -0,0 +1,116 @@
+package com.axway.aws.sns;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+
+/**
+ * Retry policy for SNS publishes: classifies failures and computes exponential backoff with full jitter.
+ *
+ * Throttling and transient failures (5xx, timeouts, I/O errors) are retried; permanent failures such as
+ * InvalidParameter or AuthorizationError fail on the first attempt.
+ */
+public class SNSRetryPolicy {
+
+	public static final int DEFAULT_MAX_ATTEMPTS = 3;
+	public static final long DEFAULT_BASE_DELAY_MILLIS = 1000;
+	public static final long DEFAULT_MAX_DELAY_MILLIS = 20000;
+
+	/**
+	 * Failure classes driving the retry decision.
+	 */
+	public enum ErrorClass {
+		THROTTLING, TRANSIENT, PERMANENT
+	}
+
+	private static final Set<String> THROTTLING_CODES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+		"Throttling", "ThrottlingException", "ThrottledException", "RequestThrottledException",
+		"TooManyRequestsException", "RequestLimitExceeded", "BandwidthLimitExceeded",
+		"RequestThrottled", "SlowDown", "PriorRequestNotComplete", "EC2ThrottledException",
+		"KMSThrottlingException")));
+
+	private static final Set<String> TRANSIENT_CODES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+		"RequestTimeout", "RequestTimeoutException", "InternalError", "InternalFailure",
+		"ServiceUnavailable", "ServiceUnavailableException", "IDPCommunicationError",
+		"RequestExpired", "RequestTimeTooSkewed", "KMSInternalException")));
+
+	private final int maxAttempts;
+	private final long baseDelayMillis;
+	private final long maxDelayMillis;
+
+	public SNSRetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+		this.maxAttempts = maxAttempts > 0 ? maxAttempts : DEFAULT_MAX_ATTEMPTS;
+		this.baseDelayMillis = baseDelayMillis >= 0 ? baseDelayMillis : DEFAULT_BASE_DELAY_MILLIS;
+		this.maxDelayMillis = Math.max(maxDelayMillis, this.baseDelayMillis);
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * Classifies a publish failure. AWS service errors are classified by error code and HTTP status;
+	 * client-side SDK errors (connection, timeout) are transient; anything else is permanent.
+	 */
+	public static ErrorClass classify(Throwable error) {
+		AmazonServiceException serviceException = findServiceException(error);
+		if (serviceException != null) {
+			String code = serviceException.getErrorCode();
+			int status = serviceException.getStatusCode();
+			if ((code != null && THROTTLING_CODES.contains(code)) || status == 429) {
+				return ErrorClass.THROTTLING;
+			}
+			if ((code != null && TRANSIENT_CODES.contains(code)) || status >= 500
+					|| serviceException.getErrorType() == AmazonServiceException.ErrorType.Service) {
+				return ErrorClass.TRANSIENT;
+			}
+			return ErrorClass.PERMANENT;
+		}
+		for (Throwable t = error; t != null; t = t.getCause()) {
+			if (t instanceof AmazonClientException) {
+				return ((AmazonClientException) t).isRetryable() ? ErrorClass.TRANSIENT : ErrorClass.PERMANENT;
+			}
+			if (t instanceof java.io.IOException) {
+				return ErrorClass.TRANSIENT;
+			}
+		}
+		return ErrorClass.PERMANENT;
+	}
+
+	/**
+	 * Whether another attempt should follow the failed one.
+	 */
+	public boolean shouldRetry(int attempt, ErrorClass errorClass) {
+		return errorClass != ErrorClass.PERMANENT && attempt < maxAttempts;
+	}
+
+	/**
+	 * Delay before the attempt following the given failed attempt (1-based), using
+	 * "full jitter": a random value between 0 and min(maxDelay, baseDelay * 2^(attempt-1)).
+	 */
+	public long backoffMillis(int attempt) {
+		if (baseDelayMillis == 0) {
+			return 0;
+		}
+		int shift = Math.min(Math.max(attempt - 1, 0), 30);
+		long ceiling = Math.min(maxDelayMillis, baseDelayMillis << shift);
+		if (ceiling <= 0) {
+			ceiling = maxDelayMillis;
+		}
+		return ThreadLocalRandom.current().nextLong(ceiling + 1);
+	}
+
+	static AmazonServiceException findServiceException(Throwable error) {
+		for (Throwable t = error; t != null; t = t.getCause()) {
+			if (t instanceof AmazonServiceException) {
+				return (AmazonServiceException) t;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,270 @@
+package com.axway.aws.sns;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.auth.BasicSessionCredentials;
+import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.services.sns.AmazonSNS;
+import com.amazonaws.services.sns.AmazonSNSClientBuilder;
+import com.amazonaws.services.sns.model.MessageAttributeValue;
+import com.amazonaws.services.sns.model.PublishRequest;
+import com.amazonaws.services.sns.model.PublishResult;
+import com.vordel.circuit.Message;
+import com.vordel.trace.Trace;
+
+/**
+ * Publisher behind the Groovy script variant of the filter (aws-sns-filter.groovy).
+ *
+ * Scripts have no attach or detach hook, so this keeps what the filter sets up once when attached:
+ * credentials are resolved on first use and shared through SNSCredentialsCache, clients are leased
+ * once per region from SNSClientRegistry (shared with filters having the same settings), and message
+ * attributes JSON is compiled once per distinct text through the SNSMessageAttributesTemplate cache.
+ * Publishes are retried with the filter's retry policy and return a {@link Result} instead of writing
+ * to the message.
+ */
+public final class SNSScriptPublisher {
+
+	private static final SNSScriptPublisher INSTANCE = new SNSScriptPublisher();
+	/** Only checks the payload size against the SNS limit */
+	private static final SNSPayloadCodec payloadCheck = new SNSPayloadCodec(false, 0, null, SNSPayloadCodec.MAX_PAYLOAD_BYTES);
+
+	private final Map<String, AmazonSNS> clients = new ConcurrentHashMap<>();
+	private volatile String credentialsIdentity;
+	private volatile AWSCredentialsProvider credentialsProvider;
+
+	private SNSScriptPublisher() {
+	}
+
+	public static SNSScriptPublisher getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Publishes a message, retrying throttling and transient failures.
+	 *
+	 * @param region region of the topic, null for the AWS_DEFAULT_REGION environment variable
+	 * @param payload message body: text, or the content body of a message, "{}" when blank
+	 * @param messageAttributes message attributes JSON in the SNS map format, or null
+	 * @param maxAttempts attempts including the first one
+	 * @param retryDelayMillis base delay of the exponential backoff between attempts
+	 */
+	public Result publish(String region, String topicArn, Object payload, String subject, String messageStructure,
+			String messageAttributes, int maxAttempts, long retryDelayMillis) {
+		if (SNSMessageBody.isBlank(topicArn)) {
+			return Result.failed("SNS topic ARN not specified", null, 0);
+		}
+		String regionValue = !SNSMessageBody.isBlank(region) ? region.trim() : System.getenv("AWS_DEFAULT_REGION");
+		if (SNSMessageBody.isBlank(regionValue)) {
+			return Result.failed("AWS region not specified. Set AWS_DEFAULT_REGION or aws.sns.region", null, 0);
+		}
+
+		PublishRequest request = new PublishRequest().withTopicArn(topicArn.trim());
+		try {
+			request.setMessage(SNSMessageBody.read(payload, SNSPayloadCodec.MAX_PAYLOAD_BYTES).getText());
+			Map<String, MessageAttributeValue> attributes = parseAttributes(messageAttributes);
+			if (attributes != null && !attributes.isEmpty()) {
+				request.setMessageAttributes(attributes);
+			}
+			if (!SNSMessageBody.isBlank(subject)) {
+				request.setSubject(subject);
+			}
+			if (!SNSMessageBody.isBlank(messageStructure)) {
+				request.setMessageStructure(messageStructure.trim());
+			}
+			payloadCheck.encode(request);
+		} catch (SNSPayloadCodec.PayloadTooLargeException e) {
+			return Result.failed(e.getMessage(), e, 0);
+		} catch (IllegalArgumentException e) {
+			return Result.failed("Invalid message attributes: " + e.getMessage(), null, 0);
+		} catch (IOException e) {
+			return Result.failed("Unable to read message body: " + e.getMessage(), null, 0);
+		}
+
+		AmazonSNS client;
+		try {
+			client = getClient(regionValue);
+		} catch (RuntimeException e) {
+			Trace.error("Unable to create SNS client: " + e.getMessage());
+			return Result.failed("Unable to create SNS client: " + e.getMessage(), e, 0);
+		}
+		SNSRetryPolicy retryPolicy = new SNSRetryPolicy(maxAttempts, retryDelayMillis, SNSRetryPolicy.DEFAULT_MAX_DELAY_MILLIS);
+		for (int attempt = 1;; attempt++) {
+			try {
+				PublishResult result = client.publish(request);
+				Trace.debug("SNS message " + result.getMessageId() + " published to " + request.getTopicArn()
+					+ " on attempt " + attempt);
+				return new Result(true, result.getMessageId(), null, null, attempt);
+			} catch (RuntimeException e) {
+				SNSRetryPolicy.ErrorClass errorClass = SNSRetryPolicy.classify(e);
+				if (!retryPolicy.shouldRetry(attempt, errorClass)) {
+					Trace.error("SNS publish failed after " + attempt + " attempt(s) (" + errorClass + "): " + e.getMessage());
+					return Result.failed("Failure after " + attempt + " attempts: " + e.getMessage(), e, attempt);
+				}
+				long delay = retryPolicy.backoffMillis(attempt);
+				Trace.debug("SNS publish attempt " + attempt + " failed (" + errorClass + "), retrying in " + delay
+					+ "ms: " + e.getMessage());
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					return Result.failed("Thread interrupted during retry", e, attempt);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the attributes for the JSON, compiled on first use and bound from the template cache
+	 * afterwards. The script has already resolved the JSON, so text containing ${...} is a literal
+	 * value, not an expression: it is parsed on every call instead.
+	 */
+	private static Map<String, MessageAttributeValue> parseAttributes(String json) {
+		if (json == null || !json.contains("${")) {
+			SNSMessageAttributesTemplate template = SNSMessageAttributesTemplate.forTemplate(json);
+			if (template != null) {
+				return template.bind(null);
+			}
+		}
+		return SNSMessageAttributesHelper.parseMessageAttributes(json);
+	}
+
+	/**
+	 * Returns the client for the region, leased from SNSClientRegistry on first use and kept for
+	 * the life of the gateway.
+	 */
+	private AmazonSNS getClient(String region) {
+		AmazonSNS client = clients.get(region);
+		if (client == null) {
+			AWSCredentialsProvider provider = getCredentialsProvider();
+			client = clients.computeIfAbsent(region, r -> SNSClientRegistry.getInstance().acquire(
+				new SNSClientRegistry.ClientKey(r, credentialsIdentity, SNSClientRegistry.describe(null)),
+				() -> AmazonSNSClientBuilder.standard().withCredentials(provider).withRegion(r).build()));
+		}
+		return client;
+	}
+
+	/**
+	 * Resolves the credentials once, as the script did on every call: the AWS_ACCESS_KEY_ID and
+	 * AWS_SECRET_ACCESS_KEY (and AWS_SESSION_TOKEN) environment variables when set, otherwise the
+	 * default provider chain (IAM role, instance profile).
+	 */
+	private synchronized AWSCredentialsProvider getCredentialsProvider() {
+		if (credentialsProvider == null) {
+			String accessKey = System.getenv("AWS_ACCESS_KEY_ID");
+			String secretKey = System.getenv("AWS_SECRET_ACCESS_KEY");
+			String sessionToken = System.getenv("AWS_SESSION_TOKEN");
+			AWSCredentialsProvider provider;
+			String identity;
+			if (!SNSMessageBody.isBlank(accessKey) && !SNSMessageBody.isBlank(secretKey)) {
+				Trace.info("Using AWS credentials from environment variables");
+				provider = new AWSStaticCredentialsProvider(!SNSMessageBody.isBlank(sessionToken)
+					? new BasicSessionCredentials(accessKey, secretKey, sessionToken)
+					: new BasicAWSCredentials(accessKey, secretKey));
+				identity = "env:" + accessKey + ":" + SNSClientRegistry.digest(secretKey + sessionToken);
+			} else {
+				Trace.info("Using DefaultAWSCredentialsProviderChain");
+				provider = new DefaultAWSCredentialsProviderChain();
+				identity = "default";
+			}
+			this.credentialsIdentity = identity;
+			this.credentialsProvider = SNSCredentialsCache.getInstance().acquire(identity, () -> provider);
+		}
+		return credentialsProvider;
+	}
+
+	/**
+	 * Outcome of a publish.
+	 */
+	public static final class Result {
+		private final boolean success;
+		private final String messageId;
+		private final String error;
+		private final Exception exception;
+		private final int attempts;
+
+		Result(boolean success, String messageId, String error, Exception exception, int attempts) {
+			this.success = success;
+			this.messageId = messageId;
+			this.error = error;
+			this.exception = exception;
+			this.attempts = attempts;
+		}
+
+		static Result failed(String error, Exception exception, int attempts) {
+			return new Result(false, null, error, exception, attempts);
+		}
+
+		public boolean isSuccess() {
+			return success;
+		}
+
+		public String getMessageId() {
+			return messageId;
+		}
+
+		/**
+		 * Failure description, null on success.
+		 */
+		public String getError() {
+			return error;
+		}
+
+		/**
+		 * AWS error code, or the filter's own code (e.g. PayloadTooLarge); null when unknown.
+		 */
+		public String getErrorCode() {
+			if (exception instanceof SNSPublishRejectedException) {
+				return ((SNSPublishRejectedException) exception).getErrorCode();
+			}
+			AmazonServiceException serviceException = SNSRetryPolicy.findServiceException(exception);
+			return serviceException != null ? serviceException.getErrorCode() : null;
+		}
+
+		/**
+		 * HTTP status of the AWS error, 0 when the failure did not come from SNS.
+		 */
+		public int getHttpStatusCode() {
+			AmazonServiceException serviceException = SNSRetryPolicy.findServiceException(exception);
+			return serviceException != null ? serviceException.getStatusCode() : 0;
+		}
+
+		/**
+		 * Attempts sent to SNS, 0 when the publish was rejected before.
+		 */
+		public int getAttempts() {
+			return attempts;
+		}
+
+		/**
+		 * Sets the message properties the filter sets: aws.sns.message.id and aws.sns.response on
+		 * success, aws.sns.error (and aws.sns.error.code, aws.sns.http.status.code) on failure.
+		 */
+		public boolean writeTo(Message msg) {
+			if (success) {
+				msg.put("aws.sns.message.id", messageId);
+				msg.put("aws.sns.response", "Message published successfully");
+				return true;
+			}
+			msg.put("aws.sns.error", error);
+			String errorCode = getErrorCode();
+			if (errorCode != null) {
+				msg.put("aws.sns.error.code", errorCode);
+			}
+			if (getHttpStatusCode() != 0) {
+				msg.put("aws.sns.http.status.code", getHttpStatusCode());
+			}
+			return false;
+		}
+
+		@Override
+		public String toString() {
+			return success ? "published " + messageId + " (" + attempts + " attempt(s))" : "failed: " + error;
+		}
+	}
+}
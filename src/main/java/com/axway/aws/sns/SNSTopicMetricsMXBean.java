@@ -0,0 +1,74 @@
+package com.axway.aws.sns;
+
+import java.util.Map;
+
+/**
+ * JMX view of the publish metrics of one Publish SNS Message filter for one topic and region.
+ *
+ * Publish latency is measured by the filter from the first attempt to the outcome, retries and
+ * backoff included; SDK latency is the time of each HTTP request as reported by the AWS SDK. A gap
+ * between the two tails points at the gateway side (queueing, backoff, batching) rather than at SNS.
+ * A PublishBatch call counts as one SDK request.
+ *
+ * Counts are cumulative; latency mean, percentiles and maximum cover the last
+ * {@link #getLatencyWindowSeconds()} seconds only, so that they follow the current latency.
+ */
+public interface SNSTopicMetricsMXBean {
+
+	String getTopicArn();
+
+	String getRegion();
+
+	/** Publishes started, including the ones still in flight */
+	long getPublishCount();
+
+	long getSuccessCount();
+
+	long getFailureCount();
+
+	/** Publishes started and not completed yet */
+	int getInFlight();
+
+	/** Attempts made, first attempts included */
+	long getAttemptCount();
+
+	long getRetryCount();
+
+	/** Average attempts per completed publish */
+	double getAttemptsPerMessage();
+
+	/** Message and attribute bytes of successful publishes */
+	long getBytesPublished();
+
+	/** Period covered by the latency attributes, publish and SDK */
+	long getLatencyWindowSeconds();
+
+	double getLatencyMeanMillis();
+
+	double getLatencyP50Millis();
+
+	double getLatencyP99Millis();
+
+	double getLatencyP999Millis();
+
+	double getLatencyMaxMillis();
+
+	long getSdkRequestCount();
+
+	/** Retries made by the SDK HTTP client itself */
+	long getSdkHttpRetryCount();
+
+	double getSdkLatencyP50Millis();
+
+	double getSdkLatencyP99Millis();
+
+	double getSdkLatencyP999Millis();
+
+	double getSdkLatencyMaxMillis();
+
+	/** Failed attempts by AWS error code, or by exception type for client-side failures */
+	Map<String, Long> getErrorCodes();
+
+	/** Clears all counters and histograms */
+	void reset();
+}
@@ -0,0 +1,236 @@
+package com.axway.aws.sns;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.AnonymousAWSCredentials;
+import com.amazonaws.services.sns.AmazonSNS;
+import com.amazonaws.services.sns.model.GetTopicAttributesRequest;
+import com.vordel.trace.Trace;
+
+/**
+ * Warm-up of a Publish SNS Message filter after it is attached, so that the first messages after a
+ * deployment do not pay for credential resolution, client creation, DNS lookup and TLS handshakes.
+ *
+ * Runs once on a background thread: fetches the credentials, builds the client for the configured
+ * region (loading the SDK classes), resolves the SNS endpoint, then opens the configured number of
+ * pooled connections with concurrent GetTopicAttributes requests on the first configured topic.
+ * By default the requests are unsigned: SNS rejects them without checking any permission, and the
+ * connection and its TLS handshake stay in the pool all the same. Authenticated calls, when enabled,
+ * also verify the credentials, but need sns:GetTopicAttributes, which publish-only roles lack: an
+ * authorization error is then reported as a warning rather than as a successful warm-up. The outcome
+ * is logged in one line and available from {@link #describe()}.
+ */
+public class SNSWarmup {
+
+	public static final int DEFAULT_CONNECTIONS = 2;
+	static final int MAX_CONNECTIONS = 50;
+	/** Longest wait for a cancelled warm-up when the filter is detached */
+	static final long CANCEL_TIMEOUT_MILLIS = 5000;
+	/** Requests sent with these credentials are not signed */
+	private static final AWSCredentialsProvider UNSIGNED = new AWSStaticCredentialsProvider(new AnonymousAWSCredentials());
+
+	/**
+	 * Progress of the warm-up.
+	 */
+	public enum Status {
+		PENDING, RUNNING, COMPLETED, FAILED, CANCELLED
+	}
+
+	private final String name;
+	private final String region;
+	private final String topicArn;
+	private final AWSCredentialsProvider credentialsProvider;
+	private final Function<String, AmazonSNS> clientFactory;
+	private final int connections;
+	private final boolean calls;
+	private final CompletableFuture<Void> done = new CompletableFuture<>();
+	private volatile Status status = Status.PENDING;
+	private volatile String outcome = "pending";
+	private volatile String warning;
+	private volatile Thread thread;
+
+	/**
+	 * @param region configured region; the warm-up does nothing when it is an expression (null)
+	 * @param topicArn topic of the warm-up calls, null when the topic ARN is an expression
+	 * @param clientFactory returns the client the filter publishes with for a region
+	 * @param connections connections to open, 0 for none
+	 * @param calls whether connections are opened with authenticated calls rather than unsigned requests
+	 */
+	public SNSWarmup(String name, String region, String topicArn, AWSCredentialsProvider credentialsProvider,
+			Function<String, AmazonSNS> clientFactory, int connections, boolean calls) {
+		this.name = name;
+		this.region = region != null && !region.trim().isEmpty() ? region.trim() : null;
+		this.topicArn = topicArn;
+		this.credentialsProvider = credentialsProvider;
+		this.clientFactory = clientFactory;
+		this.connections = Math.max(0, Math.min(connections, MAX_CONNECTIONS));
+		this.calls = calls;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	public String describe() {
+		return status + (outcome != null ? ": " + outcome : "") + (warning != null ? "; warning: " + warning : "");
+	}
+
+	/**
+	 * What the warm-up could not verify although it completed, null when there is nothing to report.
+	 */
+	public String getWarning() {
+		return warning;
+	}
+
+	/**
+	 * Starts the warm-up on a daemon thread.
+	 */
+	public void start() {
+		Thread t = new Thread(this::run, "SNSWarmup-" + name);
+		t.setDaemon(true);
+		thread = t;
+		t.start();
+	}
+
+	/**
+	 * Stops a warm-up still running and waits for it to end, so that it no longer uses the filter's clients.
+	 */
+	public void cancel() {
+		Thread t = thread;
+		if (t != null && !done.isDone()) {
+			status = Status.CANCELLED;
+			t.interrupt();
+			try {
+				done.get(CANCEL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (Exception e) {
+				Trace.debug("SNS warm-up of " + name + " did not stop in time");
+			}
+		}
+	}
+
+	void run() {
+		status = Status.RUNNING;
+		long start = System.nanoTime();
+		List<String> steps = new ArrayList<>();
+		boolean failed = false;
+		try {
+			if (region == null) {
+				outcome = "skipped, the region is an expression";
+				status = Status.COMPLETED;
+				return;
+			}
+			try {
+				credentialsProvider.getCredentials();
+				steps.add("credentials fetched");
+			} catch (RuntimeException e) {
+				steps.add("credentials failed (" + e.getMessage() + ")");
+				failed = true;
+			}
+			AmazonSNS client = clientFactory.apply(region);
+			steps.add("client built");
+			if (Thread.currentThread().isInterrupted()) {
+				return;
+			}
+			String host = "sns." + region + ".amazonaws.com" + (region.startsWith("cn-") ? ".cn" : "");
+			try {
+				InetAddress.getAllByName(host);
+				steps.add(host + " resolved");
+			} catch (UnknownHostException e) {
+				// Not a failure by itself: the client may use another endpoint or a proxy
+				steps.add(host + " not resolved");
+			}
+			if (connections > 0) {
+				if (calls && topicArn == null) {
+					steps.add("no connections opened, the topic ARN is an expression");
+				} else {
+					AtomicInteger denied = new AtomicInteger();
+					int opened = openConnections(client, denied);
+					steps.add(opened + "/" + connections + " connections opened" + (calls ? "" : " with unsigned requests"));
+					failed |= opened == 0;
+					if (calls && denied.get() > 0) {
+						warning = "GetTopicAttributes on " + topicArn + " was denied (" + denied.get() + "/" + connections
+							+ " calls), publish permission not verified; disable the warm-up calls for publish-only roles";
+					}
+				}
+			}
+		} catch (RuntimeException e) {
+			steps.add("failed (" + e.getMessage() + ")");
+			failed = true;
+		} finally {
+			if (status == Status.RUNNING) {
+				status = failed ? Status.FAILED : Status.COMPLETED;
+			}
+			if (!steps.isEmpty()) {
+				outcome = String.join(", ", steps) + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms";
+			}
+			if (warning != null) {
+				Trace.error("SNS warm-up of " + name + " " + describe());
+			} else {
+				Trace.info("SNS warm-up of " + name + " " + describe());
+			}
+			done.complete(null);
+		}
+	}
+
+	/**
+	 * Sends the requests all at once so that each takes its own pooled connection. Returns the number of
+	 * requests answered by SNS, counting in denied the ones answered with an authorization error.
+	 */
+	private int openConnections(AmazonSNS client, AtomicInteger denied) {
+		// Unsigned requests are rejected before the topic is looked at: any well-formed ARN does
+		String warmupTopicArn = topicArn != null ? topicArn : "arn:aws:sns:" + region + ":000000000000:warmup";
+		ExecutorService executor = Executors.newFixedThreadPool(connections,
+			SNSClientRegistry.daemonThreadFactory("SNSWarmup-" + name + "-connect"));
+		CountDownLatch ready = new CountDownLatch(1);
+		AtomicInteger answered = new AtomicInteger();
+		List<CompletableFuture<Void>> pending = new ArrayList<>(connections);
+		try {
+			for (int i = 0; i < connections; i++) {
+				pending.add(CompletableFuture.runAsync(() -> {
+					try {
+						ready.await();
+						GetTopicAttributesRequest request = new GetTopicAttributesRequest().withTopicArn(warmupTopicArn);
+						if (!calls) {
+							request.setRequestCredentialsProvider(UNSIGNED);
+						}
+						client.getTopicAttributes(request);
+						answered.incrementAndGet();
+					} catch (AmazonServiceException e) {
+						// Answered by SNS: the connection is open all the same
+						answered.incrementAndGet();
+						if (SNSDiagnostics.isAccessDenied(e)) {
+							denied.incrementAndGet();
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} catch (RuntimeException e) {
+						Trace.debug("SNS warm-up call failed: " + e.getMessage());
+					}
+				}, executor));
+			}
+			ready.countDown();
+			CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			Trace.debug("SNS warm-up calls failed: " + e.getMessage());
+		} finally {
+			executor.shutdownNow();
+		}
+		return answered.get();
+	}
+}
@@ -0,0 +1,119 @@
+package com.axway.aws.sns;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram of the recent past: values are recorded in one of a few {@link SNSLatencyHistogram}
+ * slices by time, and reads merge the slices of the last window only. A slice is cleared when its
+ * time comes round again, so percentiles, mean and maximum follow the current latency instead of the
+ * whole lifetime of the filter, and a past spike ages out once the window has passed.
+ *
+ * A value recorded while its slice is being cleared may be lost; that is the only coordination
+ * between writers, which otherwise stay lock-free.
+ */
+public class SNSWindowedHistogram {
+
+	public static final int DEFAULT_WINDOW_SECONDS = 60;
+	private static final int SLICES = 6;
+
+	private final int windowSeconds;
+	private final long sliceNanos;
+	private final SNSLatencyHistogram[] slices = new SNSLatencyHistogram[SLICES];
+	/** Time slot (nanoTime / sliceNanos) each slice currently holds */
+	private final AtomicLongArray sliceSlots = new AtomicLongArray(SLICES);
+
+	public SNSWindowedHistogram(int windowSeconds) {
+		this.windowSeconds = windowSeconds > 0 ? windowSeconds : DEFAULT_WINDOW_SECONDS;
+		long windowNanos = TimeUnit.SECONDS.toNanos(this.windowSeconds);
+		this.sliceNanos = Math.max(1, windowNanos / SLICES);
+		long slot = currentSlot();
+		for (int i = 0; i < SLICES; i++) {
+			slices[i] = new SNSLatencyHistogram();
+			sliceSlots.set(i, slot);
+		}
+	}
+
+	public int getWindowSeconds() {
+		return windowSeconds;
+	}
+
+	/**
+	 * Records one value in microseconds.
+	 */
+	public void record(long micros) {
+		long slot = currentSlot();
+		int index = (int) Math.floorMod(slot, (long) SLICES);
+		long held = sliceSlots.get(index);
+		if (held != slot && sliceSlots.compareAndSet(index, held, slot)) {
+			// First value of a new slot: what the slice held is older than the window
+			slices[index].reset();
+		}
+		slices[index].record(micros);
+	}
+
+	public long getCount() {
+		long count = 0;
+		long slot = currentSlot();
+		for (int i = 0; i < SLICES; i++) {
+			if (isRecent(i, slot)) {
+				count += slices[i].getCount();
+			}
+		}
+		return count;
+	}
+
+	public double getMean() {
+		long count = 0;
+		long sum = 0;
+		long slot = currentSlot();
+		for (int i = 0; i < SLICES; i++) {
+			if (isRecent(i, slot)) {
+				count += slices[i].getCount();
+				sum += slices[i].getSum();
+			}
+		}
+		return count == 0 ? 0 : (double) sum / count;
+	}
+
+	public long getMax() {
+		long max = 0;
+		long slot = currentSlot();
+		for (int i = 0; i < SLICES; i++) {
+			if (isRecent(i, slot)) {
+				max = Math.max(max, slices[i].getMax());
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * Value at the given percentile (0-100) over the window, in microseconds; 0 when nothing was recorded.
+	 */
+	public long getPercentile(double percentile) {
+		long[] totals = new long[SNSLatencyHistogram.bucketCount()];
+		long max = 0;
+		long slot = currentSlot();
+		for (int i = 0; i < SLICES; i++) {
+			if (isRecent(i, slot)) {
+				slices[i].addCounts(totals);
+				max = Math.max(max, slices[i].getMax());
+			}
+		}
+		return SNSLatencyHistogram.percentile(totals, percentile, max);
+	}
+
+	public void reset() {
+		for (SNSLatencyHistogram slice : slices) {
+			slice.reset();
+		}
+	}
+
+	private boolean isRecent(int index, long slot) {
+		return slot - sliceSlots.get(index) < SLICES;
+	}
+
+	private long currentSlot() {
+		return System.nanoTime() / sliceNanos;
+	}
+}
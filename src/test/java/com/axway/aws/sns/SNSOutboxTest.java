@@ -0,0 +1,391 @@
+package com.axway.aws.sns;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.sns.model.MessageAttributeValue;
+
+public class SNSOutboxTest {
+
+	private static final String REGION = "us-east-1";
+	private static final String TOPIC = "arn:aws:sns:us-east-1:123456789012:orders";
+	private static final String OTHER_TOPIC = "arn:aws:sns:us-east-1:123456789012:invoices";
+	private static final String CREDENTIALS = "local:AKIAEXAMPLE:0123456789abcdef";
+	private static final long SEGMENT_SIZE = 4096;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final List<SNSOutbox> acquired = new ArrayList<>();
+
+	@After
+	public void releaseOutboxes() {
+		for (SNSOutbox outbox : acquired) {
+			outbox.release();
+		}
+	}
+
+	@Test
+	public void entryRoundTripsWithAttributesFifoIdsAndCredentials() throws Exception {
+		Map<String, MessageAttributeValue> attributes = new LinkedHashMap<>();
+		attributes.put("type", new MessageAttributeValue().withDataType("String").withStringValue("order"));
+		attributes.put("blob", new MessageAttributeValue().withDataType("Binary")
+			.withBinaryValue(ByteBuffer.wrap(new byte[] { 1, 2, 3 })));
+		SNSOutbox.Entry entry = new SNSOutbox.Entry(REGION, TOPIC + ".fifo", "café", "subject", "json",
+			attributes, "group-1", "dedup-1");
+
+		SNSOutbox.Entry decoded = SNSOutbox.Entry.decode(entry.encode("0123456789abcdef"));
+
+		assertEquals(REGION, decoded.getRegion());
+		assertEquals("0123456789abcdef", decoded.getCredentialsId());
+		assertEquals(entry.toPublishRequest(), decoded.toPublishRequest());
+		assertEquals("café", decoded.toPublishRequest().getMessage());
+		assertEquals(ByteBuffer.wrap(new byte[] { 1, 2, 3 }),
+			decoded.toPublishRequest().getMessageAttributes().get("blob").getBinaryValue());
+	}
+
+	@Test
+	public void decodesVersion2EntriesWithoutCredentials() throws Exception {
+		SNSOutbox.Entry entry = new SNSOutbox.Entry(REGION, TOPIC, "body", null, null, null, "group-1", null);
+		byte[] version3 = entry.encode(null);
+		// Version 2 is version 3 without the trailing credentials digest (a null string: length -1)
+		byte[] version2 = Arrays.copyOf(version3, version3.length - 4);
+		version2[0] = 2;
+
+		SNSOutbox.Entry decoded = SNSOutbox.Entry.decode(version2);
+
+		assertEquals(TOPIC, decoded.getTopicArn());
+		assertEquals("group-1", decoded.toPublishRequest().getMessageGroupId());
+		assertNull(decoded.getCredentialsId());
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsUnknownEntryVersion() throws Exception {
+		byte[] payload = entry("body").encode(null);
+		payload[0] = 99;
+		SNSOutbox.Entry.decode(payload);
+	}
+
+	@Test
+	public void recordsAreLengthCrcAndPayloadFollowedByEndMarker() throws Exception {
+		SNSOutbox outbox = acquire(folder.getRoot(), CREDENTIALS);
+		assertTrue(outbox.append(entry("first")));
+		assertTrue(outbox.append(entry("second")));
+
+		ByteBuffer segment = readSegment(outbox.getDirectory(), 0);
+		int position = 0;
+		for (String body : new String[] { "first", "second" }) {
+			int length = segment.getInt(position);
+			byte[] payload = new byte[length];
+			segment.position(position + 8);
+			segment.get(payload);
+			CRC32 crc = new CRC32();
+			crc.update(payload, 0, length);
+			assertEquals((int) crc.getValue(), segment.getInt(position + 4));
+			SNSOutbox.Entry decoded = SNSOutbox.Entry.decode(payload);
+			assertEquals(body, decoded.toPublishRequest().getMessage());
+			assertEquals(outbox.getCredentialsId(), decoded.getCredentialsId());
+			position += 8 + length;
+		}
+		assertEquals(0, segment.getInt(position));
+	}
+
+	@Test
+	public void rejectsEntriesLargerThanASegment() throws Exception {
+		SNSOutbox outbox = acquire(folder.getRoot(), CREDENTIALS);
+		char[] body = new char[(int) SEGMENT_SIZE];
+		Arrays.fill(body, 'x');
+
+		assertFalse(outbox.append(entry(new String(body))));
+		assertFalse(outbox.hasBacklog());
+	}
+
+	@Test
+	public void recoversRecordsAfterACrashAndReplaysThemInOrder() throws Exception {
+		File crashed = crashWith("one", "two", "three");
+
+		SNSOutbox recovered = acquire(crashed, CREDENTIALS);
+		assertTrue(recovered.hasBacklog());
+		BlockingQueue<String> replayed = replayInto(recovered);
+
+		assertEquals("one", replayed.poll(5, TimeUnit.SECONDS));
+		assertEquals("two", replayed.poll(5, TimeUnit.SECONDS));
+		assertEquals("three", replayed.poll(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void truncatesATornRecordAndAppendsOverIt() throws Exception {
+		File crashed = crashWith("one", "two");
+		File segment = segmentFile(credentialsDirectory(crashed), 0);
+		int end = endOfRecords(segment);
+		// A record whose length reached the disk but not its payload
+		try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+			raf.seek(end);
+			raf.writeInt(40);
+			raf.writeInt(12345);
+		}
+
+		SNSOutbox recovered = acquire(crashed, CREDENTIALS);
+		assertTrue(recovered.append(entry("three")));
+		BlockingQueue<String> replayed = replayInto(recovered);
+
+		assertEquals("one", replayed.poll(5, TimeUnit.SECONDS));
+		assertEquals("two", replayed.poll(5, TimeUnit.SECONDS));
+		assertEquals("three", replayed.poll(5, TimeUnit.SECONDS));
+		assertNull(replayed.poll(1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void stopsAtARecordWithABadCrc() throws Exception {
+		File crashed = crashWith("one", "two", "three");
+		File segment = segmentFile(credentialsDirectory(crashed), 0);
+		try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+			int secondRecord = 8 + raf.readInt();
+			// Flip the last payload byte of the second record
+			int secondLength = readInt(raf, secondRecord);
+			raf.seek(secondRecord + 8 + secondLength - 1);
+			int last = raf.read();
+			raf.seek(secondRecord + 8 + secondLength - 1);
+			raf.write(last ^ 0xff);
+		}
+
+		SNSOutbox recovered = acquire(crashed, CREDENTIALS);
+		BlockingQueue<String> replayed = replayInto(recovered);
+
+		assertEquals("one", replayed.poll(5, TimeUnit.SECONDS));
+		assertNull(replayed.poll(1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void resumesFromThePersistedOffset() throws Exception {
+		File directory = folder.newFolder();
+		SNSOutbox outbox = SNSOutbox.acquire(directory.getPath(), CREDENTIALS, SEGMENT_SIZE, SNSOutbox.FsyncPolicy.ALWAYS, 1);
+		AmazonServiceException unavailable = new AmazonServiceException("unavailable");
+		unavailable.setStatusCode(503);
+		CountDownLatch two = new CountDownLatch(2);
+		List<String> first = new ArrayList<>();
+		outbox.addReplayHandler(entry -> {
+			if (two.getCount() == 0) {
+				throw unavailable;
+			}
+			first.add(entry.toPublishRequest().getMessage());
+			two.countDown();
+		});
+		outbox.append(entry("one"));
+		outbox.append(entry("two"));
+		outbox.append(entry("three"));
+		assertTrue(two.await(5, TimeUnit.SECONDS));
+		outbox.release();
+
+		SNSOutbox reopened = acquire(directory, CREDENTIALS);
+		BlockingQueue<String> replayed = replayInto(reopened);
+
+		assertEquals(Arrays.asList("one", "two"), first);
+		assertEquals("three", replayed.poll(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void rollsSegmentsAndDeletesConsumedOnes() throws Exception {
+		SNSOutbox outbox = acquire(folder.getRoot(), CREDENTIALS);
+		char[] body = new char[1000];
+		Arrays.fill(body, 'x');
+		for (int i = 0; i < 10; i++) {
+			assertTrue(outbox.append(entry(i + new String(body))));
+		}
+		assertTrue(segmentFile(outbox.getDirectory(), 2).exists());
+
+		BlockingQueue<String> replayed = replayInto(outbox);
+		for (int i = 0; i < 10; i++) {
+			assertTrue(replayed.poll(5, TimeUnit.SECONDS).startsWith(Integer.toString(i)));
+		}
+		assertFalse(segmentFile(outbox.getDirectory(), 0).exists());
+	}
+
+	@Test
+	public void keepsALogPerCredentials() throws Exception {
+		SNSOutbox outbox = acquire(folder.getRoot(), CREDENTIALS);
+		SNSOutbox other = acquire(folder.getRoot(), "iam:arn:aws:iam::123456789012:role/publisher");
+
+		assertNotEquals(outbox.getDirectory(), other.getDirectory());
+		assertNotEquals(outbox.getCredentialsId(), other.getCredentialsId());
+		assertFalse(outbox.getDirectory().getName().contains("AKIA"));
+
+		outbox.append(entry("mine"));
+		BlockingQueue<String> otherReplayed = replayInto(other);
+		BlockingQueue<String> replayed = replayInto(outbox);
+
+		assertEquals("mine", replayed.poll(5, TimeUnit.SECONDS));
+		assertNull(otherReplayed.poll(1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void tracksHealthPerTopicAndKeepsDeniedEntries() throws Exception {
+		SNSOutbox outbox = acquire(folder.getRoot(), CREDENTIALS);
+		AmazonServiceException denied = new AmazonServiceException("User: arn:aws:iam::123456789012:user/x is not authorized");
+		denied.setErrorCode("AuthorizationError");
+		denied.setStatusCode(403);
+		CountDownLatch attempts = new CountDownLatch(2);
+		SNSOutbox.ReplayHandler handler = entry -> {
+			attempts.countDown();
+			throw denied;
+		};
+		outbox.addReplayHandler(handler);
+		outbox.append(entry("denied"));
+
+		assertTrue(attempts.await(5, TimeUnit.SECONDS));
+		assertFalse(outbox.isHealthy(REGION, TOPIC));
+		assertTrue(outbox.isHealthy(REGION, OTHER_TOPIC));
+		assertTrue(outbox.hasBacklog());
+
+		outbox.removeReplayHandler(handler);
+		BlockingQueue<String> replayed = replayInto(outbox);
+		assertEquals("denied", replayed.poll(5, TimeUnit.SECONDS));
+		// Marked available once the handler has returned
+		for (int i = 0; i < 50 && !outbox.isHealthy(REGION, TOPIC); i++) {
+			Thread.sleep(100);
+		}
+		assertTrue(outbox.isHealthy(REGION, TOPIC));
+	}
+
+	@Test
+	public void removingAHandlerWaitsForItsReplay() throws Exception {
+		SNSOutbox outbox = acquire(folder.getRoot(), CREDENTIALS);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch proceed = new CountDownLatch(1);
+		List<String> calls = new ArrayList<>();
+		SNSOutbox.ReplayHandler handler = entry -> {
+			started.countDown();
+			proceed.await();
+			synchronized (calls) {
+				calls.add(entry.toPublishRequest().getMessage());
+			}
+		};
+		outbox.addReplayHandler(handler);
+		outbox.append(entry("one"));
+		outbox.append(entry("two"));
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+
+		Thread release = new Thread(() -> {
+			try {
+				Thread.sleep(200);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			proceed.countDown();
+		});
+		release.start();
+		outbox.removeReplayHandler(handler);
+
+		synchronized (calls) {
+			assertEquals(Arrays.asList("one"), calls);
+		}
+		Thread.sleep(1000);
+		synchronized (calls) {
+			assertEquals(Arrays.asList("one"), calls);
+		}
+	}
+
+	@Test
+	public void adoptsSegmentsWrittenBeforeCredentialsWereRecorded() throws Exception {
+		File crashed = crashWith("legacy");
+		File base = folder.newFolder();
+		File credentialsDirectory = credentialsDirectory(crashed);
+		for (File file : credentialsDirectory.listFiles()) {
+			Files.copy(file.toPath(), new File(base, file.getName()).toPath());
+		}
+
+		SNSOutbox outbox = acquire(base, CREDENTIALS);
+		BlockingQueue<String> replayed = replayInto(outbox);
+
+		assertEquals("legacy", replayed.poll(5, TimeUnit.SECONDS));
+		assertFalse(segmentFile(base, 0).exists());
+	}
+
+	/**
+	 * Appends the bodies and copies the outbox files while it is still open, as a process crash
+	 * would leave them.
+	 */
+	private File crashWith(String... bodies) throws IOException {
+		File running = folder.newFolder();
+		SNSOutbox outbox = acquire(running, CREDENTIALS);
+		for (String body : bodies) {
+			assertTrue(outbox.append(entry(body)));
+		}
+		File crashed = folder.newFolder();
+		File target = new File(crashed, outbox.getDirectory().getName());
+		assertTrue(target.mkdirs());
+		for (File file : outbox.getDirectory().listFiles()) {
+			Files.copy(file.toPath(), new File(target, file.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		return crashed;
+	}
+
+	private SNSOutbox acquire(File directory, String credentialsIdentity) throws IOException {
+		SNSOutbox outbox = SNSOutbox.acquire(directory.getPath(), credentialsIdentity, SEGMENT_SIZE,
+			SNSOutbox.FsyncPolicy.ALWAYS, 1);
+		acquired.add(outbox);
+		return outbox;
+	}
+
+	private static BlockingQueue<String> replayInto(SNSOutbox outbox) {
+		BlockingQueue<String> replayed = new LinkedBlockingQueue<>();
+		outbox.addReplayHandler(entry -> replayed.add(entry.toPublishRequest().getMessage()));
+		return replayed;
+	}
+
+	private static SNSOutbox.Entry entry(String body) {
+		return new SNSOutbox.Entry(REGION, TOPIC, body, null, null, null);
+	}
+
+	private static File credentialsDirectory(File base) {
+		return base.listFiles((dir, name) -> name.startsWith("credentials-"))[0];
+	}
+
+	private static File segmentFile(File directory, long segmentId) {
+		return new File(directory, String.format("outbox-%020d.seg", segmentId));
+	}
+
+	private static ByteBuffer readSegment(File directory, long segmentId) throws IOException {
+		return ByteBuffer.wrap(Files.readAllBytes(segmentFile(directory, segmentId).toPath()));
+	}
+
+	private static int endOfRecords(File segment) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(segment.toPath()));
+		int position = 0;
+		while (buffer.getInt(position) > 0) {
+			position += 8 + buffer.getInt(position);
+		}
+		return position;
+	}
+
+	private static int readInt(RandomAccessFile raf, long position) throws IOException {
+		raf.seek(position);
+		return raf.readInt();
+	}
+}